@@ -0,0 +1,80 @@
+package fr.paris.lutece.plugins.adminauthenticationldap.benchmark;
+
+import fr.paris.lutece.plugins.adminauthenticationldap.EmbeddedLdapDirectory;
+import fr.paris.lutece.plugins.adminauthenticationldap.LdapTestEnvironment;
+import fr.paris.lutece.plugins.adminauthenticationldap.service.daemon.ImportLdapAdminUsersDaemon;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmark of a full run of the import daemon against an embedded directory. The first run creates the users, the following ones find them unchanged.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.SingleShotTime )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 1 )
+@Measurement( iterations = 5 )
+@Fork( 1 )
+public class ImportDaemonBenchmark
+{
+    @Param( {
+            "10000", "100000"
+    } )
+    private int users;
+
+    private EmbeddedLdapDirectory _directory;
+    private LdapTestEnvironment _environment;
+    private ImportLdapAdminUsersDaemon _daemon;
+
+    /**
+     * Start the directory and the Lutece context
+     * 
+     * @throws Exception
+     *             if they cannot be started
+     */
+    @Setup( Level.Trial )
+    public void setUp( ) throws Exception
+    {
+        _directory = new EmbeddedLdapDirectory( users );
+        _directory.start( );
+        _environment = new LdapTestEnvironment( _directory );
+        _environment.start( );
+        _daemon = new ImportLdapAdminUsersDaemon( );
+    }
+
+    /**
+     * Stop the Lutece context and the directory
+     * 
+     * @throws Exception
+     *             if they cannot be stopped
+     */
+    @TearDown( Level.Trial )
+    public void tearDown( ) throws Exception
+    {
+        _environment.stop( );
+        _directory.stop( );
+    }
+
+    /**
+     * One synchronization of every user
+     */
+    @Benchmark
+    public void run( )
+    {
+        _daemon.run( );
+    }
+}
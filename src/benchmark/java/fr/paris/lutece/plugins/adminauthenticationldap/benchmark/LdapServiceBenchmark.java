@@ -0,0 +1,136 @@
+package fr.paris.lutece.plugins.adminauthenticationldap.benchmark;
+
+import fr.paris.lutece.plugins.adminauthenticationldap.EmbeddedLdapDirectory;
+import fr.paris.lutece.plugins.adminauthenticationldap.LdapTestEnvironment;
+import fr.paris.lutece.plugins.adminauthenticationldap.service.LdapLoginResult;
+import fr.paris.lutece.plugins.adminauthenticationldap.service.LdapService;
+import fr.paris.lutece.portal.business.user.AdminUser;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import javax.naming.NamingException;
+import javax.security.auth.login.LoginException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks of the directory lookups against an embedded directory. The number of users is set with <code>-p users=100000</code>.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( {
+        Mode.Throughput, Mode.SampleTime
+} )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 3, time = 5 )
+@Measurement( iterations = 5, time = 5 )
+@Fork( 1 )
+public class LdapServiceBenchmark
+{
+    @Param( {
+            "10000", "100000"
+    } )
+    private int users;
+
+    private EmbeddedLdapDirectory _directory;
+    private LdapTestEnvironment _environment;
+
+    /**
+     * Start the directory and the Lutece context
+     * 
+     * @throws Exception
+     *             if they cannot be started
+     */
+    @Setup( Level.Trial )
+    public void setUp( ) throws Exception
+    {
+        _directory = new EmbeddedLdapDirectory( users );
+        _directory.start( );
+        _environment = new LdapTestEnvironment( _directory );
+        _environment.start( );
+    }
+
+    /**
+     * Stop the Lutece context and the directory
+     * 
+     * @throws Exception
+     *             if they cannot be stopped
+     */
+    @TearDown( Level.Trial )
+    public void tearDown( ) throws Exception
+    {
+        _environment.stop( );
+        _directory.stop( );
+    }
+
+    /**
+     * Search of the entry then bind of a random user
+     * 
+     * @return the login result
+     * @throws LoginException
+     *             if the login fails
+     */
+    @Benchmark
+    public LdapLoginResult login( ) throws LoginException
+    {
+        return LdapService.checkCredentials( randomAccessCode( ), EmbeddedLdapDirectory.USER_PASSWORD );
+    }
+
+    /**
+     * Public data of a random user, mostly answered by the user cache once warmed up
+     * 
+     * @return the user
+     * @throws NamingException
+     *             if the directory could not be searched
+     */
+    @Benchmark
+    public AdminUser getAdminUser( ) throws NamingException
+    {
+        return LdapService.findAdminUser( randomAccessCode( ) );
+    }
+
+    /**
+     * Public data of a random user read from the directory
+     * 
+     * @return the user
+     * @throws NamingException
+     *             if the directory could not be searched
+     */
+    @Benchmark
+    public AdminUser getAdminUserUncached( ) throws NamingException
+    {
+        String strAccessCode = randomAccessCode( );
+        LdapService.invalidateAdminUser( strAccessCode );
+        return LdapService.findAdminUser( strAccessCode );
+    }
+
+    /**
+     * Search by last name prefix, matching about a thousandth of the users
+     * 
+     * @return the users found
+     */
+    @Benchmark
+    public List<AdminUser> getAdminUserSearchResult( )
+    {
+        String strPrefix = "Lastname" + ThreadLocalRandom.current( ).nextInt( 100, 1000 );
+        return LdapService.getAdminUserSearchResult( strPrefix, "", "" );
+    }
+
+    private String randomAccessCode( )
+    {
+        return EmbeddedLdapDirectory.getAccessCode( ThreadLocalRandom.current( ).nextInt( users ) );
+    }
+}
@@ -34,7 +34,12 @@
 package fr.paris.lutece.plugins.adminauthenticationldap;
 
 import fr.paris.lutece.plugins.adminauthenticationldap.business.AdminLdapUser;
+import fr.paris.lutece.plugins.adminauthenticationldap.service.LdapGroupService;
+import fr.paris.lutece.plugins.adminauthenticationldap.service.LdapLoginResult;
+import fr.paris.lutece.plugins.adminauthenticationldap.service.LdapMetricsService;
 import fr.paris.lutece.plugins.adminauthenticationldap.service.LdapService;
+import fr.paris.lutece.plugins.adminauthenticationldap.service.LdapUserFingerprintService;
+import fr.paris.lutece.plugins.adminauthenticationldap.service.LoginThrottleService;
 import fr.paris.lutece.portal.business.user.AdminUser;
 import fr.paris.lutece.portal.business.user.AdminUserDAO;
 import fr.paris.lutece.portal.business.user.AdminUserHome;
@@ -51,10 +56,11 @@ import org.apache.commons.lang3.StringUtils;
 
 import java.text.MessageFormat;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 
 import javax.naming.CommunicationException;
 import javax.naming.NamingEnumeration;
-import javax.naming.NamingException;
 import javax.naming.directory.*;
 import javax.security.auth.login.FailedLoginException;
 import javax.security.auth.login.LoginException;
@@ -80,8 +86,8 @@ public class AdminLdapAuthentication implements AdminAuthentication
     private static final String PROPERTY_URL_LOST_PASSWORD = "adminauthenticationldap.url.lostPassword";
     private static final String PROPERTY_URL_LOST_LOGIN = "adminauthenticationldap.url.lostLogin";
 
-    private static final String PROPERTY_MAX_ACCESS_FAILED = "access_failures_max";
-    private static final String PROPERTY_INTERVAL_MINUTES = "access_failures_interval";
+    private static final String PROPERTY_THROTTLE_DATABASE_CHECK = "adminauthenticationldap.throttle.databaseCheck";
+    private static final String PROPERTY_ASYNC_LOGIN = "adminauthenticationldap.async.login.enabled";
 
     public static final String AUTH_SERVICE_NAME = AppPropertiesService.getProperty( PROPERTY_AUTH_SERVICE_NAME );
 
@@ -133,16 +139,24 @@ public class AdminLdapAuthentication implements AdminAuthentication
     @Override
     public AdminUser login( String strAccessCode, String strUserPassword, HttpServletRequest request ) throws LoginException
     {
-        // Test the number of errors during an interval of minutes
-        int nMaxFailed = AdminUserService.getIntegerSecurityParameter( PROPERTY_MAX_ACCESS_FAILED );
-        int nIntervalMinutes = AdminUserService.getIntegerSecurityParameter( PROPERTY_INTERVAL_MINUTES );
+        String strIpAddress = SecurityUtil.getRealIp( request );
+        LoginThrottleService throttle = LoginThrottleService.getInstance( );
 
-        if ( ( nMaxFailed > 0 ) && ( nIntervalMinutes > 0 ) )
+        // Test the number of errors during an interval of minutes, in memory first
+        if ( throttle.isBlocked( strAccessCode, strIpAddress ) )
+        {
+            throw new FailedLoginException( );
+        }
+
+        int nMaxFailed = throttle.getMaxFailures( );
+        int nIntervalMinutes = throttle.getIntervalMinutes( );
+
+        if ( ( nMaxFailed > 0 ) && ( nIntervalMinutes > 0 ) && AppPropertiesService.getPropertyBoolean( PROPERTY_THROTTLE_DATABASE_CHECK, false ) )
         {
             // Creating a record of connections log
             UserLog userLog = new UserLog( );
             userLog.setAccessCode( strAccessCode );
-            userLog.setIpAddress( SecurityUtil.getRealIp( request ) );
+            userLog.setIpAddress( strIpAddress );
             userLog.setDateLogin( new java.sql.Timestamp( new java.util.Date( ).getTime( ) ) );
 
             int nNbFailed = UserLogHome.getLoginErrors( userLog, nIntervalMinutes );
@@ -153,29 +167,126 @@ public class AdminLdapAuthentication implements AdminAuthentication
             }
         }
 
-        LdapService.login( strAccessCode, strUserPassword );
+        boolean bOverlap = AppPropertiesService.getPropertyBoolean( PROPERTY_ASYNC_LOGIN, false );
+        AdminUser user = null;
+        AdminUser userLdap;
+        try
+        {
+            if ( bOverlap )
+            {
+                CompletableFuture<LdapLoginResult> futureLogin = LdapService.loginAsync( strAccessCode, strUserPassword );
+                // The stored user is read while the directory checks the password
+                try
+                {
+                    user = AdminUserHome.findUserByLogin( strAccessCode );
+                }
+                catch( RuntimeException e )
+                {
+                    // Nobody waits for the directory anymore : its pooled connection is given back at once
+                    futureLogin.cancel( true );
+                    throw e;
+                }
+                userLdap = getLoginResult( futureLogin ).getUser( );
+            }
+            else
+            {
+                userLdap = LdapService.checkCredentials( strAccessCode, strUserPassword ).getUser( );
+            }
+        }
+        catch( FailedLoginException e )
+        {
+            // Only rejected credentials : an unavailable directory or an exhausted pool is reported by another LoginException, not held against the user
+            throttle.recordFailure( strAccessCode, strIpAddress );
+            throw e;
+        }
+
+        if ( userLdap == null )
+        {
+            throw new FailedLoginException( );
+        }
 
-        AdminUser user = AdminUserHome.findUserByLogin( strAccessCode );
+        long lDatabaseStart = System.nanoTime( );
+        // The stored user is read in any case : it is the one returned to the caller
+        if ( !bOverlap )
+        {
+            user = AdminUserHome.findUserByLogin( strAccessCode );
+        }
+        LdapUserFingerprintService fingerprints = LdapUserFingerprintService.getInstance( );
+        LdapGroupService groups = LdapGroupService.getInstance( );
+        // When the groups could not be read the roles are left as they are, and the profile is not recorded so that they are synchronized next time
+        boolean bKnownRoles = groups.hasKnownRoles( userLdap );
         if ( user == null )
         {
-            AdminUserHome.create( getUserPublicData( strAccessCode ) );
+            AdminUserHome.create( userLdap );
+            if ( groups.hasRoleMapping( ) && bKnownRoles )
+            {
+                groups.synchronizeRoles( userLdap.getUserId( ), userLdap.getRoles( ).keySet( ) );
+            }
+            if ( bKnownRoles )
+            {
+                fingerprints.record( userLdap );
+            }
         }
         else
         {
-            AdminUser user2 = getUserPublicData( strAccessCode );
-
-            if ( COMPARATOR_USER.compare( user, user2 ) != 0 )
+            if ( !fingerprints.isUnchanged( userLdap ) )
             {
-                user.setEmail( user2.getEmail( ) );
-                user.setFirstName( user2.getFirstName( ) );
-                user.setLastName( user2.getLastName( ) );
-                AdminUserHome.update( user );
+                if ( COMPARATOR_USER.compare( user, userLdap ) != 0 )
+                {
+                    user.setEmail( userLdap.getEmail( ) );
+                    user.setFirstName( userLdap.getFirstName( ) );
+                    user.setLastName( userLdap.getLastName( ) );
+                    AdminUserHome.update( user );
+                }
+                if ( groups.hasRoleMapping( ) && bKnownRoles )
+                {
+                    groups.synchronizeRoles( user.getUserId( ), userLdap.getRoles( ).keySet( ) );
+                }
+            }
+            if ( bKnownRoles )
+            {
+                fingerprints.record( userLdap );
             }
         }
+        LdapMetricsService.getInstance( ).recordTime( LdapMetricsService.TIMER_LOGIN_DATABASE, lDatabaseStart, true );
 
         return user;
     }
 
+    /**
+     * Wait for an asynchronous login
+     * 
+     * @param futureLogin
+     *            the future login result
+     * @return the login result
+     * @throws FailedLoginException
+     *             if the credentials are rejected
+     * @throws LoginException
+     *             if the credentials could not be checked
+     */
+    private static LdapLoginResult getLoginResult( CompletableFuture<LdapLoginResult> futureLogin ) throws LoginException
+    {
+        try
+        {
+            return futureLogin.get( );
+        }
+        catch( InterruptedException e )
+        {
+            futureLogin.cancel( true );
+            Thread.currentThread( ).interrupt( );
+            throw new LoginException( e.getMessage( ) );
+        }
+        catch( ExecutionException e )
+        {
+            if ( e.getCause( ) instanceof LoginException )
+            {
+                throw (LoginException) e.getCause( );
+            }
+            AppLogService.error( "Asynchronous LDAP login did not complete : " + e.getCause( ) );
+            throw new LoginException( String.valueOf( e.getCause( ) ) );
+        }
+    }
+
     @Override
     public void logout( AdminUser user )
     {
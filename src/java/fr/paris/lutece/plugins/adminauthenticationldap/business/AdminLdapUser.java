@@ -41,6 +41,15 @@ import fr.paris.lutece.portal.business.user.authentication.AdminAuthentication;
  */
 public class AdminLdapUser extends AdminUser
 {
+    private boolean _bRolesUnknown;
+
+    /**
+     * Constructor of a user read from the directory
+     */
+    public AdminLdapUser( )
+    {
+        super( );
+    }
 
     /**
      * @param strAccessCode
@@ -52,4 +61,21 @@ public class AdminLdapUser extends AdminUser
     {
         super( strAccessCode, authenticationService );
     }
+
+    /**
+     * @return true if the groups of the user could not be read : its roles are unknown and must be left as they are
+     */
+    public boolean isRolesUnknown( )
+    {
+        return _bRolesUnknown;
+    }
+
+    /**
+     * @param bRolesUnknown
+     *            true if the groups of the user could not be read
+     */
+    public void setRolesUnknown( boolean bRolesUnknown )
+    {
+        _bRolesUnknown = bRolesUnknown;
+    }
 }
@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) 2002-2021, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.adminauthenticationldap.business;
+
+import fr.paris.lutece.portal.business.user.AdminUser;
+import fr.paris.lutece.util.sql.DAOUtil;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * This class provides bulk access to the admin users table for the directory synchronization
+ */
+public final class AdminLdapUserDAO implements IAdminLdapUserDAO
+{
+    private static final String SQL_QUERY_SELECT_BY_ACCESS_CODES = "SELECT id_user, access_code, last_name, first_name, email, status FROM core_admin_user WHERE LOWER( access_code ) IN ( ";
+    private static final String SQL_QUERY_UPDATE_IDENTITY = "UPDATE core_admin_user SET last_name = ?, first_name = ?, email = ? WHERE id_user = ? ";
+    private static final String SQL_PARAMETER = "?";
+    private static final String SQL_SEPARATOR = ", ";
+    private static final String SQL_END_IN = " )";
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Map<String, AdminUser> selectUsersByAccessCodes( Collection<String> accessCodes )
+    {
+        Map<String, AdminUser> mapUsers = new HashMap<>( );
+
+        if ( accessCodes.isEmpty( ) )
+        {
+            return mapUsers;
+        }
+
+        // Compared in lower case on both sides : the collation of access_code is case sensitive on most databases
+        Set<String> lowerCaseCodes = new LinkedHashSet<>( );
+        for ( String strAccessCode : accessCodes )
+        {
+            lowerCaseCodes.add( strAccessCode.toLowerCase( Locale.ROOT ) );
+        }
+
+        StringBuilder sbSql = new StringBuilder( SQL_QUERY_SELECT_BY_ACCESS_CODES );
+        for ( int i = 0; i < lowerCaseCodes.size( ); i++ )
+        {
+            sbSql.append( ( i == 0 ) ? SQL_PARAMETER : SQL_SEPARATOR + SQL_PARAMETER );
+        }
+        sbSql.append( SQL_END_IN );
+
+        try ( DAOUtil daoUtil = new DAOUtil( sbSql.toString( ) ) )
+        {
+            int nIndex = 1;
+            for ( String strAccessCode : lowerCaseCodes )
+            {
+                daoUtil.setString( nIndex++, strAccessCode );
+            }
+            daoUtil.executeQuery( );
+
+            while ( daoUtil.next( ) )
+            {
+                AdminUser user = new AdminUser( );
+                user.setUserId( daoUtil.getInt( 1 ) );
+                user.setAccessCode( daoUtil.getString( 2 ) );
+                user.setLastName( daoUtil.getString( 3 ) );
+                user.setFirstName( daoUtil.getString( 4 ) );
+                user.setEmail( daoUtil.getString( 5 ) );
+                user.setStatus( daoUtil.getInt( 6 ) );
+                mapUsers.put( user.getAccessCode( ).toLowerCase( Locale.ROOT ), user );
+            }
+        }
+
+        return mapUsers;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void storeIdentities( Collection<AdminUser> users )
+    {
+        if ( users.isEmpty( ) )
+        {
+            return;
+        }
+
+        try ( DAOUtil daoUtil = new DAOUtil( SQL_QUERY_UPDATE_IDENTITY ) )
+        {
+            for ( AdminUser user : users )
+            {
+                daoUtil.setString( 1, user.getLastName( ) );
+                daoUtil.setString( 2, user.getFirstName( ) );
+                daoUtil.setString( 3, user.getEmail( ) );
+                daoUtil.setInt( 4, user.getUserId( ) );
+                daoUtil.addBatch( );
+            }
+            daoUtil.executeBatch( );
+        }
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) 2002-2021, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.adminauthenticationldap.business;
+
+import fr.paris.lutece.portal.business.user.AdminUser;
+import fr.paris.lutece.portal.service.spring.SpringContextService;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * This class provides instances management methods for the bulk synchronization of admin users
+ */
+public final class AdminLdapUserHome
+{
+    // Static variable pointed at the DAO instance
+    private static IAdminLdapUserDAO _dao = SpringContextService.getBean( "adminauthenticationldap.adminLdapUserDAO" );
+
+    /**
+     * Private constructor - this class need not be instantiated
+     */
+    private AdminLdapUserHome( )
+    {
+    }
+
+    /**
+     * Load the users having the given access codes, with their identity and status only
+     * 
+     * @param accessCodes
+     *            the access codes
+     * @return the users found, keyed by access code in lower case : the codes are compared in lower case, ignoring case as the directory does
+     */
+    public static Map<String, AdminUser> findUsersByAccessCodes( Collection<String> accessCodes )
+    {
+        return _dao.selectUsersByAccessCodes( accessCodes );
+    }
+
+    /**
+     * Update the last name, first name and email of the users in a single batch
+     * 
+     * @param users
+     *            the users to update
+     */
+    public static void updateIdentities( Collection<AdminUser> users )
+    {
+        _dao.storeIdentities( users );
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright (c) 2002-2021, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.adminauthenticationldap.business;
+
+import fr.paris.lutece.util.sql.DAOUtil;
+
+/**
+ * This class provides data access to the leases shared by the nodes of a cluster
+ */
+public final class LdapLeaseDAO implements ILdapLeaseDAO
+{
+    private static final String SQL_QUERY_INSERT = "INSERT INTO adminauthenticationldap_lease ( lease_name, owner, expiration_time ) VALUES ( ?, ?, ? ) ";
+    private static final String SQL_QUERY_UPDATE_IF_AVAILABLE = "UPDATE adminauthenticationldap_lease SET owner = ?, expiration_time = ? WHERE lease_name = ? AND ( owner = ? OR expiration_time < ? ) ";
+    private static final String SQL_QUERY_RELEASE = "UPDATE adminauthenticationldap_lease SET expiration_time = 0 WHERE lease_name = ? AND owner = ? ";
+    private static final String SQL_QUERY_SELECT = "SELECT lease_name, owner, expiration_time FROM adminauthenticationldap_lease WHERE lease_name = ? ";
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void insert( String strLeaseName, String strOwner, long lExpirationTime )
+    {
+        try ( DAOUtil daoUtil = new DAOUtil( SQL_QUERY_INSERT ) )
+        {
+            daoUtil.setString( 1, strLeaseName );
+            daoUtil.setString( 2, strOwner );
+            daoUtil.setLong( 3, lExpirationTime );
+            daoUtil.executeUpdate( );
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void storeIfAvailable( String strLeaseName, String strOwner, long lExpirationTime, long lNow )
+    {
+        try ( DAOUtil daoUtil = new DAOUtil( SQL_QUERY_UPDATE_IF_AVAILABLE ) )
+        {
+            daoUtil.setString( 1, strOwner );
+            daoUtil.setLong( 2, lExpirationTime );
+            daoUtil.setString( 3, strLeaseName );
+            daoUtil.setString( 4, strOwner );
+            daoUtil.setLong( 5, lNow );
+            daoUtil.executeUpdate( );
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void release( String strLeaseName, String strOwner )
+    {
+        try ( DAOUtil daoUtil = new DAOUtil( SQL_QUERY_RELEASE ) )
+        {
+            daoUtil.setString( 1, strLeaseName );
+            daoUtil.setString( 2, strOwner );
+            daoUtil.executeUpdate( );
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public LdapLease load( String strLeaseName )
+    {
+        LdapLease lease = null;
+
+        try ( DAOUtil daoUtil = new DAOUtil( SQL_QUERY_SELECT ) )
+        {
+            daoUtil.setString( 1, strLeaseName );
+            daoUtil.executeQuery( );
+
+            if ( daoUtil.next( ) )
+            {
+                lease = new LdapLease( );
+                lease.setName( daoUtil.getString( 1 ) );
+                lease.setOwner( daoUtil.getString( 2 ) );
+                lease.setExpirationTime( daoUtil.getLong( 3 ) );
+            }
+        }
+
+        return lease;
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2002-2021, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.adminauthenticationldap.business;
+
+import fr.paris.lutece.portal.service.spring.SpringContextService;
+
+/**
+ * This class provides instances management methods for the leases shared by the nodes of a cluster
+ */
+public final class LdapLeaseHome
+{
+    // Static variable pointed at the DAO instance
+    private static ILdapLeaseDAO _dao = SpringContextService.getBean( "adminauthenticationldap.ldapLeaseDAO" );
+
+    /**
+     * Private constructor - this class need not be instantiated
+     */
+    private LdapLeaseHome( )
+    {
+    }
+
+    /**
+     * Create a lease
+     * 
+     * @param strLeaseName
+     *            the lease name
+     * @param strOwner
+     *            the owner
+     * @param lExpirationTime
+     *            the expiration time in milliseconds
+     */
+    public static void create( String strLeaseName, String strOwner, long lExpirationTime )
+    {
+        _dao.insert( strLeaseName, strOwner, lExpirationTime );
+    }
+
+    /**
+     * Give a lease to an owner if it already holds it or if it has expired
+     * 
+     * @param strLeaseName
+     *            the lease name
+     * @param strOwner
+     *            the owner
+     * @param lExpirationTime
+     *            the new expiration time in milliseconds
+     * @param lNow
+     *            the current time in milliseconds
+     */
+    public static void updateIfAvailable( String strLeaseName, String strOwner, long lExpirationTime, long lNow )
+    {
+        _dao.storeIfAvailable( strLeaseName, strOwner, lExpirationTime, lNow );
+    }
+
+    /**
+     * Make a lease expire at once if it is held by an owner
+     * 
+     * @param strLeaseName
+     *            the lease name
+     * @param strOwner
+     *            the owner
+     */
+    public static void release( String strLeaseName, String strOwner )
+    {
+        _dao.release( strLeaseName, strOwner );
+    }
+
+    /**
+     * Find a lease
+     * 
+     * @param strLeaseName
+     *            the lease name
+     * @return the lease, or null if it does not exist
+     */
+    public static LdapLease findByName( String strLeaseName )
+    {
+        return _dao.load( strLeaseName );
+    }
+}
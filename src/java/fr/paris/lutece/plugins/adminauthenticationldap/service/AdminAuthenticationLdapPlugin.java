@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 2002-2021, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.adminauthenticationldap.service;
+
+import fr.paris.lutece.portal.service.init.ShutdownService;
+import fr.paris.lutece.portal.service.init.ShutdownServiceManager;
+import fr.paris.lutece.portal.service.plugin.PluginDefaultImplementation;
+import fr.paris.lutece.portal.service.util.AppLogService;
+import fr.paris.lutece.portal.service.util.AppPropertiesService;
+
+/**
+ * Plugin adminauthenticationldap : prepares the LDAP service when the webapp starts, so that the first login does not pay for it, and releases its threads,
+ * connections and MBeans when the webapp stops
+ */
+public class AdminAuthenticationLdapPlugin extends PluginDefaultImplementation
+{
+    private static final String PROPERTY_WARMUP_ENABLED = "adminauthenticationldap.warmup.enabled";
+    private static final String PROPERTY_WARMUP_ASYNC = "adminauthenticationldap.warmup.async";
+    private static final String SHUTDOWN_SERVICE_NAME = "adminauthenticationldap";
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void init( )
+    {
+        super.init( );
+        ShutdownServiceManager.registerShutdownService( new LdapShutdownService( ) );
+        LdapAdministrationService.getInstance( ).registerMBean( );
+
+        if ( !AppPropertiesService.getPropertyBoolean( PROPERTY_WARMUP_ENABLED, true ) )
+        {
+            return;
+        }
+        if ( AppPropertiesService.getPropertyBoolean( PROPERTY_WARMUP_ASYNC, true ) )
+        {
+            // An unreachable directory must not delay the start of the webapp
+            LdapExecutorService.getInstance( ).submit( ( ) -> {
+                LdapService.warmUp( );
+                return null;
+            }, 0 ).whenComplete( ( result, e ) -> {
+                if ( e != null )
+                {
+                    AppLogService.error( "LDAP warm-up failed", e );
+                }
+            } );
+        }
+        else
+        {
+            LdapService.warmUp( );
+        }
+    }
+
+    /**
+     * Stops the plugin resources living beyond a request : without it a redeployed webapp leaks its threads, its connections and its class loader
+     */
+    private static final class LdapShutdownService implements ShutdownService
+    {
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public String getName( )
+        {
+            return SHUTDOWN_SERVICE_NAME;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void process( )
+        {
+            // Another node takes the synchronization over at once
+            LdapLeaseService.getInstance( ).release( LdapLeaseService.LEASE_IMPORT_DAEMON );
+            LdapExecutorService.getInstance( ).shutdown( );
+            LdapService.getAdminContextPool( ).close( );
+            LdapService.getBindContextPool( ).close( );
+            LdapMetricsService.getInstance( ).unregisterMBean( );
+            LdapAdministrationService.getInstance( ).unregisterMBean( );
+        }
+    }
+}
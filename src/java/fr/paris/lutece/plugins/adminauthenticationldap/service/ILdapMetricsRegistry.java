@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) 2002-2021, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.adminauthenticationldap.service;
+
+import java.util.Map;
+
+/**
+ * Registry of the metrics of the plugin. The default implementation, {@link LdapMetricsRegistry}, keeps them in memory; another one can be declared as the
+ * <code>adminauthenticationldap.metricsRegistry</code> bean to forward them to a monitoring system.
+ */
+public interface ILdapMetricsRegistry
+{
+    /**
+     * Record the duration of an operation
+     * 
+     * @param strName
+     *            the operation name
+     * @param lDurationNanos
+     *            the duration in nanoseconds
+     * @param bSuccess
+     *            false if the operation failed
+     */
+    void recordTime( String strName, long lDurationNanos, boolean bSuccess );
+
+    /**
+     * Increment a counter
+     * 
+     * @param strName
+     *            the counter name
+     * @param lAmount
+     *            the amount to add
+     */
+    void increment( String strName, long lAmount );
+
+    /**
+     * @return the value of the counters, by name
+     */
+    Map<String, Long> getCounters( );
+
+    /**
+     * @return the statistics of the timed operations, by name
+     */
+    Map<String, LdapTimerSnapshot> getTimers( );
+
+    /**
+     * Reset every metric
+     */
+    void reset( );
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright (c) 2002-2021, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.adminauthenticationldap.service;
+
+import fr.paris.lutece.plugins.adminauthenticationldap.business.AdminLdapUser;
+import fr.paris.lutece.portal.business.rbac.RBACRole;
+import fr.paris.lutece.portal.business.user.AdminUser;
+import fr.paris.lutece.portal.service.cache.AbstractCacheableService;
+import fr.paris.lutece.portal.service.util.AppPropertiesService;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Cache of the users read from the directory, keyed by access code.
+ * <p>
+ * Unknown access codes are cached too, for a shorter time. The size of the cache is bounded by the <code>maxElementsInMemory</code> setting of the cache
+ * service.
+ * </p>
+ */
+public final class LdapAdminUserCacheService extends AbstractCacheableService
+{
+    private static final String CACHE_NAME = "adminauthenticationldap.adminUserCacheService";
+    private static final String PROPERTY_TTL = "adminauthenticationldap.cache.user.ttl";
+    private static final String PROPERTY_NEGATIVE_TTL = "adminauthenticationldap.cache.user.negativeTtl";
+
+    private static LdapAdminUserCacheService _singleton = new LdapAdminUserCacheService( );
+
+    private final long _lTtl = AppPropertiesService.getPropertyInt( PROPERTY_TTL, 300 ) * 1000L;
+    private final long _lNegativeTtl = AppPropertiesService.getPropertyInt( PROPERTY_NEGATIVE_TTL, 30 ) * 1000L;
+
+    /**
+     * Private constructor
+     */
+    private LdapAdminUserCacheService( )
+    {
+        initCache( );
+    }
+
+    /**
+     * @return the unique instance
+     */
+    public static LdapAdminUserCacheService getInstance( )
+    {
+        return _singleton;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getName( )
+    {
+        return CACHE_NAME;
+    }
+
+    /**
+     * Get a user from the cache
+     * 
+     * @param strAccessCode
+     *            the access code
+     * @return the entry, or null if the access code is not cached or its entry has expired
+     */
+    public CachedUser get( String strAccessCode )
+    {
+        if ( strAccessCode == null )
+        {
+            return null;
+        }
+
+        CachedUser cachedUser = (CachedUser) getFromCache( strAccessCode );
+
+        if ( cachedUser != null && cachedUser.isExpired( System.currentTimeMillis( ) ) )
+        {
+            removeKey( strAccessCode );
+            return null;
+        }
+        return cachedUser;
+    }
+
+    /**
+     * Put a user in the cache
+     * 
+     * @param strAccessCode
+     *            the access code
+     * @param user
+     *            the user read from the directory, or null if the access code is unknown
+     */
+    public void put( String strAccessCode, AdminUser user )
+    {
+        if ( strAccessCode != null && isCacheEnable( ) )
+        {
+            long lExpiration = System.currentTimeMillis( ) + ( ( user != null ) ? _lTtl : _lNegativeTtl );
+            putInCache( strAccessCode, new CachedUser( user, lExpiration ) );
+        }
+    }
+
+    /**
+     * Remove a user from the cache, to be called when the user has changed in the directory
+     * 
+     * @param strAccessCode
+     *            the access code
+     */
+    public void invalidate( String strAccessCode )
+    {
+        if ( strAccessCode != null && isCacheEnable( ) )
+        {
+            removeKey( strAccessCode );
+        }
+    }
+
+    /**
+     * Immutable copy of the public data of a user, or of its absence from the directory
+     */
+    public static final class CachedUser
+    {
+        private final boolean _bFound;
+        private final String _strAccessCode;
+        private final String _strLastName;
+        private final String _strFirstName;
+        private final String _strEmail;
+        private final String [ ] _roleKeys;
+        private final boolean _bRolesUnknown;
+        private final long _lExpiration;
+
+        CachedUser( AdminUser user, long lExpiration )
+        {
+            _bFound = user != null;
+            _strAccessCode = _bFound ? user.getAccessCode( ) : null;
+            _strLastName = _bFound ? user.getLastName( ) : null;
+            _strFirstName = _bFound ? user.getFirstName( ) : null;
+            _strEmail = _bFound ? user.getEmail( ) : null;
+            // The roles given by the LDAP groups, so that a cache hit returns the same user as a search
+            Map<String, RBACRole> mapRoles = _bFound ? user.getRoles( ) : null;
+            _roleKeys = ( mapRoles != null && !mapRoles.isEmpty( ) ) ? mapRoles.keySet( ).toArray( new String [ mapRoles.size( )] ) : null;
+            _bRolesUnknown = user instanceof AdminLdapUser && ( (AdminLdapUser) user ).isRolesUnknown( );
+            _lExpiration = lExpiration;
+        }
+
+        boolean isExpired( long lNow )
+        {
+            return lNow >= _lExpiration;
+        }
+
+        /**
+         * @return a new user built from the cached data, or null if the access code is unknown in the directory
+         */
+        public AdminUser toAdminUser( )
+        {
+            if ( !_bFound )
+            {
+                return null;
+            }
+
+            AdminLdapUser user = LdapService.createAdminUser( _strAccessCode, _strLastName, _strFirstName, _strEmail );
+            if ( _roleKeys != null )
+            {
+                Map<String, RBACRole> mapRoles = new HashMap<>( );
+                for ( String strRoleKey : _roleKeys )
+                {
+                    RBACRole role = new RBACRole( );
+                    role.setKey( strRoleKey );
+                    mapRoles.put( strRoleKey, role );
+                }
+                user.setRoles( mapRoles );
+            }
+            user.setRolesUnknown( _bRolesUnknown );
+            return user;
+        }
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2002-2021, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.adminauthenticationldap.service;
+
+import fr.paris.lutece.portal.service.util.AppLogService;
+import fr.paris.lutece.portal.service.util.AppPropertiesService;
+
+import java.lang.management.ManagementFactory;
+import java.util.List;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Administration of the plugin through JMX. Unlike the read-only metrics, its operations change the state of the webapp : the MBean is only registered
+ * when enabled.
+ */
+public final class LdapAdministrationService implements LdapAdministrationMXBean
+{
+    private static final String PROPERTY_JMX_ENABLED = "adminauthenticationldap.administration.jmx.enabled";
+    private static final String JMX_OBJECT_NAME = "fr.paris.lutece.plugins.adminauthenticationldap:type=LdapAdministration";
+
+    private static LdapAdministrationService _singleton = new LdapAdministrationService( );
+
+    /**
+     * Private constructor
+     */
+    private LdapAdministrationService( )
+    {
+    }
+
+    /**
+     * @return the unique instance
+     */
+    public static LdapAdministrationService getInstance( )
+    {
+        return _singleton;
+    }
+
+    @Override
+    public List<String> reloadConfiguration( )
+    {
+        return LdapService.reloadConfiguration( );
+    }
+
+    /**
+     * Register the MBean if it is enabled
+     */
+    public void registerMBean( )
+    {
+        if ( !AppPropertiesService.getPropertyBoolean( PROPERTY_JMX_ENABLED, false ) )
+        {
+            return;
+        }
+
+        try
+        {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer( );
+            ObjectName name = new ObjectName( JMX_OBJECT_NAME );
+            // A previous deployment of the webapp may have left its instance
+            if ( server.isRegistered( name ) )
+            {
+                server.unregisterMBean( name );
+            }
+            server.registerMBean( this, name );
+        }
+        catch( JMException e )
+        {
+            AppLogService.error( "Unable to register the LDAP administration MBean : " + e.getMessage( ), e );
+        }
+    }
+
+    /**
+     * Unregister the MBean, so that the stopped webapp is not kept in memory by the platform MBean server
+     */
+    public void unregisterMBean( )
+    {
+        try
+        {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer( );
+            ObjectName name = new ObjectName( JMX_OBJECT_NAME );
+            if ( server.isRegistered( name ) )
+            {
+                server.unregisterMBean( name );
+            }
+        }
+        catch( JMException e )
+        {
+            AppLogService.error( "Unable to unregister the LDAP administration MBean : " + e.getMessage( ), e );
+        }
+    }
+}
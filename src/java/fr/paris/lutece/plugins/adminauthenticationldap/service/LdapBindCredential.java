@@ -0,0 +1,204 @@
+/*
+ * Copyright (c) 2002-2021, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.adminauthenticationldap.service;
+
+import fr.paris.lutece.portal.service.datastore.DatastoreService;
+import fr.paris.lutece.portal.service.security.RsaService;
+import fr.paris.lutece.portal.service.util.AppLogService;
+import org.apache.commons.lang3.StringUtils;
+
+import javax.naming.Context;
+import javax.naming.NamingException;
+import javax.naming.directory.DirContext;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+/**
+ * Password of the service account, resolved from the properties or the Datastore and decrypted once.
+ * <p>
+ * The stored value is read again at most once per check interval and the password is only decrypted again when that value has changed. The password is
+ * only handed out as copies of a <code>char[]</code> : each connection keeps its own copy in its environment, wiped when the connection is closed.
+ * </p>
+ */
+public class LdapBindCredential
+{
+    private static final String PREFIX_PLAINTEXT = "PLAINTEXT:";
+    private static final String PREFIX_RSA = "RSA:";
+    private static final char [ ] EMPTY_PASSWORD = new char [ 0];
+
+    private final String _strDatastoreKey;
+    private final String _strDefaultValue;
+    private final boolean _bEncrypted;
+    private final long _lCheckInterval;
+    private String _strSourceValue;
+    private char [ ] _password;
+    private long _lLastCheck;
+
+    /**
+     * Constructor
+     * 
+     * @param strDatastoreKey
+     *            the Datastore key which overrides the default value when it exists
+     * @param strDefaultValue
+     *            the value from the properties
+     * @param bEncrypted
+     *            true if the value is RSA encrypted
+     * @param lCheckInterval
+     *            the minimum time in milliseconds between two reads of the stored value
+     */
+    public LdapBindCredential( String strDatastoreKey, String strDefaultValue, boolean bEncrypted, long lCheckInterval )
+    {
+        _strDatastoreKey = strDatastoreKey;
+        _strDefaultValue = strDefaultValue;
+        _bEncrypted = bEncrypted;
+        _lCheckInterval = lCheckInterval;
+    }
+
+    /**
+     * @return a copy of the clear password, empty if it could not be resolved. The copy belongs to the caller, which wipes it once it is not needed anymore.
+     */
+    public synchronized char [ ] getPassword( )
+    {
+        long lNow = System.currentTimeMillis( );
+
+        if ( _password == null || lNow - _lLastCheck >= _lCheckInterval )
+        {
+            String strSourceValue = getSourceValue( );
+
+            if ( _password == null || !StringUtils.equals( strSourceValue, _strSourceValue ) )
+            {
+                wipe( );
+                _strSourceValue = strSourceValue;
+                _password = resolve( strSourceValue );
+            }
+            _lLastCheck = lNow;
+        }
+
+        return _password.clone( );
+    }
+
+    /**
+     * Wipe the password held by the environment of a context. To be called when the context is closed : a reconnection needs the password.
+     * 
+     * @param context
+     *            the context
+     */
+    public static void wipeEnvironment( DirContext context )
+    {
+        try
+        {
+            // The environment returned is a copy of the table, but it holds the same password array as the connection
+            wipe( context.getEnvironment( ).get( Context.SECURITY_CREDENTIALS ) );
+        }
+        catch( NamingException e )
+        {
+            AppLogService.debug( "Unable to read the environment of an LDAP context : " + e.getMessage( ) );
+        }
+    }
+
+    /**
+     * Wipe a password given to the environment of a context
+     * 
+     * @param password
+     *            the password, wiped if it is a <code>char[]</code>
+     */
+    public static void wipe( Object password )
+    {
+        if ( password instanceof char [ ] )
+        {
+            Arrays.fill( (char [ ]) password, '\0' );
+        }
+    }
+
+    /**
+     * Forget the cached password so that the next call reads and decrypts the stored value again
+     */
+    public synchronized void invalidate( )
+    {
+        wipe( );
+        _strSourceValue = null;
+    }
+
+    private String getSourceValue( )
+    {
+        if ( DatastoreService.existsKey( _strDatastoreKey ) )
+        {
+            return DatastoreService.getDataValue( _strDatastoreKey, "" );
+        }
+        return _strDefaultValue;
+    }
+
+    private char [ ] resolve( String strSourceValue )
+    {
+        if ( StringUtils.isEmpty( strSourceValue ) )
+        {
+            AppLogService.error( "No password for Ldap." );
+            _strSourceValue = null;
+            return EMPTY_PASSWORD;
+        }
+
+        if ( !_bEncrypted )
+        {
+            return strSourceValue.toCharArray( );
+        }
+
+        try
+        {
+            if ( strSourceValue.startsWith( PREFIX_PLAINTEXT ) )
+            {
+                String strPass = strSourceValue.replace( PREFIX_PLAINTEXT, "" );
+                String strEncrypted = PREFIX_RSA + RsaService.encryptRsa( strPass );
+                DatastoreService.setDataValue( _strDatastoreKey, strEncrypted );
+                _strSourceValue = strEncrypted;
+                return strPass.toCharArray( );
+            }
+            return RsaService.decryptRsa( strSourceValue.replace( PREFIX_RSA, "" ) ).toCharArray( );
+        }
+        catch( GeneralSecurityException e )
+        {
+            AppLogService.error( "Error decrypting password." );
+            _strSourceValue = null;
+            return EMPTY_PASSWORD;
+        }
+    }
+
+    private void wipe( )
+    {
+        if ( _password != null && _password != EMPTY_PASSWORD )
+        {
+            Arrays.fill( _password, '\0' );
+        }
+        _password = null;
+    }
+}
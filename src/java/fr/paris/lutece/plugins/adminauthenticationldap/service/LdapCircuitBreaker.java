@@ -0,0 +1,194 @@
+/*
+ * Copyright (c) 2002-2021, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.adminauthenticationldap.service;
+
+import fr.paris.lutece.portal.service.util.AppLogService;
+
+import javax.naming.CommunicationException;
+import javax.naming.NamingException;
+import javax.naming.ServiceUnavailableException;
+import java.net.SocketTimeoutException;
+
+/**
+ * Circuit breaker protecting the servlet threads from an unhealthy directory.
+ * <p>
+ * After several consecutive failures the circuit opens : requests are refused at once instead of waiting for the timeouts. Once the open duration has
+ * elapsed, a single request is let through to probe the directory : its success closes the circuit, its failure opens it again.
+ * </p>
+ */
+public class LdapCircuitBreaker
+{
+    /**
+     * States of the circuit
+     */
+    public enum State
+    {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    private final boolean _bEnabled;
+    private final int _nFailureThreshold;
+    private final long _lOpenDuration;
+    private State _state = State.CLOSED;
+    private int _nConsecutiveFailures;
+    private long _lStateTime;
+
+    /**
+     * Constructor
+     * 
+     * @param bEnabled
+     *            false to let every request through
+     * @param nFailureThreshold
+     *            the number of consecutive failures opening the circuit
+     * @param lOpenDuration
+     *            the time in milliseconds before a probe is let through
+     */
+    public LdapCircuitBreaker( boolean bEnabled, int nFailureThreshold, long lOpenDuration )
+    {
+        _bEnabled = bEnabled;
+        _nFailureThreshold = Math.max( 1, nFailureThreshold );
+        _lOpenDuration = lOpenDuration;
+    }
+
+    /**
+     * Tell whether a request may be sent to the directory. A caller allowed to send a request must report its outcome.
+     * 
+     * @return true if the request may be sent
+     */
+    public synchronized boolean allowRequest( )
+    {
+        if ( !_bEnabled || _state == State.CLOSED )
+        {
+            return true;
+        }
+
+        // A probe which has not reported its outcome within the open duration does not block the circuit forever
+        if ( System.currentTimeMillis( ) - _lStateTime >= _lOpenDuration )
+        {
+            setState( State.HALF_OPEN );
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Report a request answered by the directory
+     */
+    public synchronized void recordSuccess( )
+    {
+        _nConsecutiveFailures = 0;
+        if ( _state != State.CLOSED )
+        {
+            AppLogService.info( "LDAP circuit breaker closed, the directory answers again" );
+            setState( State.CLOSED );
+        }
+    }
+
+    /**
+     * Report a request the directory did not answer
+     */
+    public synchronized void recordFailure( )
+    {
+        _nConsecutiveFailures++;
+        if ( _state == State.HALF_OPEN || ( _state == State.CLOSED && _nConsecutiveFailures >= _nFailureThreshold ) )
+        {
+            AppLogService.error( "LDAP circuit breaker opened after " + _nConsecutiveFailures + " failures, LDAP requests are refused for "
+                    + ( _lOpenDuration / 1000 ) + " s" );
+            setState( State.OPEN );
+        }
+    }
+
+    /**
+     * Report the outcome of a request which failed
+     * 
+     * @param e
+     *            the error
+     */
+    public void recordError( NamingException e )
+    {
+        if ( e instanceof LdapPoolExhaustedException )
+        {
+            // The request has not been sent
+            return;
+        }
+        if ( isUnavailability( e ) )
+        {
+            recordFailure( );
+        }
+        else
+        {
+            // The directory answered, with an error
+            recordSuccess( );
+        }
+    }
+
+    /**
+     * @return the state of the circuit
+     */
+    public synchronized State getState( )
+    {
+        return _state;
+    }
+
+    /**
+     * @param e
+     *            an error
+     * @return true if the error means the directory could not be reached or did not answer in time. The read timeouts are recognized by
+     *         {@link LdapTimeoutException}, a communication error. An exhausted local pool is not an unavailability of the directory.
+     */
+    public static boolean isUnavailability( NamingException e )
+    {
+        return e instanceof CommunicationException || e instanceof ServiceUnavailableException || isCausedByTimeout( e );
+    }
+
+    private static boolean isCausedByTimeout( Throwable e )
+    {
+        for ( Throwable cause = e.getCause( ); cause != null && cause != e; e = cause, cause = cause.getCause( ) )
+        {
+            if ( cause instanceof SocketTimeoutException )
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void setState( State state )
+    {
+        _state = state;
+        _lStateTime = System.currentTimeMillis( );
+    }
+}
@@ -0,0 +1,501 @@
+/*
+ * Copyright (c) 2002-2021, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.adminauthenticationldap.service;
+
+import fr.paris.lutece.portal.service.util.AppPropertiesService;
+import org.apache.commons.lang3.StringUtils;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.naming.directory.SearchControls;
+
+/**
+ * Immutable snapshot of the directory configuration read from the plugin properties.
+ * <p>
+ * The filters are compiled and the searched attributes listed once when the snapshot is read. {@link LdapService} works on one snapshot, which is replaced
+ * as a whole when the properties are read again : an operation never mixes values of two configurations.
+ * </p>
+ */
+public final class LdapConfiguration
+{
+    static final String PROPERTY_BIND_PASSWORD = "adminauthenticationldap.ldap.connectionPassword";
+
+    private static final String PROPERTY_BIND_DN = "adminauthenticationldap.ldap.connectionName";
+    private static final String PROPERTY_IS_ENCRYPTED = "adminauthenticationldap.ldap.isEncrypted";
+    private static final String PROPERTY_BIND_PASSWORD_CHECK_INTERVAL = "adminauthenticationldap.ldap.connectionPassword.checkInterval";
+    private static final String PROPERTY_USER_SUBTREE = "adminauthenticationldap.ldap.userSubtree";
+    private static final String PROPERTY_USER_DN_SEARCH_BASE = "adminauthenticationldap.ldap.userBase";
+    private static final String PROPERTY_ROOT_DN_SEARCH_BASE = "adminauthenticationldap.ldap.rootBase";
+    private static final String PROPERTY_INITIAL_CONTEXT_PROVIDER = "adminauthenticationldap.ldap.initialContextProvider";
+    private static final String PROPERTY_PROVIDER_URL = "adminauthenticationldap.ldap.connectionUrl";
+    private static final String PROPERTY_USER_DN_SEARCH_FILTER_BY_ACCESS_CODE = "adminauthenticationldap.ldap.userSearch.filterAccessCode";
+    private static final String PROPERTY_USER_DN_SEARCH_FILTER_BY_CRITERIA = "adminauthenticationldap.ldap.userSearch.filterCriteria";
+    private static final String PROPERTY_USER_DN_SEARCH_GROUP_FILTER = "adminauthenticationldap.ldap.userSearch.groupFilter";
+    private static final String PROPERTY_USER_ATTRIBUTE_NAME_ACCESS_CODE = "adminauthenticationldap.ldap.dn.attributeName.accessCode";
+    private static final String PROPERTY_USER_ATTRIBUTE_NAME_FAMILY_NAME = "adminauthenticationldap.ldap.dn.attributeName.family";
+    private static final String PROPERTY_USER_ATTRIBUTE_NAME_GIVEN_NAME = "adminauthenticationldap.ldap.dn.attributeName.given";
+    private static final String PROPERTY_USER_ATTRIBUTE_NAME_EMAIL = "adminauthenticationldap.ldap.dn.attributeName.email";
+    private static final String PROPERTY_USER_ATTRIBUTE_GROUP = "adminauthenticationldap.ldap.dn.attributeName.groupMemberOf";
+    private static final String PROPERTY_USER_ATTRIBUTE_DN = "adminauthenticationldap.ldap.dn.attributeName.distinguishedName";
+    private static final String PROPERTY_USER_ATTRIBUTE_EXTRA = "adminauthenticationldap.ldap.dn.attributeName.extra";
+    private static final String PROPERTY_PAGE_SIZE = "adminauthenticationldap.ldap.pageSize";
+    private static final String PROPERTY_BULK_LOOKUP_CHUNK_SIZE = "adminauthenticationldap.ldap.bulkLookup.chunkSize";
+    private static final String PROPERTY_LOAD_BALANCING = "adminauthenticationldap.ldap.loadBalancing";
+    private static final String PROPERTY_FAILOVER_MAX_FAILURES = "adminauthenticationldap.ldap.failover.maxFailures";
+    private static final String PROPERTY_FAILOVER_COOL_DOWN = "adminauthenticationldap.ldap.failover.coolDown";
+    private static final String PROPERTY_CONNECT_TIMEOUT = "adminauthenticationldap.ldap.connectTimeout";
+    private static final String PROPERTY_SEARCH_TIMEOUT = "adminauthenticationldap.ldap.searchTimeout";
+    private static final String PROPERTY_BIND_TIMEOUT = "adminauthenticationldap.ldap.bindTimeout";
+
+    private static final String CONSTANT_ATTRIBUTE_SEPARATOR = ",";
+
+    private final String _strAttributeAccessCode;
+    private final String _strAttributeFamilyName;
+    private final String _strAttributeGivenName;
+    private final String _strAttributeEmail;
+    private final String _strAttributeGroup;
+    private final String _strAttributeDn;
+    private final String _strBindDn;
+    private final String _strBindPassword;
+    private final boolean _bEncrypted;
+    private final long _lBindPasswordCheckInterval;
+    private final int _nSearchScope;
+    private final String _strFilterByAccessCode;
+    private final String _strFilterByCriteria;
+    private final String _strGroupFilter;
+    private final String _strInitialContextProvider;
+    private final String _strProviderUrl;
+    private final String _strUserBase;
+    private final String _strRootBase;
+    private final int _nPageSize;
+    private final int _nBulkLookupChunkSize;
+    private final String _strLoadBalancing;
+    private final int _nFailoverMaxFailures;
+    private final long _lFailoverCoolDown;
+    private final String _strConnectTimeout;
+    private final String _strSearchTimeout;
+    private final String _strBindTimeout;
+    private final String [ ] _returningAttributes;
+    private final LdapFilterTemplate _filterTemplateByAccessCode;
+    private final LdapFilterTemplate _filterTemplateAccessCodeClause;
+    private final LdapFilterTemplate _filterTemplateByCriteria;
+
+    /**
+     * Read the properties
+     */
+    private LdapConfiguration( )
+    {
+        _strAttributeAccessCode = AppPropertiesService.getProperty( PROPERTY_USER_ATTRIBUTE_NAME_ACCESS_CODE );
+        _strAttributeFamilyName = AppPropertiesService.getProperty( PROPERTY_USER_ATTRIBUTE_NAME_FAMILY_NAME );
+        _strAttributeGivenName = AppPropertiesService.getProperty( PROPERTY_USER_ATTRIBUTE_NAME_GIVEN_NAME );
+        _strAttributeEmail = AppPropertiesService.getProperty( PROPERTY_USER_ATTRIBUTE_NAME_EMAIL );
+        _strAttributeGroup = AppPropertiesService.getProperty( PROPERTY_USER_ATTRIBUTE_GROUP );
+        _strAttributeDn = AppPropertiesService.getProperty( PROPERTY_USER_ATTRIBUTE_DN );
+        _strBindDn = AppPropertiesService.getProperty( PROPERTY_BIND_DN );
+        _strBindPassword = AppPropertiesService.getProperty( PROPERTY_BIND_PASSWORD, "" );
+        _bEncrypted = AppPropertiesService.getPropertyBoolean( PROPERTY_IS_ENCRYPTED, false );
+        _lBindPasswordCheckInterval = AppPropertiesService.getPropertyInt( PROPERTY_BIND_PASSWORD_CHECK_INTERVAL, 60 ) * 1000L;
+        _nSearchScope = "true".equalsIgnoreCase( AppPropertiesService.getProperty( PROPERTY_USER_SUBTREE, "false" ) ) ? SearchControls.SUBTREE_SCOPE
+                : SearchControls.ONELEVEL_SCOPE;
+        _strFilterByAccessCode = AppPropertiesService.getProperty( PROPERTY_USER_DN_SEARCH_FILTER_BY_ACCESS_CODE );
+        _strFilterByCriteria = AppPropertiesService.getProperty( PROPERTY_USER_DN_SEARCH_FILTER_BY_CRITERIA );
+        _strGroupFilter = AppPropertiesService.getProperty( PROPERTY_USER_DN_SEARCH_GROUP_FILTER );
+        _strInitialContextProvider = AppPropertiesService.getProperty( PROPERTY_INITIAL_CONTEXT_PROVIDER );
+        _strProviderUrl = AppPropertiesService.getProperty( PROPERTY_PROVIDER_URL );
+        _strUserBase = AppPropertiesService.getProperty( PROPERTY_USER_DN_SEARCH_BASE, "" );
+        _strRootBase = AppPropertiesService.getProperty( PROPERTY_ROOT_DN_SEARCH_BASE );
+        _nPageSize = AppPropertiesService.getPropertyInt( PROPERTY_PAGE_SIZE, 500 );
+        _nBulkLookupChunkSize = Math.max( 1, AppPropertiesService.getPropertyInt( PROPERTY_BULK_LOOKUP_CHUNK_SIZE, 50 ) );
+        _strLoadBalancing = AppPropertiesService.getProperty( PROPERTY_LOAD_BALANCING, LdapServerSelector.STRATEGY_ROUND_ROBIN );
+        _nFailoverMaxFailures = AppPropertiesService.getPropertyInt( PROPERTY_FAILOVER_MAX_FAILURES, 3 );
+        _lFailoverCoolDown = AppPropertiesService.getPropertyInt( PROPERTY_FAILOVER_COOL_DOWN, 60 ) * 1000L;
+        _strConnectTimeout = AppPropertiesService.getProperty( PROPERTY_CONNECT_TIMEOUT, "5000" );
+        _strSearchTimeout = AppPropertiesService.getProperty( PROPERTY_SEARCH_TIMEOUT, "30000" );
+        _strBindTimeout = AppPropertiesService.getProperty( PROPERTY_BIND_TIMEOUT, "10000" );
+        _returningAttributes = readMappedAttributes( );
+        _filterTemplateByAccessCode = LdapFilterTemplate.compile( getCompleteFilter( _strFilterByAccessCode ) );
+        _filterTemplateAccessCodeClause = LdapFilterTemplate.compile( StringUtils.defaultString( _strFilterByAccessCode ) );
+        _filterTemplateByCriteria = LdapFilterTemplate.compile( getCompleteFilter( _strFilterByCriteria ) );
+    }
+
+    /**
+     * Read the configuration from the plugin properties
+     * 
+     * @return the configuration
+     */
+    public static LdapConfiguration load( )
+    {
+        return new LdapConfiguration( );
+    }
+
+    /**
+     * Check the values which would make every operation fail
+     * 
+     * @return the errors found, empty if the configuration can be used
+     */
+    public List<String> validate( )
+    {
+        List<String> listErrors = new ArrayList<>( );
+        checkNotBlank( listErrors, PROPERTY_PROVIDER_URL, _strProviderUrl );
+        checkNotBlank( listErrors, PROPERTY_INITIAL_CONTEXT_PROVIDER, _strInitialContextProvider );
+        checkNotBlank( listErrors, PROPERTY_USER_ATTRIBUTE_NAME_ACCESS_CODE, _strAttributeAccessCode );
+        checkFilter( listErrors, PROPERTY_USER_DN_SEARCH_FILTER_BY_ACCESS_CODE, _strFilterByAccessCode );
+        checkFilter( listErrors, PROPERTY_USER_DN_SEARCH_FILTER_BY_CRITERIA, _strFilterByCriteria );
+        if ( _nPageSize <= 0 )
+        {
+            listErrors.add( PROPERTY_PAGE_SIZE + " must be positive" );
+        }
+        checkNumber( listErrors, PROPERTY_CONNECT_TIMEOUT, _strConnectTimeout );
+        checkNumber( listErrors, PROPERTY_SEARCH_TIMEOUT, _strSearchTimeout );
+        checkNumber( listErrors, PROPERTY_BIND_TIMEOUT, _strBindTimeout );
+        if ( StringUtils.isNotBlank( _strInitialContextProvider ) )
+        {
+            try
+            {
+                Class.forName( _strInitialContextProvider );
+            }
+            catch( ClassNotFoundException e )
+            {
+                listErrors.add( PROPERTY_INITIAL_CONTEXT_PROVIDER + " : class not found " + _strInitialContextProvider );
+            }
+        }
+        return listErrors;
+    }
+
+    /**
+     * Add the group clause to a user filter, unless the groups are resolved in memory
+     * 
+     * @param strFilter
+     *            the user filter
+     * @return the complete filter
+     */
+    public String getCompleteFilter( String strFilter )
+    {
+        StringBuilder sb = new StringBuilder( );
+        sb.append( "(&" );
+        sb.append( StringUtils.defaultString( strFilter ) );
+        // When the groups are resolved in memory, the entries are filtered after the search
+        if ( StringUtils.isNotEmpty( _strAttributeGroup ) && StringUtils.isNotEmpty( _strGroupFilter ) && !LdapGroupService.getInstance( ).isEnabled( ) )
+        {
+            sb.append( "(" ).append( _strAttributeGroup ).append( "=" ).append( _strGroupFilter );
+            if ( StringUtils.isNotEmpty( _strRootBase ) )
+            {
+                sb.append( "," ).append( _strRootBase );
+            }
+            sb.append( ")" );
+        }
+        sb.append( ")" );
+
+        return sb.toString( );
+    }
+
+    /**
+     * @return the DN under which the users are searched
+     */
+    public String getUserSearchBase( )
+    {
+        return _strUserBase + "," + _strRootBase;
+    }
+
+    /**
+     * @return the attributes read from the user entries
+     */
+    public String [ ] getReturningAttributes( )
+    {
+        return _returningAttributes.clone( );
+    }
+
+    /**
+     * @return the attribute of the access code
+     */
+    public String getAttributeAccessCode( )
+    {
+        return _strAttributeAccessCode;
+    }
+
+    /**
+     * @return the attribute of the last name
+     */
+    public String getAttributeFamilyName( )
+    {
+        return _strAttributeFamilyName;
+    }
+
+    /**
+     * @return the attribute of the first name
+     */
+    public String getAttributeGivenName( )
+    {
+        return _strAttributeGivenName;
+    }
+
+    /**
+     * @return the attribute of the email
+     */
+    public String getAttributeEmail( )
+    {
+        return _strAttributeEmail;
+    }
+
+    /**
+     * @return the attribute of the DN
+     */
+    public String getAttributeDn( )
+    {
+        return _strAttributeDn;
+    }
+
+    /**
+     * @return the DN of the service account
+     */
+    public String getBindDn( )
+    {
+        return _strBindDn;
+    }
+
+    /**
+     * @return the password of the service account, as written in the properties
+     */
+    public String getBindPassword( )
+    {
+        return _strBindPassword;
+    }
+
+    /**
+     * @return true if the password of the service account is RSA encrypted
+     */
+    public boolean isEncrypted( )
+    {
+        return _bEncrypted;
+    }
+
+    /**
+     * @return the minimum time in milliseconds between two reads of the stored password
+     */
+    public long getBindPasswordCheckInterval( )
+    {
+        return _lBindPasswordCheckInterval;
+    }
+
+    /**
+     * @return the scope of the user searches
+     */
+    public int getSearchScope( )
+    {
+        return _nSearchScope;
+    }
+
+    /**
+     * @return the class of the JNDI context factory
+     */
+    public String getInitialContextProvider( )
+    {
+        return _strInitialContextProvider;
+    }
+
+    /**
+     * @return the URLs of the servers
+     */
+    public String getProviderUrl( )
+    {
+        return _strProviderUrl;
+    }
+
+    /**
+     * @return the base of the users, relative to the root
+     */
+    public String getUserBase( )
+    {
+        return _strUserBase;
+    }
+
+    /**
+     * @return the root DN
+     */
+    public String getRootBase( )
+    {
+        return _strRootBase;
+    }
+
+    /**
+     * @return the number of entries of a page of the paged searches
+     */
+    public int getPageSize( )
+    {
+        return _nPageSize;
+    }
+
+    /**
+     * @return the number of access codes searched at once by the bulk lookups
+     */
+    public int getBulkLookupChunkSize( )
+    {
+        return _nBulkLookupChunkSize;
+    }
+
+    /**
+     * @return the connect timeout in milliseconds
+     */
+    public String getConnectTimeout( )
+    {
+        return _strConnectTimeout;
+    }
+
+    /**
+     * @return the read timeout of the searches in milliseconds
+     */
+    public String getSearchTimeout( )
+    {
+        return _strSearchTimeout;
+    }
+
+    /**
+     * @return the read timeout of the binds in milliseconds
+     */
+    public String getBindTimeout( )
+    {
+        return _strBindTimeout;
+    }
+
+    /**
+     * @return the filter template matching one access code, group clause included
+     */
+    public LdapFilterTemplate getFilterTemplateByAccessCode( )
+    {
+        return _filterTemplateByAccessCode;
+    }
+
+    /**
+     * @return the filter template matching one access code, without the group clause
+     */
+    public LdapFilterTemplate getFilterTemplateAccessCodeClause( )
+    {
+        return _filterTemplateAccessCodeClause;
+    }
+
+    /**
+     * @return the filter template matching the criteria, group clause included
+     */
+    public LdapFilterTemplate getFilterTemplateByCriteria( )
+    {
+        return _filterTemplateByCriteria;
+    }
+
+    /**
+     * @return a new selector of the servers of this configuration
+     */
+    LdapServerSelector createServerSelector( )
+    {
+        return new LdapServerSelector( _strProviderUrl, _strLoadBalancing, _nFailoverMaxFailures, _lFailoverCoolDown );
+    }
+
+    /**
+     * @return a new credential of the service account of this configuration
+     */
+    LdapBindCredential createBindCredential( )
+    {
+        return new LdapBindCredential( PROPERTY_BIND_PASSWORD, _strBindPassword, _bEncrypted, _lBindPasswordCheckInterval );
+    }
+
+    /**
+     * Only the mapped attributes are requested : by default the server would send every attribute of the entries, including large ones such as group lists or
+     * photos
+     */
+    private String [ ] readMappedAttributes( )
+    {
+        Set<String> attributes = new LinkedHashSet<>( );
+        for ( String strAttribute : new String [ ] {
+                _strAttributeAccessCode, _strAttributeFamilyName, _strAttributeGivenName, _strAttributeEmail, _strAttributeDn
+        } )
+        {
+            if ( StringUtils.isNotBlank( strAttribute ) )
+            {
+                attributes.add( strAttribute.trim( ) );
+            }
+        }
+        for ( String strAttribute : StringUtils.split( AppPropertiesService.getProperty( PROPERTY_USER_ATTRIBUTE_EXTRA, "" ), CONSTANT_ATTRIBUTE_SEPARATOR ) )
+        {
+            if ( StringUtils.isNotBlank( strAttribute ) )
+            {
+                attributes.add( strAttribute.trim( ) );
+            }
+        }
+        return attributes.toArray( new String [ attributes.size( )] );
+    }
+
+    private static void checkNotBlank( List<String> listErrors, String strProperty, String strValue )
+    {
+        if ( StringUtils.isBlank( strValue ) )
+        {
+            listErrors.add( strProperty + " is missing" );
+        }
+    }
+
+    private static void checkFilter( List<String> listErrors, String strProperty, String strFilter )
+    {
+        if ( StringUtils.isBlank( strFilter ) )
+        {
+            listErrors.add( strProperty + " is missing" );
+            return;
+        }
+        int nDepth = 0;
+        for ( int i = 0; i < strFilter.length( ) && nDepth >= 0; i++ )
+        {
+            char c = strFilter.charAt( i );
+            if ( c == '(' )
+            {
+                nDepth++;
+            }
+            else if ( c == ')' )
+            {
+                nDepth--;
+            }
+        }
+        if ( nDepth != 0 )
+        {
+            listErrors.add( strProperty + " has unbalanced parentheses : " + strFilter );
+        }
+    }
+
+    private static void checkNumber( List<String> listErrors, String strProperty, String strValue )
+    {
+        if ( !StringUtils.isNumeric( strValue ) )
+        {
+            listErrors.add( strProperty + " must be a number of milliseconds : " + strValue );
+        }
+    }
+}
@@ -0,0 +1,411 @@
+/*
+ * Copyright (c) 2002-2021, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.adminauthenticationldap.service;
+
+import fr.paris.lutece.portal.service.util.AppLogService;
+import fr.paris.lutece.util.ldap.LdapUtil;
+
+import javax.naming.NamingException;
+import javax.naming.directory.DirContext;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded pool of bound LDAP contexts.
+ * <p>
+ * Contexts are handed out most recently used first so that the least used ones age out and are evicted once they have been idle longer than the configured
+ * maximum idle time. The number of borrowed contexts never exceeds the maximum size : callers wait up to the borrow timeout for a context to be released.
+ * </p>
+ * <p>
+ * Each context is stamped with the version of the settings of the factory it was opened with. A context whose version is no longer the current one, such as
+ * a context borrowed while the configuration was reloaded, is closed when it is borrowed or released.
+ * </p>
+ */
+public class LdapContextPool
+{
+    private static final String[] VALIDATION_ATTRIBUTES = {
+            "objectClass"
+    };
+
+    private final String _strName;
+    private final LdapContextFactory _contextFactory;
+    private final boolean _bEnabled;
+    private final int _nMinSize;
+    private final int _nMaxSize;
+    private final long _lMaxIdleTime;
+    private final long _lBorrowTimeout;
+    private final boolean _bValidateOnBorrow;
+    private final BlockingDeque<PooledContext> _idleContexts = new LinkedBlockingDeque<>( );
+    private final Map<DirContext, Object> _mapBorrowedVersions = Collections.synchronizedMap( new IdentityHashMap<>( ) );
+    private final Semaphore _permits;
+    private volatile boolean _bPrepared;
+    private volatile boolean _bClosed;
+
+    /**
+     * Constructor
+     * 
+     * @param strName
+     *            the pool name, used in logs
+     * @param contextFactory
+     *            the factory opening new contexts
+     * @param bEnabled
+     *            false to open and close a context on each borrow, as without pool
+     * @param nMinSize
+     *            the number of idle contexts to keep open
+     * @param nMaxSize
+     *            the maximum number of borrowed contexts
+     * @param lMaxIdleTime
+     *            the time in milliseconds after which an idle context is closed
+     * @param lBorrowTimeout
+     *            the time in milliseconds to wait for a context when the pool is exhausted
+     * @param bValidateOnBorrow
+     *            true to check an idle context is still alive before handing it out
+     */
+    public LdapContextPool( String strName, LdapContextFactory contextFactory, boolean bEnabled, int nMinSize, int nMaxSize, long lMaxIdleTime,
+            long lBorrowTimeout, boolean bValidateOnBorrow )
+    {
+        _strName = strName;
+        _contextFactory = contextFactory;
+        _bEnabled = bEnabled;
+        _nMaxSize = Math.max( 1, nMaxSize );
+        _nMinSize = Math.max( 0, Math.min( nMinSize, _nMaxSize ) );
+        _lMaxIdleTime = lMaxIdleTime;
+        _lBorrowTimeout = lBorrowTimeout;
+        _bValidateOnBorrow = bValidateOnBorrow;
+        _permits = new Semaphore( _nMaxSize, true );
+    }
+
+    /**
+     * Borrow a context from the pool. The context must be given back with {@link #releaseContext(DirContext)} or {@link #invalidateContext(DirContext)}
+     * 
+     * @return a bound context
+     * @throws LdapPoolExhaustedException
+     *             if no context became free in time
+     * @throws NamingException
+     *             if a new context could not be opened
+     */
+    public DirContext borrowContext( ) throws NamingException
+    {
+        if ( !_bEnabled )
+        {
+            return _contextFactory.createContext( );
+        }
+
+        long lStart = System.nanoTime( );
+        boolean bAcquired = false;
+        try
+        {
+            acquirePermit( );
+            bAcquired = true;
+        }
+        finally
+        {
+            LdapMetricsService.getInstance( ).recordTime( LdapMetricsService.TIMER_POOL_BORROW + "." + _strName, lStart, bAcquired );
+        }
+
+        try
+        {
+            if ( !_bPrepared )
+            {
+                prepare( );
+            }
+
+            PooledContext pooled;
+
+            while ( ( pooled = _idleContexts.pollFirst( ) ) != null )
+            {
+                if ( isCurrent( pooled.getVersion( ) ) && !isExpired( pooled, System.currentTimeMillis( ) )
+                        && ( !_bValidateOnBorrow || isValid( pooled.getContext( ) ) ) )
+                {
+                    _mapBorrowedVersions.put( pooled.getContext( ), pooled.getVersion( ) );
+                    return pooled.getContext( );
+                }
+
+                closeContext( pooled.getContext( ) );
+            }
+
+            // The version is read before the context is opened : a context opened during a change of the settings is never stamped with the new version
+            Object version = _contextFactory.getVersion( );
+            DirContext context = _contextFactory.createContext( );
+            _mapBorrowedVersions.put( context, version );
+            return context;
+        }
+        catch( NamingException | RuntimeException e )
+        {
+            _permits.release( );
+            throw e;
+        }
+    }
+
+    /**
+     * Give a healthy context back to the pool
+     * 
+     * @param context
+     *            the context obtained from {@link #borrowContext()}
+     */
+    public void releaseContext( DirContext context )
+    {
+        if ( context == null )
+        {
+            return;
+        }
+
+        if ( !_bEnabled )
+        {
+            closeContext( context );
+            return;
+        }
+
+        Object version = _mapBorrowedVersions.remove( context );
+        if ( _bClosed || !isCurrent( version ) || _idleContexts.size( ) >= _nMaxSize || !_idleContexts.offerFirst( new PooledContext( context, version ) ) )
+        {
+            closeContext( context );
+        }
+
+        _permits.release( );
+        evictIdleContexts( );
+    }
+
+    /**
+     * Close a context that failed instead of giving it back to the pool
+     * 
+     * @param context
+     *            the context obtained from {@link #borrowContext()}
+     */
+    public void invalidateContext( DirContext context )
+    {
+        if ( context == null )
+        {
+            return;
+        }
+
+        closeContext( context );
+
+        if ( _bEnabled )
+        {
+            _mapBorrowedVersions.remove( context );
+            _permits.release( );
+        }
+    }
+
+    /**
+     * Open contexts until the minimum size is reached
+     */
+    public synchronized void prepare( )
+    {
+        if ( !_bEnabled )
+        {
+            return;
+        }
+
+        try
+        {
+            while ( _idleContexts.size( ) < _nMinSize )
+            {
+                Object version = _contextFactory.getVersion( );
+                _idleContexts.offerLast( new PooledContext( _contextFactory.createContext( ), version ) );
+            }
+        }
+        catch( NamingException e )
+        {
+            AppLogService.error( "Unable to fill the LDAP connection pool " + _strName, e );
+        }
+        _bPrepared = true;
+    }
+
+    /**
+     * Close every idle context. Borrowed contexts are closed when they are released if the pool is full.
+     */
+    public void clear( )
+    {
+        PooledContext pooled;
+
+        while ( ( pooled = _idleContexts.pollLast( ) ) != null )
+        {
+            closeContext( pooled.getContext( ) );
+        }
+        _bPrepared = false;
+    }
+
+    /**
+     * Close every idle context and the borrowed ones when they are released, when the application stops
+     */
+    public void close( )
+    {
+        _bClosed = true;
+        clear( );
+    }
+
+    /**
+     * @return false if a context is opened and closed on each borrow
+     */
+    public boolean isEnabled( )
+    {
+        return _bEnabled;
+    }
+
+    /**
+     * @return the number of contexts currently borrowed
+     */
+    public int getActiveCount( )
+    {
+        return _bEnabled ? _nMaxSize - _permits.availablePermits( ) : 0;
+    }
+
+    /**
+     * @return the number of idle contexts
+     */
+    public int getIdleCount( )
+    {
+        return _idleContexts.size( );
+    }
+
+    /**
+     * @return the maximum number of borrowed contexts
+     */
+    public int getMaxSize( )
+    {
+        return _nMaxSize;
+    }
+
+    private void acquirePermit( ) throws NamingException
+    {
+        try
+        {
+            if ( !_permits.tryAcquire( _lBorrowTimeout, TimeUnit.MILLISECONDS ) )
+            {
+                throw new LdapPoolExhaustedException( "Timeout waiting for a connection from the LDAP pool " + _strName );
+            }
+        }
+        catch( InterruptedException e )
+        {
+            Thread.currentThread( ).interrupt( );
+            throw new NamingException( "Interrupted while waiting for a connection from the LDAP pool " + _strName );
+        }
+    }
+
+    private void evictIdleContexts( )
+    {
+        long lNow = System.currentTimeMillis( );
+        Iterator<PooledContext> it = _idleContexts.descendingIterator( );
+
+        while ( it.hasNext( ) && _idleContexts.size( ) > _nMinSize )
+        {
+            PooledContext pooled = it.next( );
+
+            if ( isExpired( pooled, lNow ) && _idleContexts.remove( pooled ) )
+            {
+                closeContext( pooled.getContext( ) );
+            }
+        }
+    }
+
+    private boolean isCurrent( Object version )
+    {
+        return version == _contextFactory.getVersion( );
+    }
+
+    private boolean isExpired( PooledContext pooled, long lNow )
+    {
+        return _lMaxIdleTime > 0 && lNow - pooled.getLastUsed( ) > _lMaxIdleTime;
+    }
+
+    private boolean isValid( DirContext context )
+    {
+        try
+        {
+            context.getAttributes( "", VALIDATION_ATTRIBUTES );
+            return true;
+        }
+        catch( NamingException e )
+        {
+            AppLogService.debug( "Discarding stale LDAP connection from pool " + _strName + " : " + e.getMessage( ) );
+            return false;
+        }
+    }
+
+    private static void closeContext( DirContext context )
+    {
+        try
+        {
+            LdapUtil.freeContext( context );
+        }
+        catch( NamingException e )
+        {
+            AppLogService.error( "Unable to free ldap context ", e );
+        }
+        finally
+        {
+            LdapBindCredential.wipeEnvironment( context );
+        }
+    }
+
+    /**
+     * Idle context with the version of the settings it was opened with and its last release time
+     */
+    private static final class PooledContext
+    {
+        private final DirContext _context;
+        private final Object _version;
+        private final long _lLastUsed;
+
+        PooledContext( DirContext context, Object version )
+        {
+            _context = context;
+            _version = version;
+            _lLastUsed = System.currentTimeMillis( );
+        }
+
+        DirContext getContext( )
+        {
+            return _context;
+        }
+
+        Object getVersion( )
+        {
+            return _version;
+        }
+
+        long getLastUsed( )
+        {
+            return _lLastUsed;
+        }
+    }
+}
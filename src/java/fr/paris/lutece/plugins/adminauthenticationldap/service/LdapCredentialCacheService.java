@@ -0,0 +1,229 @@
+/*
+ * Copyright (c) 2002-2021, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.adminauthenticationldap.service;
+
+import fr.paris.lutece.portal.service.util.AppLogService;
+import fr.paris.lutece.portal.service.util.AppPropertiesService;
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+/**
+ * Short-lived cache of the credentials recently checked by the directory.
+ * <p>
+ * Only a salted PBKDF2 hash of each password is kept, with the result of its login. A login whose password matches a fresh entry succeeds without
+ * contacting the directory, which absorbs the repeated logins of a user and lets them log in again during a short outage. An entry is removed when the
+ * directory rejects the credentials of the user and when the synchronization sees the user change. The cache is disabled by default.
+ * </p>
+ */
+public final class LdapCredentialCacheService
+{
+    private static final String PROPERTY_ENABLED = "adminauthenticationldap.credentialCache.enabled";
+    private static final String PROPERTY_TTL = "adminauthenticationldap.credentialCache.ttl";
+    private static final String PROPERTY_ITERATIONS = "adminauthenticationldap.credentialCache.iterations";
+    private static final String PROPERTY_MAX_SIZE = "adminauthenticationldap.credentialCache.maxSize";
+    private static final String ALGORITHM = "PBKDF2WithHmacSHA256";
+    private static final int SALT_LENGTH = 16;
+    private static final int HASH_LENGTH = 256;
+
+    private static LdapCredentialCacheService _singleton = new LdapCredentialCacheService( );
+
+    private final Map<String, Credential> _mapCredentials = new ConcurrentHashMap<>( );
+    private final SecureRandom _random = new SecureRandom( );
+    private final boolean _bEnabled = AppPropertiesService.getPropertyBoolean( PROPERTY_ENABLED, false );
+    private final long _lTtl = AppPropertiesService.getPropertyInt( PROPERTY_TTL, 300 ) * 1000L;
+    private final int _nIterations = AppPropertiesService.getPropertyInt( PROPERTY_ITERATIONS, 10000 );
+    private final int _nMaxSize = AppPropertiesService.getPropertyInt( PROPERTY_MAX_SIZE, 1000 );
+
+    /**
+     * Private constructor
+     */
+    private LdapCredentialCacheService( )
+    {
+    }
+
+    /**
+     * @return the unique instance
+     */
+    public static LdapCredentialCacheService getInstance( )
+    {
+        return _singleton;
+    }
+
+    /**
+     * @return true if the checked credentials are cached
+     */
+    public boolean isEnabled( )
+    {
+        return _bEnabled;
+    }
+
+    /**
+     * Find the result of a recent login with the same credentials
+     * 
+     * @param strAccessCode
+     *            the access code
+     * @param strPassword
+     *            the password
+     * @return the result of the login, or null if the credentials have not been checked recently or do not match
+     */
+    public LdapLoginResult get( String strAccessCode, String strPassword )
+    {
+        if ( !_bEnabled || strAccessCode == null || strPassword == null )
+        {
+            return null;
+        }
+
+        Credential credential = _mapCredentials.get( strAccessCode );
+        if ( credential == null )
+        {
+            return null;
+        }
+        if ( isExpired( credential, System.currentTimeMillis( ) ) )
+        {
+            _mapCredentials.remove( strAccessCode, credential );
+            return null;
+        }
+
+        byte [ ] hash = hash( strPassword, credential._salt );
+
+        return ( hash != null && MessageDigest.isEqual( hash, credential._hash ) ) ? credential._result : null;
+    }
+
+    /**
+     * Remember credentials the directory has just accepted
+     * 
+     * @param strAccessCode
+     *            the access code
+     * @param strPassword
+     *            the password
+     * @param result
+     *            the result of the login
+     */
+    public void put( String strAccessCode, String strPassword, LdapLoginResult result )
+    {
+        if ( !_bEnabled || strAccessCode == null || strPassword == null )
+        {
+            return;
+        }
+
+        if ( _mapCredentials.size( ) >= _nMaxSize )
+        {
+            long lNow = System.currentTimeMillis( );
+            _mapCredentials.values( ).removeIf( credential -> isExpired( credential, lNow ) );
+            if ( _mapCredentials.size( ) >= _nMaxSize )
+            {
+                return;
+            }
+        }
+
+        byte [ ] salt = new byte [ SALT_LENGTH];
+        _random.nextBytes( salt );
+        byte [ ] hash = hash( strPassword, salt );
+        if ( hash != null )
+        {
+            _mapCredentials.put( strAccessCode, new Credential( salt, hash, result, System.currentTimeMillis( ) ) );
+        }
+    }
+
+    /**
+     * Forget the credentials of a user
+     * 
+     * @param strAccessCode
+     *            the access code
+     */
+    public void invalidate( String strAccessCode )
+    {
+        if ( strAccessCode != null )
+        {
+            _mapCredentials.remove( strAccessCode );
+        }
+    }
+
+    /**
+     * Forget all the credentials
+     */
+    public void clear( )
+    {
+        _mapCredentials.clear( );
+    }
+
+    private boolean isExpired( Credential credential, long lNow )
+    {
+        return lNow - credential._lCheckTime >= _lTtl;
+    }
+
+    private byte [ ] hash( String strPassword, byte [ ] salt )
+    {
+        PBEKeySpec spec = new PBEKeySpec( strPassword.toCharArray( ), salt, _nIterations, HASH_LENGTH );
+        try
+        {
+            return SecretKeyFactory.getInstance( ALGORITHM ).generateSecret( spec ).getEncoded( );
+        }
+        catch( GeneralSecurityException e )
+        {
+            AppLogService.error( "Unable to hash the credentials with " + ALGORITHM, e );
+            return null;
+        }
+        finally
+        {
+            spec.clearPassword( );
+        }
+    }
+
+    /**
+     * Hash of checked credentials, with the result of their login
+     */
+    private static final class Credential
+    {
+        private final byte [ ] _salt;
+        private final byte [ ] _hash;
+        private final LdapLoginResult _result;
+        private final long _lCheckTime;
+
+        Credential( byte [ ] salt, byte [ ] hash, LdapLoginResult result, long lCheckTime )
+        {
+            _salt = salt;
+            _hash = hash;
+            _result = result;
+            _lCheckTime = lCheckTime;
+        }
+    }
+}
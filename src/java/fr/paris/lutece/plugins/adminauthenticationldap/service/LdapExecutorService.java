@@ -0,0 +1,243 @@
+/*
+ * Copyright (c) 2002-2021, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.adminauthenticationldap.service;
+
+import fr.paris.lutece.portal.service.util.AppLogService;
+import fr.paris.lutece.portal.service.util.AppPropertiesService;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Executor of the asynchronous directory operations.
+ * <p>
+ * The operations run on a bounded pool, so that a slow directory cannot exhaust the threads of the application : when the pool and its queue are full the
+ * returned future fails with a {@link RejectedExecutionException}. An operation which does not complete in time is interrupted and its future fails with a
+ * {@link TimeoutException}.
+ * </p>
+ */
+public final class LdapExecutorService
+{
+    private static final String PROPERTY_THREADS = "adminauthenticationldap.async.threads";
+    private static final String PROPERTY_QUEUE_CAPACITY = "adminauthenticationldap.async.queueCapacity";
+    private static final String PROPERTY_VIRTUAL_THREADS = "adminauthenticationldap.async.virtualThreads";
+    private static final String PROPERTY_TIMEOUT = "adminauthenticationldap.async.timeout";
+
+    private static LdapExecutorService _singleton = new LdapExecutorService( );
+
+    private final ThreadPoolExecutor _executor;
+    private final ScheduledExecutorService _timer;
+    private final long _lTimeout;
+
+    /**
+     * Private constructor
+     */
+    private LdapExecutorService( )
+    {
+        int nThreads = Math.max( 1, AppPropertiesService.getPropertyInt( PROPERTY_THREADS, 16 ) );
+        int nQueueCapacity = Math.max( 1, AppPropertiesService.getPropertyInt( PROPERTY_QUEUE_CAPACITY, 256 ) );
+        boolean bVirtualThreads = AppPropertiesService.getPropertyBoolean( PROPERTY_VIRTUAL_THREADS, false );
+
+        _executor = new ThreadPoolExecutor( nThreads, nThreads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<>( nQueueCapacity ),
+                getThreadFactory( bVirtualThreads, "adminauthenticationldap-async-" ) );
+        _executor.allowCoreThreadTimeOut( true );
+        _timer = Executors.newSingleThreadScheduledExecutor( getThreadFactory( false, "adminauthenticationldap-timeout-" ) );
+        _lTimeout = AppPropertiesService.getPropertyInt( PROPERTY_TIMEOUT, 10000 );
+    }
+
+    /**
+     * @return the unique instance
+     */
+    public static LdapExecutorService getInstance( )
+    {
+        return _singleton;
+    }
+
+    /**
+     * Run an operation with the configured timeout
+     * 
+     * @param <T>
+     *            the result type
+     * @param operation
+     *            the operation
+     * @return the future result
+     */
+    public <T> CompletableFuture<T> submit( Callable<T> operation )
+    {
+        return submit( operation, _lTimeout );
+    }
+
+    /**
+     * Run an operation. Cancelling the returned future interrupts the operation.
+     * 
+     * @param <T>
+     *            the result type
+     * @param operation
+     *            the operation
+     * @param lTimeout
+     *            the timeout in milliseconds, 0 for none
+     * @return the future result
+     */
+    public <T> CompletableFuture<T> submit( Callable<T> operation, long lTimeout )
+    {
+        CompletableFuture<T> result = new CompletableFuture<>( );
+        FutureTask<T> task = new FutureTask<T>( operation )
+        {
+            @Override
+            protected void set( T value )
+            {
+                super.set( value );
+                result.complete( value );
+            }
+
+            @Override
+            protected void setException( Throwable t )
+            {
+                super.setException( t );
+                result.completeExceptionally( t );
+            }
+        };
+
+        try
+        {
+            _executor.execute( task );
+        }
+        catch( RejectedExecutionException e )
+        {
+            result.completeExceptionally( e );
+            return result;
+        }
+
+        if ( lTimeout > 0 )
+        {
+            ScheduledFuture<?> timeout = _timer.schedule( ( ) -> {
+                result.completeExceptionally( new TimeoutException( "LDAP operation timed out after " + lTimeout + " ms" ) );
+            }, lTimeout, TimeUnit.MILLISECONDS );
+            result.whenComplete( ( value, t ) -> timeout.cancel( false ) );
+        }
+        // A timeout or a cancellation by the caller stops the operation
+        result.whenComplete( ( value, t ) -> {
+            if ( t != null )
+            {
+                task.cancel( true );
+            }
+        } );
+
+        return result;
+    }
+
+    /**
+     * Run a short task periodically on the timer thread, until the returned future is cancelled. The task must not block : it delays the timeouts of the
+     * operations.
+     * 
+     * @param task
+     *            the task
+     * @param lPeriod
+     *            the period in milliseconds, the first run starting at once
+     * @return the future to cancel to stop the task
+     */
+    public ScheduledFuture<?> scheduleAtFixedRate( Runnable task, long lPeriod )
+    {
+        return _timer.scheduleAtFixedRate( task, 0, lPeriod, TimeUnit.MILLISECONDS );
+    }
+
+    /**
+     * @return the number of operations running
+     */
+    public int getActiveCount( )
+    {
+        return _executor.getActiveCount( );
+    }
+
+    /**
+     * @return the number of operations waiting for a thread
+     */
+    public int getQueueSize( )
+    {
+        return _executor.getQueue( ).size( );
+    }
+
+    /**
+     * Stop the threads, the operations running are interrupted
+     */
+    public void shutdown( )
+    {
+        _executor.shutdownNow( );
+        _timer.shutdownNow( );
+    }
+
+    /**
+     * Create the factory of the threads used by the plugin
+     * 
+     * @param bVirtualThreads
+     *            true to create virtual threads when the JVM provides them
+     * @param strNamePrefix
+     *            the prefix of the names of the platform threads
+     * @return the thread factory
+     */
+    public static ThreadFactory getThreadFactory( boolean bVirtualThreads, String strNamePrefix )
+    {
+        if ( bVirtualThreads )
+        {
+            try
+            {
+                // Thread.ofVirtual( ).factory( ) through reflection : the plugin is still built for JVMs without virtual threads
+                Object builder = Thread.class.getMethod( "ofVirtual" ).invoke( null );
+                return (ThreadFactory) Class.forName( "java.lang.Thread$Builder" ).getMethod( "factory" ).invoke( builder );
+            }
+            catch( ReflectiveOperationException e )
+            {
+                AppLogService.info( "Virtual threads are not available on this JVM, " + strNamePrefix + "* threads are platform threads" );
+            }
+        }
+
+        AtomicInteger nThreadNumber = new AtomicInteger( );
+        return runnable -> {
+            Thread thread = new Thread( runnable, strNamePrefix + nThreadNumber.incrementAndGet( ) );
+            thread.setDaemon( true );
+            return thread;
+        };
+    }
+}
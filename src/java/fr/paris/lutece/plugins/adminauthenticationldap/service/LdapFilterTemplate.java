@@ -0,0 +1,215 @@
+/*
+ * Copyright (c) 2002-2021, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.adminauthenticationldap.service;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Search filter template compiled once, such as <code>(&amp;(sn={0})(givenName={1}))</code>.
+ * <p>
+ * The values inserted in the placeholders are escaped as required by RFC 4515, so that a <code>*</code> or a <code>(</code> typed by a user is searched
+ * literally instead of changing the meaning of the filter. The only wildcard which can be produced is the one appended by {@link #formatPrefixes(String...)}.
+ * Unlike {@link java.text.MessageFormat}, only the <code>{n}</code> placeholders are interpreted : quotes are kept as is.
+ * </p>
+ */
+public final class LdapFilterTemplate
+{
+    private static final char WILDCARD = '*';
+    private static final char [ ] HEX_DIGITS = "0123456789abcdef".toCharArray( );
+
+    private final String [ ] _literals;
+    private final int [ ] _argumentIndexes;
+    private final int _nLiteralLength;
+
+    private LdapFilterTemplate( String [ ] literals, int [ ] argumentIndexes )
+    {
+        _literals = literals;
+        _argumentIndexes = argumentIndexes;
+
+        int nLength = 0;
+        for ( String strLiteral : literals )
+        {
+            nLength += strLiteral.length( );
+        }
+        _nLiteralLength = nLength;
+    }
+
+    /**
+     * Compile a template
+     * 
+     * @param strTemplate
+     *            the template, with <code>{0}</code>, <code>{1}</code>... placeholders
+     * @return the compiled template
+     */
+    public static LdapFilterTemplate compile( String strTemplate )
+    {
+        List<String> listLiterals = new ArrayList<>( );
+        List<Integer> listIndexes = new ArrayList<>( );
+        int nStart = 0;
+        int nPosition = 0;
+
+        while ( ( nPosition = strTemplate.indexOf( '{', nPosition ) ) >= 0 )
+        {
+            int nEnd = strTemplate.indexOf( '}', nPosition );
+            if ( nEnd > nPosition + 1 && isDigits( strTemplate, nPosition + 1, nEnd ) )
+            {
+                listLiterals.add( strTemplate.substring( nStart, nPosition ) );
+                listIndexes.add( Integer.parseInt( strTemplate.substring( nPosition + 1, nEnd ) ) );
+                nStart = nEnd + 1;
+                nPosition = nStart;
+            }
+            else
+            {
+                nPosition++;
+            }
+        }
+        listLiterals.add( strTemplate.substring( nStart ) );
+
+        int [ ] argumentIndexes = new int [ listIndexes.size( )];
+        for ( int i = 0; i < argumentIndexes.length; i++ )
+        {
+            argumentIndexes [i] = listIndexes.get( i );
+        }
+
+        return new LdapFilterTemplate( listLiterals.toArray( new String [ listLiterals.size( )] ), argumentIndexes );
+    }
+
+    /**
+     * Build a filter matching the exact values
+     * 
+     * @param values
+     *            the values, a missing or null value is inserted as an empty string
+     * @return the filter
+     */
+    public String format( String... values )
+    {
+        return format( false, values );
+    }
+
+    /**
+     * Build a filter matching the values as prefixes : a wildcard is appended to every value, an empty value matching anything
+     * 
+     * @param values
+     *            the prefixes, may be null or empty
+     * @return the filter
+     */
+    public String formatPrefixes( String... values )
+    {
+        return format( true, values );
+    }
+
+    private String format( boolean bPrefix, String [ ] values )
+    {
+        int nLength = _nLiteralLength;
+        for ( int nIndex : _argumentIndexes )
+        {
+            String strValue = getValue( values, nIndex );
+            nLength += ( strValue == null ) ? 1 : strValue.length( ) + 1;
+        }
+
+        StringBuilder sb = new StringBuilder( nLength );
+        for ( int i = 0; i < _argumentIndexes.length; i++ )
+        {
+            sb.append( _literals [i] );
+            escape( sb, getValue( values, _argumentIndexes [i] ) );
+            if ( bPrefix )
+            {
+                sb.append( WILDCARD );
+            }
+        }
+        sb.append( _literals [_argumentIndexes.length] );
+
+        return sb.toString( );
+    }
+
+    /**
+     * Escape a value as an assertion value of a search filter (RFC 4515)
+     * 
+     * @param strValue
+     *            the value
+     * @return the escaped value
+     */
+    public static String escape( String strValue )
+    {
+        if ( strValue == null )
+        {
+            return "";
+        }
+        StringBuilder sb = new StringBuilder( strValue.length( ) + 8 );
+        escape( sb, strValue );
+        return sb.toString( );
+    }
+
+    private static void escape( StringBuilder sb, String strValue )
+    {
+        if ( strValue == null )
+        {
+            return;
+        }
+        for ( int i = 0; i < strValue.length( ); i++ )
+        {
+            char c = strValue.charAt( i );
+            switch( c )
+            {
+                case '*':
+                case '(':
+                case ')':
+                case '\\':
+                case '\u0000':
+                    sb.append( '\\' ).append( HEX_DIGITS [( c >> 4 ) & 0xF] ).append( HEX_DIGITS [c & 0xF] );
+                    break;
+                default:
+                    sb.append( c );
+            }
+        }
+    }
+
+    private static String getValue( String [ ] values, int nIndex )
+    {
+        return ( values != null && nIndex < values.length ) ? values [nIndex] : null;
+    }
+
+    private static boolean isDigits( String strTemplate, int nStart, int nEnd )
+    {
+        for ( int i = nStart; i < nEnd; i++ )
+        {
+            if ( !Character.isDigit( strTemplate.charAt( i ) ) )
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+}
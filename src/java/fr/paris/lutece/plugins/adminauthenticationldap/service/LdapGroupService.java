@@ -0,0 +1,477 @@
+/*
+ * Copyright (c) 2002-2021, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.adminauthenticationldap.service;
+
+import fr.paris.lutece.plugins.adminauthenticationldap.business.AdminLdapUser;
+import fr.paris.lutece.portal.business.rbac.AdminRoleHome;
+import fr.paris.lutece.portal.business.rbac.RBACRole;
+import fr.paris.lutece.portal.business.user.AdminUser;
+import fr.paris.lutece.portal.business.user.AdminUserHome;
+import fr.paris.lutece.portal.service.util.AppLogService;
+import fr.paris.lutece.portal.service.util.AppPropertiesService;
+import org.apache.commons.lang3.StringUtils;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.naming.InvalidNameException;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.SearchResult;
+import javax.naming.ldap.LdapName;
+import javax.naming.ldap.Rdn;
+
+/**
+ * Group membership resolved in memory.
+ * <p>
+ * All the groups are read with one paged search, then the authorized groups and the groups mapped to Lutece roles are expanded, nested groups included, into
+ * sets of member DNs. Checking the membership of a user is then a lookup in a set, instead of a <code>memberOf</code> clause evaluated by the server on every
+ * search, which only matches direct members. The sets are read again in the background when they are older than the refresh interval.
+ * </p>
+ * <p>
+ * When the groups cannot be read, they are not read again before the retry interval : until then nobody is authorized if they have never been read, and the
+ * previous sets are kept otherwise.
+ * </p>
+ * <p>
+ * On Active Directory, groups of more than 1500 members return their members in ranges, which are not read : such groups should be nested.
+ * </p>
+ */
+public final class LdapGroupService
+{
+    private static final String PROPERTY_ENABLED = "adminauthenticationldap.groups.enabled";
+    private static final String PROPERTY_AUTHORIZED_GROUPS = "adminauthenticationldap.groups.authorized";
+    private static final String PROPERTY_SEARCH_BASE = "adminauthenticationldap.groups.searchBase";
+    private static final String PROPERTY_SEARCH_FILTER = "adminauthenticationldap.groups.searchFilter";
+    private static final String PROPERTY_MEMBER_ATTRIBUTE = "adminauthenticationldap.groups.memberAttribute";
+    private static final String PROPERTY_REFRESH_INTERVAL = "adminauthenticationldap.groups.refreshInterval";
+    private static final String PROPERTY_RETRY_INTERVAL = "adminauthenticationldap.groups.retryInterval";
+    private static final String PREFIX_ROLE = "adminauthenticationldap.groups.role.";
+    private static final String PROPERTY_ROOT_DN_SEARCH_BASE = "adminauthenticationldap.ldap.rootBase";
+    private static final String PROPERTY_GROUP_FILTER = "adminauthenticationldap.ldap.userSearch.groupFilter";
+
+    private static final String DEFAULT_SEARCH_FILTER = "(|(objectClass=group)(objectClass=groupOfNames)(objectClass=groupOfUniqueNames))";
+    private static final String GROUP_SEPARATOR = ";";
+
+    private static LdapGroupService _singleton = new LdapGroupService( );
+
+    private final boolean _bEnabled;
+    private final Set<String> _authorizedGroups = new HashSet<>( );
+    private final Map<String, String> _mapRoleGroups = new LinkedHashMap<>( );
+    private final String _strSearchBase;
+    private final String _strSearchFilter;
+    private final String _strMemberAttribute;
+    private final long _lRefreshInterval;
+    private final long _lRetryInterval;
+    private final AtomicBoolean _bRefreshing = new AtomicBoolean( );
+    private volatile Membership _membership;
+    private volatile long _lLastFailure;
+
+    /**
+     * Private constructor
+     */
+    private LdapGroupService( )
+    {
+        _bEnabled = AppPropertiesService.getPropertyBoolean( PROPERTY_ENABLED, false );
+        String strRootBase = AppPropertiesService.getProperty( PROPERTY_ROOT_DN_SEARCH_BASE, "" );
+        _strSearchBase = AppPropertiesService.getProperty( PROPERTY_SEARCH_BASE, strRootBase );
+        _strSearchFilter = AppPropertiesService.getProperty( PROPERTY_SEARCH_FILTER, DEFAULT_SEARCH_FILTER );
+        _strMemberAttribute = AppPropertiesService.getProperty( PROPERTY_MEMBER_ATTRIBUTE, "member" );
+        _lRefreshInterval = AppPropertiesService.getPropertyInt( PROPERTY_REFRESH_INTERVAL, 300 ) * 1000L;
+        _lRetryInterval = AppPropertiesService.getPropertyInt( PROPERTY_RETRY_INTERVAL, 30 ) * 1000L;
+
+        // Without explicit groups, the group of the memberOf clause is kept
+        String strAuthorizedGroups = AppPropertiesService.getProperty( PROPERTY_AUTHORIZED_GROUPS, "" );
+        String strGroupFilter = AppPropertiesService.getProperty( PROPERTY_GROUP_FILTER, "" );
+        if ( StringUtils.isBlank( strAuthorizedGroups ) && StringUtils.isNotBlank( strGroupFilter ) )
+        {
+            strAuthorizedGroups = StringUtils.isNotEmpty( strRootBase ) ? strGroupFilter + "," + strRootBase : strGroupFilter;
+        }
+        for ( String strGroup : StringUtils.split( strAuthorizedGroups, GROUP_SEPARATOR ) )
+        {
+            if ( StringUtils.isNotBlank( strGroup ) )
+            {
+                _authorizedGroups.add( normalize( strGroup.trim( ) ) );
+            }
+        }
+
+        List<String> listRoleKeys = AppPropertiesService.getKeys( PREFIX_ROLE );
+        if ( _bEnabled && listRoleKeys != null )
+        {
+            for ( String strKey : listRoleKeys )
+            {
+                String strRole = strKey.substring( PREFIX_ROLE.length( ) );
+                String strGroup = AppPropertiesService.getProperty( strKey, "" ).trim( );
+                if ( StringUtils.isNotEmpty( strGroup ) )
+                {
+                    _mapRoleGroups.put( strRole, normalize( strGroup ) );
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the unique instance
+     */
+    public static LdapGroupService getInstance( )
+    {
+        return _singleton;
+    }
+
+    /**
+     * @return true if the membership is resolved in memory rather than by the searches
+     */
+    public boolean isEnabled( )
+    {
+        return _bEnabled;
+    }
+
+    /**
+     * @return true if groups are mapped to Lutece roles
+     */
+    public boolean hasRoleMapping( )
+    {
+        return !_mapRoleGroups.isEmpty( );
+    }
+
+    /**
+     * @return the keys of the roles given by the groups
+     */
+    public Set<String> getMappedRoles( )
+    {
+        return Collections.unmodifiableSet( _mapRoleGroups.keySet( ) );
+    }
+
+    /**
+     * Tell whether a user belongs to one of the authorized groups, directly or through nested groups
+     * 
+     * @param strUserDn
+     *            the DN of the user
+     * @return true if the user is authorized, or if no group is required. False if the groups could not be read.
+     */
+    public boolean isAuthorized( String strUserDn )
+    {
+        if ( !_bEnabled || _authorizedGroups.isEmpty( ) )
+        {
+            return true;
+        }
+        Membership membership = getMembership( );
+
+        return membership != null && strUserDn != null && membership._authorizedMembers.contains( normalize( strUserDn ) );
+    }
+
+    /**
+     * Roles given to a user by the groups it belongs to
+     * 
+     * @param strUserDn
+     *            the DN of the user
+     * @return the roles, by key, or null if the groups could not be read : the membership is then unknown and the roles must be left as they are
+     */
+    public Map<String, RBACRole> getRoles( String strUserDn )
+    {
+        Map<String, RBACRole> mapRoles = new HashMap<>( );
+        if ( !hasRoleMapping( ) || strUserDn == null )
+        {
+            return mapRoles;
+        }
+        Membership membership = getMembership( );
+        if ( membership == null )
+        {
+            return null;
+        }
+
+        String strNormalizedDn = normalize( strUserDn );
+        for ( Map.Entry<String, Set<String>> roleMembers : membership._mapRoleMembers.entrySet( ) )
+        {
+            if ( roleMembers.getValue( ).contains( strNormalizedDn ) )
+            {
+                RBACRole role = new RBACRole( );
+                role.setKey( roleMembers.getKey( ) );
+                mapRoles.put( roleMembers.getKey( ), role );
+            }
+        }
+        return mapRoles;
+    }
+
+    /**
+     * @param user
+     *            a user read from the directory
+     * @return false if the groups of the user could not be read : its roles must not be synchronized
+     */
+    public boolean hasKnownRoles( AdminUser user )
+    {
+        return !( user instanceof AdminLdapUser ) || !( (AdminLdapUser) user ).isRolesUnknown( );
+    }
+
+    /**
+     * Give a user the mapped roles of its groups and take back the mapped roles of the groups it has left. The roles which are not mapped are left as they
+     * are.
+     * 
+     * @param nUserId
+     *            the user id
+     * @param roleKeys
+     *            the keys of the roles given by the groups of the user
+     */
+    public void synchronizeRoles( int nUserId, Collection<String> roleKeys )
+    {
+        if ( !hasRoleMapping( ) )
+        {
+            return;
+        }
+
+        Set<String> currentRoles = AdminUserHome.getRolesListForUser( nUserId ).keySet( );
+        for ( String strRole : _mapRoleGroups.keySet( ) )
+        {
+            boolean bMember = roleKeys.contains( strRole );
+            if ( bMember && !currentRoles.contains( strRole ) )
+            {
+                if ( AdminRoleHome.checkExistRole( strRole ) )
+                {
+                    AdminUserHome.createRoleForUser( nUserId, strRole );
+                }
+                else
+                {
+                    AppLogService.error( "LDAP group mapped to the unknown role " + strRole );
+                }
+            }
+            else if ( !bMember && currentRoles.contains( strRole ) )
+            {
+                AdminUserHome.removeRoleForUser( nUserId, strRole );
+            }
+        }
+    }
+
+    /**
+     * Read the groups again
+     * 
+     * @return true if the groups have been read, false if the previous ones are kept
+     */
+    public boolean refresh( )
+    {
+        Map<String, List<String>> mapGroupMembers = new HashMap<>( );
+        boolean bComplete = LdapService.forEachSearchResultPage( _strSearchBase, _strSearchFilter, new String [ ] {
+                _strMemberAttribute
+        }, srPage -> {
+            for ( SearchResult sr : srPage )
+            {
+                mapGroupMembers.put( normalize( sr.getNameInNamespace( ) ), getMembers( sr ) );
+            }
+        } );
+
+        if ( !bComplete )
+        {
+            _lLastFailure = System.currentTimeMillis( );
+            AppLogService.error( "Unable to read the LDAP groups, the previous membership is kept, next attempt in " + ( _lRetryInterval / 1000 ) + " s" );
+            return false;
+        }
+
+        Set<String> authorizedMembers = new HashSet<>( );
+        for ( String strGroup : _authorizedGroups )
+        {
+            expand( strGroup, mapGroupMembers, authorizedMembers );
+        }
+        Map<String, Set<String>> mapRoleMembers = new HashMap<>( );
+        for ( Map.Entry<String, String> roleGroup : _mapRoleGroups.entrySet( ) )
+        {
+            Set<String> members = new HashSet<>( );
+            expand( roleGroup.getValue( ), mapGroupMembers, members );
+            mapRoleMembers.put( roleGroup.getKey( ), members );
+        }
+
+        _membership = new Membership( authorizedMembers, mapRoleMembers, System.currentTimeMillis( ) );
+        AppLogService.info( "LDAP groups read : " + mapGroupMembers.size( ) + " groups, " + authorizedMembers.size( ) + " authorized users" );
+        return true;
+    }
+
+    /**
+     * Forget the groups read, they are read again on the next check
+     */
+    public void clear( )
+    {
+        _membership = null;
+    }
+
+    /**
+     * @return the membership, read at once the first time, then refreshed in the background when it is stale. Null if it has never been read : the
+     *         callers do not wait for another reading of the groups until the retry interval has elapsed.
+     */
+    private Membership getMembership( )
+    {
+        Membership membership = _membership;
+        if ( membership == null )
+        {
+            if ( isRetryDelayed( ) )
+            {
+                return null;
+            }
+            synchronized( this )
+            {
+                if ( _membership == null && !isRetryDelayed( ) )
+                {
+                    refresh( );
+                }
+                return _membership;
+            }
+        }
+
+        if ( System.currentTimeMillis( ) - membership._lLoadTime > _lRefreshInterval && !isRetryDelayed( ) && _bRefreshing.compareAndSet( false, true ) )
+        {
+            LdapExecutorService.getInstance( ).submit( this::refresh, 0 ).whenComplete( ( bRefreshed, e ) -> _bRefreshing.set( false ) );
+        }
+        return membership;
+    }
+
+    /**
+     * @return true if the last reading of the groups failed less than the retry interval ago
+     */
+    private boolean isRetryDelayed( )
+    {
+        return System.currentTimeMillis( ) - _lLastFailure < _lRetryInterval;
+    }
+
+    /**
+     * Add the members of a group and of its nested groups
+     */
+    private static void expand( String strGroup, Map<String, List<String>> mapGroupMembers, Set<String> members )
+    {
+        Set<String> visitedGroups = new HashSet<>( );
+        Deque<String> groupsToVisit = new ArrayDeque<>( );
+        groupsToVisit.push( strGroup );
+
+        while ( !groupsToVisit.isEmpty( ) )
+        {
+            String strCurrentGroup = groupsToVisit.pop( );
+            if ( !visitedGroups.add( strCurrentGroup ) )
+            {
+                continue;
+            }
+            List<String> listMembers = mapGroupMembers.get( strCurrentGroup );
+            if ( listMembers == null )
+            {
+                AppLogService.debug( "LDAP group not found : " + strCurrentGroup );
+                continue;
+            }
+            for ( String strMember : listMembers )
+            {
+                if ( mapGroupMembers.containsKey( strMember ) )
+                {
+                    groupsToVisit.push( strMember );
+                }
+                else
+                {
+                    members.add( strMember );
+                }
+            }
+        }
+    }
+
+    private List<String> getMembers( SearchResult sr )
+    {
+        List<String> listMembers = new ArrayList<>( );
+        Attribute attribute = ( sr.getAttributes( ) != null ) ? sr.getAttributes( ).get( _strMemberAttribute ) : null;
+        if ( attribute == null )
+        {
+            return listMembers;
+        }
+
+        try
+        {
+            NamingEnumeration<?> values = attribute.getAll( );
+            while ( values.hasMore( ) )
+            {
+                listMembers.add( normalize( String.valueOf( values.next( ) ) ) );
+            }
+        }
+        catch( NamingException e )
+        {
+            AppLogService.error( "Unable to read the members of the LDAP group " + sr.getNameInNamespace( ), e );
+        }
+        return listMembers;
+    }
+
+    /**
+     * Canonical form of a DN, so that DNs differing by case or spacing are equal
+     */
+    static String normalize( String strDn )
+    {
+        try
+        {
+            StringBuilder sb = new StringBuilder( strDn.length( ) );
+            List<Rdn> listRdns = new LdapName( strDn ).getRdns( );
+            // The RDNs are listed from the root
+            for ( int i = listRdns.size( ) - 1; i >= 0; i-- )
+            {
+                Rdn rdn = listRdns.get( i );
+                if ( sb.length( ) > 0 )
+                {
+                    sb.append( ',' );
+                }
+                sb.append( rdn.getType( ) ).append( '=' ).append( Rdn.escapeValue( rdn.getValue( ) ) );
+            }
+            return sb.toString( ).toLowerCase( Locale.ROOT );
+        }
+        catch( InvalidNameException | IllegalArgumentException e )
+        {
+            return strDn.trim( ).toLowerCase( Locale.ROOT );
+        }
+    }
+
+    /**
+     * Immutable result of a reading of the groups
+     */
+    private static final class Membership
+    {
+        private final Set<String> _authorizedMembers;
+        private final Map<String, Set<String>> _mapRoleMembers;
+        private final long _lLoadTime;
+
+        Membership( Set<String> authorizedMembers, Map<String, Set<String>> mapRoleMembers, long lLoadTime )
+        {
+            _authorizedMembers = authorizedMembers;
+            _mapRoleMembers = mapRoleMembers;
+            _lLoadTime = lLoadTime;
+        }
+    }
+}
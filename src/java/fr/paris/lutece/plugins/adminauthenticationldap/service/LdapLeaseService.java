@@ -0,0 +1,242 @@
+/*
+ * Copyright (c) 2002-2021, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.adminauthenticationldap.service;
+
+import fr.paris.lutece.plugins.adminauthenticationldap.business.LdapLease;
+import fr.paris.lutece.plugins.adminauthenticationldap.business.LdapLeaseHome;
+import fr.paris.lutece.portal.service.util.AppException;
+import fr.paris.lutece.portal.service.util.AppLogService;
+import fr.paris.lutece.portal.service.util.AppPropertiesService;
+import org.apache.commons.lang3.StringUtils;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+
+/**
+ * Leases taken in the shared database so that a task scheduled on every node of a cluster only runs on one of them.
+ * <p>
+ * A lease is given to a node if it already holds it or if it has expired, by a single conditional update. Once taken, a heartbeat renews it every third of
+ * the lease duration for as long as the node is up, so that the same node runs the task from one run to the next however far apart they are. If the node
+ * stops cleanly it releases the lease, if it dies the lease expires : another node then takes it over. The expiration times are computed with the clock of
+ * each node : the lease duration must be much longer than the clock skew between the nodes.
+ * </p>
+ */
+public final class LdapLeaseService
+{
+    /** Lease of the users import daemon */
+    public static final String LEASE_IMPORT_DAEMON = "import_daemon";
+
+    private static final String PROPERTY_ENABLED = "adminauthenticationldap.cluster.enabled";
+    private static final String PROPERTY_LEASE_DURATION = "adminauthenticationldap.cluster.leaseDuration";
+    private static final String PROPERTY_NODE_ID = "adminauthenticationldap.cluster.nodeId";
+
+    private static LdapLeaseService _singleton = new LdapLeaseService( );
+
+    private final boolean _bEnabled = AppPropertiesService.getPropertyBoolean( PROPERTY_ENABLED, false );
+    private final long _lLeaseDuration = AppPropertiesService.getPropertyInt( PROPERTY_LEASE_DURATION, 600 ) * 1000L;
+    private final String _strNodeId;
+    private final Map<String, ScheduledFuture<?>> _mapHeartbeats = new ConcurrentHashMap<>( );
+
+    /**
+     * Private constructor
+     */
+    private LdapLeaseService( )
+    {
+        String strNodeId = AppPropertiesService.getProperty( PROPERTY_NODE_ID, "" );
+        _strNodeId = StringUtils.isNotBlank( strNodeId ) ? strNodeId.trim( ) : getDefaultNodeId( );
+    }
+
+    /**
+     * @return the unique instance
+     */
+    public static LdapLeaseService getInstance( )
+    {
+        return _singleton;
+    }
+
+    /**
+     * @return true if the nodes coordinate through leases, false if each node works alone
+     */
+    public boolean isEnabled( )
+    {
+        return _bEnabled;
+    }
+
+    /**
+     * @return the identifier of this node
+     */
+    public String getNodeId( )
+    {
+        return _strNodeId;
+    }
+
+    /**
+     * @return the time in milliseconds a lease is held without being renewed
+     */
+    public long getLeaseDuration( )
+    {
+        return _lLeaseDuration;
+    }
+
+    /**
+     * Take or renew a lease
+     * 
+     * @param strLeaseName
+     *            the lease name
+     * @return true if this node holds the lease for the lease duration, false if another node holds it or the database could not be reached
+     */
+    public boolean tryAcquire( String strLeaseName )
+    {
+        long lNow = System.currentTimeMillis( );
+        long lExpirationTime = lNow + _lLeaseDuration;
+
+        try
+        {
+            LdapLeaseHome.updateIfAvailable( strLeaseName, _strNodeId, lExpirationTime, lNow );
+            LdapLease lease = LdapLeaseHome.findByName( strLeaseName );
+            if ( lease == null )
+            {
+                lease = createLease( strLeaseName, lExpirationTime );
+            }
+
+            // The expiration time tells this update apart from an older one of the same node
+            return lease != null && _strNodeId.equals( lease.getOwner( ) ) && lease.getExpirationTime( ) == lExpirationTime;
+        }
+        catch( AppException e )
+        {
+            // Without the database no node can tell which one holds the lease : none works
+            AppLogService.error( "Unable to take the lease " + strLeaseName, e );
+            return false;
+        }
+    }
+
+    /**
+     * Keep a lease taken by this node from now on : it is renewed in the background until {@link #release(String)} is called. Nothing is done if the
+     * heartbeat already runs.
+     * 
+     * @param strLeaseName
+     *            the lease name
+     */
+    public void startHeartbeat( String strLeaseName )
+    {
+        if ( !_bEnabled )
+        {
+            return;
+        }
+        _mapHeartbeats.computeIfAbsent( strLeaseName, name -> LdapExecutorService.getInstance( ).scheduleAtFixedRate( ( ) -> {
+            try
+            {
+                if ( !tryAcquire( name ) )
+                {
+                    AppLogService.debug( "Lease " + name + " held by another node" );
+                }
+            }
+            catch( RuntimeException e )
+            {
+                // An exception would cancel the heartbeat
+                AppLogService.error( "Unable to renew the lease " + name, e );
+            }
+        }, Math.max( 1000L, _lLeaseDuration / 3 ) ) );
+    }
+
+    /**
+     * Stop the heartbeat of a lease and give it up so that another node can take it at once
+     * 
+     * @param strLeaseName
+     *            the lease name
+     */
+    public void release( String strLeaseName )
+    {
+        ScheduledFuture<?> heartbeat = _mapHeartbeats.remove( strLeaseName );
+        if ( heartbeat != null )
+        {
+            heartbeat.cancel( false );
+        }
+        if ( !_bEnabled )
+        {
+            return;
+        }
+        try
+        {
+            LdapLeaseHome.release( strLeaseName, _strNodeId );
+        }
+        catch( AppException e )
+        {
+            AppLogService.error( "Unable to release the lease " + strLeaseName, e );
+        }
+    }
+
+    /**
+     * @param strLeaseName
+     *            the lease name
+     * @return the lease, or null if it has never been taken
+     */
+    public LdapLease getLease( String strLeaseName )
+    {
+        return LdapLeaseHome.findByName( strLeaseName );
+    }
+
+    private LdapLease createLease( String strLeaseName, long lExpirationTime )
+    {
+        try
+        {
+            LdapLeaseHome.create( strLeaseName, _strNodeId, lExpirationTime );
+        }
+        catch( AppException e )
+        {
+            // Another node has created it first
+            AppLogService.debug( "Lease " + strLeaseName + " created by another node : " + e.getMessage( ) );
+        }
+        return LdapLeaseHome.findByName( strLeaseName );
+    }
+
+    private static String getDefaultNodeId( )
+    {
+        String strHost;
+        try
+        {
+            strHost = InetAddress.getLocalHost( ).getHostName( );
+        }
+        catch( UnknownHostException e )
+        {
+            strHost = "unknown";
+        }
+        // Several webapps may run on the same host
+        return strHost + "-" + UUID.randomUUID( ).toString( ).substring( 0, 8 );
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2002-2021, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.adminauthenticationldap.service;
+
+import java.util.Map;
+
+/**
+ * JMX view of the metrics of the plugin
+ */
+public interface LdapMetricsMXBean
+{
+    /**
+     * @return the value of the counters, by name
+     */
+    Map<String, Long> getCounters( );
+
+    /**
+     * @return the statistics of the timed operations, by name
+     */
+    Map<String, LdapTimerSnapshot> getTimers( );
+
+    /**
+     * @return the number of service account connections in use
+     */
+    int getPoolActiveCount( );
+
+    /**
+     * @return the number of idle service account connections
+     */
+    int getPoolIdleCount( );
+
+    /**
+     * @return the maximum number of service account connections
+     */
+    int getPoolMaxSize( );
+
+    /**
+     * @return the number of connections checking the credentials of a user
+     */
+    int getBindPoolActiveCount( );
+
+    /**
+     * @return the number of idle connections checking the credentials of the users
+     */
+    int getBindPoolIdleCount( );
+
+    /**
+     * @return the number of asynchronous operations running
+     */
+    int getAsyncActiveCount( );
+
+    /**
+     * @return the number of asynchronous operations waiting for a thread
+     */
+    int getAsyncQueueSize( );
+
+    /**
+     * @return the state of the circuit breaker
+     */
+    String getCircuitBreakerState( );
+
+    /**
+     * Reset the counters and the timers
+     */
+    void reset( );
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright (c) 2002-2021, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.adminauthenticationldap.service;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Default registry of the metrics, kept in memory. The durations are counted in a fixed histogram, from which the percentiles are estimated.
+ */
+public class LdapMetricsRegistry implements ILdapMetricsRegistry
+{
+    // Upper bounds of the histogram buckets in milliseconds, the last bucket is unbounded
+    private static final long [ ] BUCKET_BOUNDS = {
+            1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 30000
+    };
+    private static final double NANOS_PER_MILLI = 1000000d;
+
+    private final ConcurrentMap<String, LongAdder> _mapCounters = new ConcurrentHashMap<>( );
+    private final ConcurrentMap<String, Timer> _mapTimers = new ConcurrentHashMap<>( );
+
+    @Override
+    public void recordTime( String strName, long lDurationNanos, boolean bSuccess )
+    {
+        _mapTimers.computeIfAbsent( strName, k -> new Timer( ) ).record( lDurationNanos, bSuccess );
+    }
+
+    @Override
+    public void increment( String strName, long lAmount )
+    {
+        _mapCounters.computeIfAbsent( strName, k -> new LongAdder( ) ).add( lAmount );
+    }
+
+    @Override
+    public Map<String, Long> getCounters( )
+    {
+        Map<String, Long> mapCounters = new TreeMap<>( );
+        _mapCounters.forEach( ( strName, counter ) -> mapCounters.put( strName, counter.sum( ) ) );
+        return mapCounters;
+    }
+
+    @Override
+    public Map<String, LdapTimerSnapshot> getTimers( )
+    {
+        Map<String, LdapTimerSnapshot> mapTimers = new TreeMap<>( );
+        _mapTimers.forEach( ( strName, timer ) -> mapTimers.put( strName, timer.snapshot( ) ) );
+        return mapTimers;
+    }
+
+    @Override
+    public void reset( )
+    {
+        _mapCounters.clear( );
+        _mapTimers.clear( );
+    }
+
+    /**
+     * Lock-free latency histogram
+     */
+    private static final class Timer
+    {
+        private final LongAdder _count = new LongAdder( );
+        private final LongAdder _failures = new LongAdder( );
+        private final LongAdder _totalNanos = new LongAdder( );
+        private final LongAccumulator _maxNanos = new LongAccumulator( Math::max, 0 );
+        private final LongAdder [ ] _buckets = new LongAdder [ BUCKET_BOUNDS.length + 1];
+
+        Timer( )
+        {
+            for ( int i = 0; i < _buckets.length; i++ )
+            {
+                _buckets [i] = new LongAdder( );
+            }
+        }
+
+        void record( long lDurationNanos, boolean bSuccess )
+        {
+            long lDuration = Math.max( 0, lDurationNanos );
+            _count.increment( );
+            if ( !bSuccess )
+            {
+                _failures.increment( );
+            }
+            _totalNanos.add( lDuration );
+            _maxNanos.accumulate( lDuration );
+
+            int nBucket = 0;
+            while ( nBucket < BUCKET_BOUNDS.length && lDuration > BUCKET_BOUNDS [nBucket] * 1000000L )
+            {
+                nBucket++;
+            }
+            _buckets [nBucket].increment( );
+        }
+
+        LdapTimerSnapshot snapshot( )
+        {
+            long [ ] counts = new long [ _buckets.length];
+            long lTotal = 0;
+            for ( int i = 0; i < counts.length; i++ )
+            {
+                counts [i] = _buckets [i].sum( );
+                lTotal += counts [i];
+            }
+            double dMax = _maxNanos.get( ) / NANOS_PER_MILLI;
+            double dMean = ( lTotal == 0 ) ? 0 : _totalNanos.sum( ) / NANOS_PER_MILLI / _count.sum( );
+
+            return new LdapTimerSnapshot( _count.sum( ), _failures.sum( ), dMean, dMax, percentile( counts, lTotal, 0.50, dMax ),
+                    percentile( counts, lTotal, 0.95, dMax ), percentile( counts, lTotal, 0.99, dMax ) );
+        }
+
+        /**
+         * Upper bound of the bucket holding the percentile, capped by the maximum
+         */
+        private static double percentile( long [ ] counts, long lTotal, double dRank, double dMax )
+        {
+            if ( lTotal == 0 )
+            {
+                return 0;
+            }
+            long lThreshold = (long) Math.ceil( lTotal * dRank );
+            long lCumulated = 0;
+            for ( int i = 0; i < BUCKET_BOUNDS.length; i++ )
+            {
+                lCumulated += counts [i];
+                if ( lCumulated >= lThreshold )
+                {
+                    return Math.min( BUCKET_BOUNDS [i], dMax );
+                }
+            }
+            return dMax;
+        }
+    }
+}
@@ -0,0 +1,303 @@
+/*
+ * Copyright (c) 2002-2021, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.adminauthenticationldap.service;
+
+import fr.paris.lutece.portal.service.spring.SpringContextService;
+import fr.paris.lutece.portal.service.util.AppLogService;
+import fr.paris.lutece.portal.service.util.AppPropertiesService;
+
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.Map;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Metrics of the directory operations : durations, counters and failures by cause. They are recorded in a pluggable {@link ILdapMetricsRegistry} and
+ * exposed through JMX.
+ */
+public final class LdapMetricsService implements LdapMetricsMXBean
+{
+    public static final String TIMER_CONNECT = "ldap.connect";
+    public static final String TIMER_BIND = "ldap.bind";
+    public static final String TIMER_SEARCH = "ldap.search";
+    public static final String TIMER_SEARCH_PAGED = "ldap.search.paged";
+    public static final String TIMER_LOGIN = "ldap.login";
+    public static final String TIMER_POOL_BORROW = "ldap.pool.borrow";
+    public static final String TIMER_LOGIN_DATABASE = "login.database";
+    public static final String TIMER_DAEMON_RUN = "daemon.run";
+    public static final String COUNTER_SEARCH_ENTRIES = "ldap.search.entries";
+    public static final String COUNTER_FAILURE = "ldap.failure.";
+    public static final String COUNTER_CACHE_HIT = "cache.user.hit";
+    public static final String COUNTER_CACHE_MISS = "cache.user.miss";
+    public static final String COUNTER_CREDENTIAL_CACHE_HIT = "cache.credential.hit";
+    public static final String COUNTER_CREDENTIAL_CACHE_MISS = "cache.credential.miss";
+    public static final String COUNTER_DAEMON_ENTRIES = "daemon.entries";
+    public static final String COUNTER_DAEMON_CREATED = "daemon.created";
+    public static final String COUNTER_DAEMON_UPDATED = "daemon.updated";
+    public static final String COUNTER_DAEMON_SKIPPED = "daemon.skipped";
+
+    private static final String PROPERTY_ENABLED = "adminauthenticationldap.metrics.enabled";
+    private static final String PROPERTY_JMX_ENABLED = "adminauthenticationldap.metrics.jmx.enabled";
+    private static final String JMX_OBJECT_NAME = "fr.paris.lutece.plugins.adminauthenticationldap:type=LdapMetrics";
+
+    private static LdapMetricsService _singleton = new LdapMetricsService( );
+
+    private final boolean _bEnabled = AppPropertiesService.getPropertyBoolean( PROPERTY_ENABLED, true );
+    private volatile ILdapMetricsRegistry _registry;
+
+    /**
+     * Private constructor
+     */
+    private LdapMetricsService( )
+    {
+        if ( _bEnabled && AppPropertiesService.getPropertyBoolean( PROPERTY_JMX_ENABLED, true ) )
+        {
+            registerMBean( );
+        }
+    }
+
+    /**
+     * @return the unique instance
+     */
+    public static LdapMetricsService getInstance( )
+    {
+        return _singleton;
+    }
+
+    /**
+     * @return the registry : the <code>ILdapMetricsRegistry</code> bean if one is declared, an in-memory registry otherwise
+     */
+    public ILdapMetricsRegistry getRegistry( )
+    {
+        ILdapMetricsRegistry registry = _registry;
+        if ( registry == null )
+        {
+            synchronized( this )
+            {
+                if ( _registry == null )
+                {
+                    _registry = lookupRegistry( );
+                }
+                registry = _registry;
+            }
+        }
+        return registry;
+    }
+
+    /**
+     * Replace the registry
+     * 
+     * @param registry
+     *            the registry
+     */
+    public void setRegistry( ILdapMetricsRegistry registry )
+    {
+        _registry = registry;
+    }
+
+    /**
+     * Record the duration of an operation
+     * 
+     * @param strName
+     *            the operation name
+     * @param lStartNanos
+     *            the start of the operation, read with {@link System#nanoTime()}
+     * @param bSuccess
+     *            false if the operation failed
+     */
+    public void recordTime( String strName, long lStartNanos, boolean bSuccess )
+    {
+        if ( _bEnabled )
+        {
+            getRegistry( ).recordTime( strName, System.nanoTime( ) - lStartNanos, bSuccess );
+        }
+    }
+
+    /**
+     * Increment a counter
+     * 
+     * @param strName
+     *            the counter name
+     * @param lAmount
+     *            the amount to add
+     */
+    public void increment( String strName, long lAmount )
+    {
+        if ( _bEnabled && lAmount != 0 )
+        {
+            getRegistry( ).increment( strName, lAmount );
+        }
+    }
+
+    /**
+     * Count a failure by operation and cause, for example <code>ldap.failure.bind.AuthenticationException</code>
+     * 
+     * @param strOperation
+     *            the operation
+     * @param cause
+     *            the cause
+     */
+    public void recordFailure( String strOperation, Throwable cause )
+    {
+        if ( _bEnabled )
+        {
+            getRegistry( ).increment( COUNTER_FAILURE + strOperation + "." + cause.getClass( ).getSimpleName( ), 1 );
+        }
+    }
+
+    @Override
+    public Map<String, Long> getCounters( )
+    {
+        return getRegistry( ).getCounters( );
+    }
+
+    @Override
+    public Map<String, LdapTimerSnapshot> getTimers( )
+    {
+        return getRegistry( ).getTimers( );
+    }
+
+    @Override
+    public int getPoolActiveCount( )
+    {
+        return LdapService.getAdminContextPool( ).getActiveCount( );
+    }
+
+    @Override
+    public int getPoolIdleCount( )
+    {
+        return LdapService.getAdminContextPool( ).getIdleCount( );
+    }
+
+    @Override
+    public int getPoolMaxSize( )
+    {
+        return LdapService.getAdminContextPool( ).getMaxSize( );
+    }
+
+    @Override
+    public int getBindPoolActiveCount( )
+    {
+        return LdapService.getBindContextPool( ).getActiveCount( );
+    }
+
+    @Override
+    public int getBindPoolIdleCount( )
+    {
+        return LdapService.getBindContextPool( ).getIdleCount( );
+    }
+
+    @Override
+    public int getAsyncActiveCount( )
+    {
+        return LdapExecutorService.getInstance( ).getActiveCount( );
+    }
+
+    @Override
+    public int getAsyncQueueSize( )
+    {
+        return LdapExecutorService.getInstance( ).getQueueSize( );
+    }
+
+    @Override
+    public String getCircuitBreakerState( )
+    {
+        return LdapService.getCircuitBreaker( ).getState( ).name( );
+    }
+
+    @Override
+    public void reset( )
+    {
+        getRegistry( ).reset( );
+    }
+
+    private static ILdapMetricsRegistry lookupRegistry( )
+    {
+        try
+        {
+            List<ILdapMetricsRegistry> listRegistries = SpringContextService.getBeansOfType( ILdapMetricsRegistry.class );
+            if ( listRegistries != null && !listRegistries.isEmpty( ) )
+            {
+                return listRegistries.get( 0 );
+            }
+        }
+        catch( RuntimeException e )
+        {
+            AppLogService.debug( "No metrics registry bean available : " + e.getMessage( ) );
+        }
+        return new LdapMetricsRegistry( );
+    }
+
+    /**
+     * Unregister the MBean, so that the stopped webapp is not kept in memory by the platform MBean server
+     */
+    public void unregisterMBean( )
+    {
+        try
+        {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer( );
+            ObjectName name = new ObjectName( JMX_OBJECT_NAME );
+            if ( server.isRegistered( name ) )
+            {
+                server.unregisterMBean( name );
+            }
+        }
+        catch( JMException e )
+        {
+            AppLogService.error( "Unable to unregister the LDAP metrics MBean : " + e.getMessage( ), e );
+        }
+    }
+
+    private void registerMBean( )
+    {
+        try
+        {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer( );
+            ObjectName name = new ObjectName( JMX_OBJECT_NAME );
+            // A previous deployment of the webapp may have left its instance
+            if ( server.isRegistered( name ) )
+            {
+                server.unregisterMBean( name );
+            }
+            server.registerMBean( this, name );
+        }
+        catch( JMException e )
+        {
+            AppLogService.error( "Unable to register the LDAP metrics MBean : " + e.getMessage( ), e );
+        }
+    }
+}
@@ -0,0 +1,325 @@
+/*
+ * Copyright (c) 2002-2021, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.adminauthenticationldap.service;
+
+import fr.paris.lutece.portal.service.util.AppLogService;
+import org.apache.commons.lang3.StringUtils;
+
+import javax.naming.Context;
+import javax.naming.NamingException;
+import javax.naming.ServiceUnavailableException;
+import javax.naming.directory.DirContext;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Chooses the LDAP server of each connection among the configured ones.
+ * <p>
+ * Servers are ordered in round robin or by lowest connection latency. A server failing several times in a row is ejected for a cool-down period, then tried
+ * again. An operation failing on a server because it cannot be reached is retried on the next one.
+ * </p>
+ */
+public class LdapServerSelector
+{
+    /** Round robin strategy */
+    public static final String STRATEGY_ROUND_ROBIN = "roundRobin";
+    /** Lowest latency strategy */
+    public static final String STRATEGY_LEAST_LATENCY = "leastLatency";
+
+    private static final String URL_SEPARATORS = " ,";
+    // Weight of the last measure in the average latency
+    private static final double LATENCY_SMOOTHING = 0.2;
+
+    private final List<LdapServer> _listServers = new ArrayList<>( );
+    private final boolean _bLeastLatency;
+    private final int _nMaxFailures;
+    private final long _lCoolDown;
+    private final AtomicInteger _nNextServer = new AtomicInteger( );
+
+    /**
+     * Operation run against a server
+     * 
+     * @param <T>
+     *            the result type
+     */
+    @FunctionalInterface
+    public interface LdapOperation<T>
+    {
+        /**
+         * Run the operation
+         * 
+         * @param strProviderUrl
+         *            the URL of the server
+         * @return the result
+         * @throws NamingException
+         *             if the operation fails
+         */
+        T execute( String strProviderUrl ) throws NamingException;
+    }
+
+    /**
+     * Constructor
+     * 
+     * @param strProviderUrls
+     *            the server URLs, separated by spaces or commas
+     * @param strStrategy
+     *            {@link #STRATEGY_ROUND_ROBIN} or {@link #STRATEGY_LEAST_LATENCY}
+     * @param nMaxFailures
+     *            the number of consecutive failures after which a server is ejected
+     * @param lCoolDown
+     *            the time in milliseconds a server stays ejected
+     */
+    public LdapServerSelector( String strProviderUrls, String strStrategy, int nMaxFailures, long lCoolDown )
+    {
+        for ( String strUrl : StringUtils.split( StringUtils.defaultString( strProviderUrls ), URL_SEPARATORS ) )
+        {
+            _listServers.add( new LdapServer( strUrl ) );
+        }
+        _bLeastLatency = STRATEGY_LEAST_LATENCY.equalsIgnoreCase( strStrategy );
+        _nMaxFailures = Math.max( 1, nMaxFailures );
+        _lCoolDown = lCoolDown;
+    }
+
+    /**
+     * @return the number of configured servers
+     */
+    public int size( )
+    {
+        return _listServers.size( );
+    }
+
+    /**
+     * Run an operation on the first available server, then on the next ones as long as the servers cannot be reached or do not answer in time
+     * 
+     * @param <T>
+     *            the result type
+     * @param operation
+     *            the operation
+     * @return the result of the operation
+     * @throws NamingException
+     *             the error of the operation, or of the last server tried if none could be reached
+     */
+    public <T> T execute( LdapOperation<T> operation ) throws NamingException
+    {
+        NamingException lastException = null;
+
+        for ( LdapServer server : getCandidates( ) )
+        {
+            long lStart = System.nanoTime( );
+            try
+            {
+                T result = operation.execute( server.getUrl( ) );
+                server.recordSuccess( System.nanoTime( ) - lStart );
+                return result;
+            }
+            catch( NamingException e )
+            {
+                // A hung server ends in a read timeout, reported as a LdapTimeoutException : it is failed over like a refused connection
+                if ( !LdapCircuitBreaker.isUnavailability( e ) )
+                {
+                    throw e;
+                }
+                recordFailure( server );
+                AppLogService.error( "LDAP server " + server.getUrl( ) + " unavailable : " + e.getMessage( ) );
+                lastException = e;
+            }
+        }
+
+        if ( lastException == null )
+        {
+            throw new ServiceUnavailableException( "No LDAP server configured" );
+        }
+        throw lastException;
+    }
+
+    /**
+     * Record a failure of the server a context is connected to
+     * 
+     * @param context
+     *            the context
+     */
+    public void recordFailure( DirContext context )
+    {
+        if ( context == null )
+        {
+            return;
+        }
+
+        try
+        {
+            Object url = context.getEnvironment( ).get( Context.PROVIDER_URL );
+            for ( LdapServer server : _listServers )
+            {
+                if ( server.getUrl( ).equals( url ) )
+                {
+                    recordFailure( server );
+                }
+            }
+        }
+        catch( NamingException e )
+        {
+            AppLogService.debug( "Unable to read the LDAP server of a context : " + e.getMessage( ) );
+        }
+    }
+
+    /**
+     * @return true if at least one server is not ejected
+     */
+    public boolean isAnyServerAvailable( )
+    {
+        long lNow = System.currentTimeMillis( );
+        for ( LdapServer server : _listServers )
+        {
+            if ( server.isAvailable( lNow ) )
+            {
+                return true;
+            }
+        }
+        return _listServers.isEmpty( );
+    }
+
+    /**
+     * The server a long-running task should stick to : the first available server in the configured order, whatever the strategy, so that successive runs
+     * keep using the same one as long as it is healthy
+     *
+     * @return the URL of the first available server, of the first server when every one is ejected, or null if none is configured
+     */
+    public String getPreferredServer( )
+    {
+        long lNow = System.currentTimeMillis( );
+        for ( LdapServer server : _listServers )
+        {
+            if ( server.isAvailable( lNow ) )
+            {
+                return server.getUrl( );
+            }
+        }
+        return _listServers.isEmpty( ) ? null : _listServers.get( 0 ).getUrl( );
+    }
+
+    /**
+     * The servers to try, in order : the available servers ordered by the strategy, or all of them when every one is ejected
+     */
+    private List<LdapServer> getCandidates( )
+    {
+        long lNow = System.currentTimeMillis( );
+        List<LdapServer> listCandidates = new ArrayList<>( _listServers.size( ) );
+
+        for ( LdapServer server : _listServers )
+        {
+            if ( server.isAvailable( lNow ) )
+            {
+                listCandidates.add( server );
+            }
+        }
+
+        if ( listCandidates.isEmpty( ) )
+        {
+            return _listServers;
+        }
+
+        if ( _bLeastLatency )
+        {
+            listCandidates.sort( Comparator.comparingDouble( LdapServer::getLatency ) );
+        }
+        else
+        {
+            Collections.rotate( listCandidates, -Math.floorMod( _nNextServer.getAndIncrement( ), listCandidates.size( ) ) );
+        }
+        return listCandidates;
+    }
+
+    private void recordFailure( LdapServer server )
+    {
+        if ( server.recordFailure( _nMaxFailures, _lCoolDown ) )
+        {
+            AppLogService.error( "LDAP server " + server.getUrl( ) + " ejected for " + ( _lCoolDown / 1000 ) + " s after " + _nMaxFailures + " failures" );
+        }
+    }
+
+    /**
+     * Health of a server
+     */
+    private static final class LdapServer
+    {
+        private final String _strUrl;
+        private int _nConsecutiveFailures;
+        private long _lEjectedUntil;
+        private double _dLatency;
+
+        LdapServer( String strUrl )
+        {
+            _strUrl = strUrl;
+        }
+
+        String getUrl( )
+        {
+            return _strUrl;
+        }
+
+        synchronized double getLatency( )
+        {
+            return _dLatency;
+        }
+
+        synchronized boolean isAvailable( long lNow )
+        {
+            return lNow >= _lEjectedUntil;
+        }
+
+        synchronized void recordSuccess( long lNanos )
+        {
+            _nConsecutiveFailures = 0;
+            _dLatency = ( _dLatency == 0 ) ? lNanos : ( ( 1 - LATENCY_SMOOTHING ) * _dLatency + LATENCY_SMOOTHING * lNanos );
+        }
+
+        /**
+         * @return true if the server has just been ejected
+         */
+        synchronized boolean recordFailure( int nMaxFailures, long lCoolDown )
+        {
+            _nConsecutiveFailures++;
+            if ( _nConsecutiveFailures >= nMaxFailures )
+            {
+                _nConsecutiveFailures = 0;
+                _lEjectedUntil = System.currentTimeMillis( ) + lCoolDown;
+                return true;
+            }
+            return false;
+        }
+    }
+}
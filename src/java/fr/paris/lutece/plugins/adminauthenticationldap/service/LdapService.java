@@ -35,68 +35,97 @@ package fr.paris.lutece.plugins.adminauthenticationldap.service;
 
 import fr.paris.lutece.plugins.adminauthenticationldap.AdminLdapAuthentication;
 import fr.paris.lutece.plugins.adminauthenticationldap.business.AdminLdapUser;
+import fr.paris.lutece.portal.business.rbac.RBACRole;
 import fr.paris.lutece.portal.business.user.AdminUser;
-import fr.paris.lutece.portal.service.datastore.DatastoreService;
-import fr.paris.lutece.portal.service.security.RsaService;
 import fr.paris.lutece.portal.service.util.AppLogService;
 import fr.paris.lutece.portal.service.util.AppPropertiesService;
 import fr.paris.lutece.util.ldap.LdapUtil;
 import org.apache.commons.lang3.StringUtils;
 
+import javax.naming.AuthenticationException;
 import javax.naming.CommunicationException;
+import javax.naming.Context;
 import javax.naming.NamingEnumeration;
 import javax.naming.NamingException;
+import javax.naming.ServiceUnavailableException;
 import javax.naming.directory.*;
+import javax.naming.ldap.Control;
+import javax.naming.ldap.InitialLdapContext;
+import javax.naming.ldap.LdapContext;
+import javax.naming.ldap.PagedResultsControl;
+import javax.naming.ldap.PagedResultsResponseControl;
 import javax.security.auth.login.FailedLoginException;
-import java.security.GeneralSecurityException;
-import java.text.MessageFormat;
+import javax.security.auth.login.LoginException;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 
 public class LdapService
 {
 
-    private static final String PROPERTY_BIND_DN = "adminauthenticationldap.ldap.connectionName";
-    private static final String PROPERTY_BIND_PASSWORD = "adminauthenticationldap.ldap.connectionPassword";
-    private static final String PROPERTY_IS_ENCRYPTED = "adminauthenticationldap.ldap.isEncrypted";
-    private static final String PROPERTY_USER_SUBTREE = "adminauthenticationldap.ldap.userSubtree";
-    private static final String PROPERTY_USER_DN_SEARCH_BASE = "adminauthenticationldap.ldap.userBase";
-    private static final String PROPERTY_ROOT_DN_SEARCH_BASE = "adminauthenticationldap.ldap.rootBase";
-    private static final String PROPERTY_INITIAL_CONTEXT_PROVIDER = "adminauthenticationldap.ldap.initialContextProvider";
-    private static final String PROPERTY_PROVIDER_URL = "adminauthenticationldap.ldap.connectionUrl";
-    private static final String PROPERTY_USER_DN_SEARCH_FILTER_BY_ACCESS_CODE = "adminauthenticationldap.ldap.userSearch.filterAccessCode";
-    private static final String PROPERTY_USER_DN_SEARCH_FILTER_BY_CRITERIA = "adminauthenticationldap.ldap.userSearch.filterCriteria";
-    private static final String PROPERTY_USER_DN_SEARCH_GROUP_FILTER = "adminauthenticationldap.ldap.userSearch.groupFilter";
-    private static final String PROPERTY_USER_ATTRIBUTE_NAME_ACCESS_CODE = "adminauthenticationldap.ldap.dn.attributeName.accessCode";
-    private static final String PROPERTY_USER_ATTRIBUTE_NAME_FAMILY_NAME = "adminauthenticationldap.ldap.dn.attributeName.family";
-    private static final String PROPERTY_USER_ATTRIBUTE_NAME_GIVEN_NAME = "adminauthenticationldap.ldap.dn.attributeName.given";
-    private static final String PROPERTY_USER_ATTRIBUTE_NAME_EMAIL = "adminauthenticationldap.ldap.dn.attributeName.email";
-    private static final String PROPERTY_USER_ATTRIBUTE_GROUP = "adminauthenticationldap.ldap.dn.attributeName.groupMemberOf";
-    private static final String PROPERTY_USER_ATTRIBUTE_DN = "adminauthenticationldap.ldap.dn.attributeName.distinguishedName";
-
-    private static final String ATTRIBUTE_ACCESS_CODE = AppPropertiesService.getProperty( PROPERTY_USER_ATTRIBUTE_NAME_ACCESS_CODE );
-    private static final String ATTRIBUTE_FAMILY_NAME = AppPropertiesService.getProperty( PROPERTY_USER_ATTRIBUTE_NAME_FAMILY_NAME );
-    private static final String ATTRIBUTE_GIVEN_NAME = AppPropertiesService.getProperty( PROPERTY_USER_ATTRIBUTE_NAME_GIVEN_NAME );
-    private static final String ATTRIBUTE_EMAIL = AppPropertiesService.getProperty( PROPERTY_USER_ATTRIBUTE_NAME_EMAIL );
-    private static final String ATTRIBUTE_GROUP = AppPropertiesService.getProperty( PROPERTY_USER_ATTRIBUTE_GROUP );
-    private static final String ATTRIBUTE_DN = AppPropertiesService.getProperty( PROPERTY_USER_ATTRIBUTE_DN );
-
-    private static final String BIND_DN = AppPropertiesService.getProperty( PROPERTY_BIND_DN );
-    private static final String BIND_PASSWORD = AppPropertiesService.getProperty( PROPERTY_BIND_PASSWORD,"" );
-    private static final Boolean IS_ENCRYPTED = AppPropertiesService.getPropertyBoolean( PROPERTY_IS_ENCRYPTED,false );
-    private static final String SEARCH_SCOPE = AppPropertiesService.getProperty( PROPERTY_USER_SUBTREE, "false" );
-    private static final String SEARCH_FILTER_BY_CRITERIA = AppPropertiesService.getProperty( PROPERTY_USER_DN_SEARCH_FILTER_BY_CRITERIA );
-    private static final String SEARCH_FILTER_BY_ACCESS_CODE = AppPropertiesService.getProperty( PROPERTY_USER_DN_SEARCH_FILTER_BY_ACCESS_CODE );
-    private static final String INITIAL_CONTEXT_PROVIDER = AppPropertiesService.getProperty( PROPERTY_INITIAL_CONTEXT_PROVIDER );
-    private static final String PROVIDER_URL = AppPropertiesService.getProperty( PROPERTY_PROVIDER_URL );
-    private static final String USER_DN_SEARCH_BASE = AppPropertiesService.getProperty( PROPERTY_USER_DN_SEARCH_BASE, "" );
-    private static final String ROOT_DN_SEARCH_BASE = AppPropertiesService.getProperty( PROPERTY_ROOT_DN_SEARCH_BASE );
-    private static final String SEARCH_FILTER_GROUP = AppPropertiesService.getProperty( PROPERTY_USER_DN_SEARCH_GROUP_FILTER );
+    private static final String PROPERTY_CIRCUIT_BREAKER_ENABLED = "adminauthenticationldap.ldap.circuitBreaker.enabled";
+    private static final String PROPERTY_CIRCUIT_BREAKER_FAILURE_THRESHOLD = "adminauthenticationldap.ldap.circuitBreaker.failureThreshold";
+    private static final String PROPERTY_CIRCUIT_BREAKER_OPEN_DURATION = "adminauthenticationldap.ldap.circuitBreaker.openDuration";
+    private static final String PROPERTY_POOL_ENABLED = "adminauthenticationldap.ldap.pool.enabled";
+    private static final String PROPERTY_POOL_MIN_SIZE = "adminauthenticationldap.ldap.pool.minSize";
+    private static final String PROPERTY_POOL_MAX_SIZE = "adminauthenticationldap.ldap.pool.maxSize";
+    private static final String PROPERTY_POOL_MAX_IDLE_TIME = "adminauthenticationldap.ldap.pool.maxIdleTime";
+    private static final String PROPERTY_POOL_BORROW_TIMEOUT = "adminauthenticationldap.ldap.pool.borrowTimeout";
+    private static final String PROPERTY_POOL_VALIDATE_ON_BORROW = "adminauthenticationldap.ldap.pool.validateOnBorrow";
+    private static final String PROPERTY_BIND_POOL_ENABLED = "adminauthenticationldap.ldap.bindPool.enabled";
+    private static final String PROPERTY_BIND_POOL_MIN_SIZE = "adminauthenticationldap.ldap.bindPool.minSize";
+    private static final String PROPERTY_BIND_POOL_MAX_SIZE = "adminauthenticationldap.ldap.bindPool.maxSize";
+    private static final String PROPERTY_BIND_POOL_MAX_IDLE_TIME = "adminauthenticationldap.ldap.bindPool.maxIdleTime";
+    private static final String PROPERTY_BIND_POOL_BORROW_TIMEOUT = "adminauthenticationldap.ldap.bindPool.borrowTimeout";
+    private static final String PROPERTY_BIND_POOL_RESET_ON_RELEASE = "adminauthenticationldap.ldap.bindPool.resetOnRelease";
+    // The properties read once when the services of the plugin start, by key or by prefix : a reload does not apply them
+    private static final String [ ] STARTUP_PROPERTIES = {
+            "adminauthenticationldap.ldap.pool.", "adminauthenticationldap.ldap.bindPool.", "adminauthenticationldap.ldap.circuitBreaker.",
+            "adminauthenticationldap.ldap.rootBase", "adminauthenticationldap.ldap.userSearch.groupFilter", "adminauthenticationldap.groups.",
+            "adminauthenticationldap.credentialCache.", "adminauthenticationldap.cache.user.", "adminauthenticationldap.cluster.",
+            "adminauthenticationldap.throttle.maxEntries", "adminauthenticationldap.throttle.parametersRefreshInterval", "adminauthenticationldap.async.threads",
+            "adminauthenticationldap.async.queueCapacity", "adminauthenticationldap.async.virtualThreads", "adminauthenticationldap.async.timeout",
+            "adminauthenticationldap.fingerprint.", "adminauthenticationldap.snapshot.", "adminauthenticationldap.metrics.", "adminauthenticationldap.service.name"
+    };
+
+    private static final LdapMetricsService METRICS = LdapMetricsService.getInstance( );
+    private static volatile ConfigurationState _state = new ConfigurationState( LdapConfiguration.load( ) );
+    private static final LdapCircuitBreaker CIRCUIT_BREAKER = new LdapCircuitBreaker(
+            AppPropertiesService.getPropertyBoolean( PROPERTY_CIRCUIT_BREAKER_ENABLED, true ),
+            AppPropertiesService.getPropertyInt( PROPERTY_CIRCUIT_BREAKER_FAILURE_THRESHOLD, 5 ),
+            AppPropertiesService.getPropertyInt( PROPERTY_CIRCUIT_BREAKER_OPEN_DURATION, 30 ) * 1000L );
+    private static final LdapContextPool ADMIN_CONTEXT_POOL = new LdapContextPool( "admin", new ConfiguredContextFactory( LdapService::openAdminContext ),
+            AppPropertiesService.getPropertyBoolean( PROPERTY_POOL_ENABLED, true ), AppPropertiesService.getPropertyInt( PROPERTY_POOL_MIN_SIZE, 1 ),
+            AppPropertiesService.getPropertyInt( PROPERTY_POOL_MAX_SIZE, 8 ), AppPropertiesService.getPropertyInt( PROPERTY_POOL_MAX_IDLE_TIME, 300 ) * 1000L,
+            AppPropertiesService.getPropertyInt( PROPERTY_POOL_BORROW_TIMEOUT, 5000 ),
+            AppPropertiesService.getPropertyBoolean( PROPERTY_POOL_VALIDATE_ON_BORROW, true ) );
+    // The connections checking the credentials of the users are not validated on borrow : the bind itself reveals a lost connection
+    private static final LdapContextPool BIND_CONTEXT_POOL = new LdapContextPool( "bind", new ConfiguredContextFactory( LdapService::openBindContext ),
+            AppPropertiesService.getPropertyBoolean( PROPERTY_BIND_POOL_ENABLED, true ), AppPropertiesService.getPropertyInt( PROPERTY_BIND_POOL_MIN_SIZE, 0 ),
+            AppPropertiesService.getPropertyInt( PROPERTY_BIND_POOL_MAX_SIZE, 8 ),
+            AppPropertiesService.getPropertyInt( PROPERTY_BIND_POOL_MAX_IDLE_TIME, 300 ) * 1000L,
+            AppPropertiesService.getPropertyInt( PROPERTY_BIND_POOL_BORROW_TIMEOUT, 5000 ), false );
+    private static final boolean BIND_POOL_RESET_ON_RELEASE = AppPropertiesService.getPropertyBoolean( PROPERTY_BIND_POOL_RESET_ON_RELEASE, true );
+    private static final Map<String, String> STARTUP_VALUES = readStartupProperties( );
 
     // Constant
-    private static final String CONSTANT_WILDCARD = "*";
+    private static final String CONSTANT_SIMPLE_AUTHENTICATION = "simple";
+    private static final String CONSTANT_CONNECT_TIMEOUT = "com.sun.jndi.ldap.connect.timeout";
+    private static final String CONSTANT_READ_TIMEOUT = "com.sun.jndi.ldap.read.timeout";
 
     private LdapService( )
     {
@@ -104,59 +133,281 @@ public class LdapService
 
     public static DirContext getAdminContext( )
     {
-        return getNewContext( BIND_DN, getBindPassword());
+        return openContext( getConfiguration( ).getBindDn( ), getBindPassword( ) );
+    }
+
+    /**
+     * @return the pool of contexts bound with the service account
+     */
+    public static LdapContextPool getAdminContextPool( )
+    {
+        return ADMIN_CONTEXT_POOL;
     }
 
-    private static String getBindPassword() {
-        String strPass = BIND_PASSWORD;
+    /**
+     * @return the pool of connections on which the credentials of the users are checked
+     */
+    public static LdapContextPool getBindContextPool( )
+    {
+        return BIND_CONTEXT_POOL;
+    }
+
+    /**
+     * @return the selector of the LDAP server of each connection
+     */
+    public static LdapServerSelector getServerSelector( )
+    {
+        return _state._serverSelector;
+    }
+
+    /**
+     * @return the configuration in use
+     */
+    public static LdapConfiguration getConfiguration( )
+    {
+        return _state._configuration;
+    }
+
+    private static LdapBindCredential getBindCredential( )
+    {
+        return _state._bindCredential;
+    }
 
-        if ( StringUtils.isEmpty( strPass ) || DatastoreService.existsKey( PROPERTY_BIND_PASSWORD ) )
+    /**
+     * Read the properties again and use the LDAP configuration from the next operation on, without restarting. The new configuration is only applied if it
+     * is valid. The pooled connections are closed so that they are opened again with it, those borrowed during the reload are closed when they are
+     * released. The cached users and credentials are forgotten.
+     * <p>
+     * All the property files of the webapp are read again, not only those of the plugin. The sizes of the pools, the circuit breaker and the other services
+     * of the plugin keep the values read at startup : the changed ones are logged.
+     * </p>
+     * 
+     * @return the errors of the new configuration, empty if it has been applied
+     */
+    public static synchronized List<String> reloadConfiguration( )
+    {
+        AppPropertiesService.reloadAll( );
+        List<String> listNotApplied = getChangedStartupProperties( );
+        if ( !listNotApplied.isEmpty( ) )
         {
-            if ( DatastoreService.existsKey( PROPERTY_BIND_PASSWORD ) )
-            {
-                strPass = DatastoreService.getDataValue(PROPERTY_BIND_PASSWORD,"");
-            }
+            AppLogService.error( "LDAP properties changed but only read at startup, they will be applied after a restart : " + listNotApplied );
         }
+        LdapConfiguration configuration = LdapConfiguration.load( );
+        List<String> listErrors = configuration.validate( );
+        if ( !listErrors.isEmpty( ) )
+        {
+            AppLogService.error( "LDAP configuration not applied : " + listErrors );
+            return listErrors;
+        }
+
+        ConfigurationState previousState = _state;
+        _state = new ConfigurationState( configuration );
+        previousState._bindCredential.invalidate( );
+        ADMIN_CONTEXT_POOL.clear( );
+        BIND_CONTEXT_POOL.clear( );
+        // The cached users may have been read with other attributes, the cached credentials checked against another directory
+        LdapAdminUserCacheService.getInstance( ).resetCache( );
+        LdapCredentialCacheService.getInstance( ).clear( );
+        AppLogService.info( "LDAP configuration reloaded" );
+        return listErrors;
+    }
 
-        if ( StringUtils.isEmpty( strPass ) )
+    /**
+     * @return the keys of the properties read at startup whose value has changed since
+     */
+    private static List<String> getChangedStartupProperties( )
+    {
+        Map<String, String> mapValues = readStartupProperties( );
+        Set<String> setKeys = new TreeSet<>( mapValues.keySet( ) );
+        setKeys.addAll( STARTUP_VALUES.keySet( ) );
+        List<String> listChanged = new ArrayList<>( );
+        for ( String strKey : setKeys )
         {
-            AppLogService.error("No password for Ldap.");
-            return "";
+            if ( !Objects.equals( mapValues.get( strKey ), STARTUP_VALUES.get( strKey ) ) )
+            {
+                listChanged.add( strKey );
+            }
         }
+        return listChanged;
+    }
 
-        if( IS_ENCRYPTED )
+    private static Map<String, String> readStartupProperties( )
+    {
+        Map<String, String> mapValues = new HashMap<>( );
+        for ( String strPrefix : STARTUP_PROPERTIES )
         {
-            try
+            List<String> listKeys = AppPropertiesService.getKeys( strPrefix );
+            if ( listKeys != null )
             {
-                if ( strPass.startsWith("PLAINTEXT:") )
+                for ( String strKey : listKeys )
                 {
-                    strPass = strPass.replace("PLAINTEXT:","");
-                    DatastoreService.setDataValue(PROPERTY_BIND_PASSWORD, "RSA:" + RsaService.encryptRsa( strPass ) );
+                    mapValues.put( strKey, AppPropertiesService.getProperty( strKey ) );
                 }
-                else
-                {
-                    strPass = RsaService.decryptRsa(strPass.replace("RSA:",""));
-                }
-            }
-            catch (GeneralSecurityException e)
-            {
-                AppLogService.error("Error decrypting password.");
-                return "";
             }
         }
+        return mapValues;
+    }
+
+    /**
+     * Prepare the service before the first login : check the configuration, decrypt the password of the service account, open the pooled connections and
+     * read the groups. The errors are logged, the service then works as it would without warm-up.
+     */
+    public static void warmUp( )
+    {
+        long lStart = System.nanoTime( );
+        List<String> listErrors = getConfiguration( ).validate( );
+        if ( !listErrors.isEmpty( ) )
+        {
+            AppLogService.error( "Invalid LDAP configuration : " + listErrors );
+            return;
+        }
+
+        Arrays.fill( getBindPassword( ), '\0' );
+        ADMIN_CONTEXT_POOL.prepare( );
+        BIND_CONTEXT_POOL.prepare( );
+        if ( LdapGroupService.getInstance( ).isEnabled( ) )
+        {
+            LdapGroupService.getInstance( ).refresh( );
+        }
+        AppLogService.info( "LDAP service ready in " + ( System.nanoTime( ) - lStart ) / 1_000_000L + " ms : " + ADMIN_CONTEXT_POOL.getIdleCount( )
+                + " service connections, " + BIND_CONTEXT_POOL.getIdleCount( ) + " bind connections" );
+    }
+
+    private static DirContext openAdminContext( ) throws NamingException
+    {
+        LdapConfiguration configuration = getConfiguration( );
+        char [ ] password = getBindPassword( );
+        long lStart = System.nanoTime( );
+
+        try
+        {
+            DirContext context = getServerSelector( ).execute(
+                    strProviderUrl -> createLdapContext( configuration, strProviderUrl, configuration.getBindDn( ), password, configuration.getSearchTimeout( ) ) );
+            METRICS.recordTime( LdapMetricsService.TIMER_CONNECT, lStart, true );
+            return context;
+        }
+        catch( NamingException e )
+        {
+            METRICS.recordTime( LdapMetricsService.TIMER_CONNECT, lStart, false );
+            METRICS.recordFailure( "connect", e );
+            throw e;
+        }
+    }
+
+    /**
+     * Open a connection bound with the service account on a given server, outside of the pool and without failing over to another server
+     */
+    private static LdapContext openServerContext( String strServer ) throws NamingException
+    {
+        LdapConfiguration configuration = getConfiguration( );
+        long lStart = System.nanoTime( );
+
+        try
+        {
+            LdapContext context = createLdapContext( configuration, strServer, configuration.getBindDn( ), getBindPassword( ),
+                    configuration.getSearchTimeout( ) );
+            METRICS.recordTime( LdapMetricsService.TIMER_CONNECT, lStart, true );
+            return context;
+        }
+        catch( NamingException e )
+        {
+            METRICS.recordTime( LdapMetricsService.TIMER_CONNECT, lStart, false );
+            METRICS.recordFailure( "connect", e );
+            throw e;
+        }
+    }
 
-        return strPass;
+    /**
+     * Open a connection of the bind pool, bound with the service account until it checks the credentials of a user
+     */
+    private static DirContext openBindContext( ) throws NamingException
+    {
+        LdapConfiguration configuration = getConfiguration( );
+        char [ ] password = getBindPassword( );
+        long lStart = System.nanoTime( );
+
+        try
+        {
+            DirContext context = getServerSelector( ).execute(
+                    strProviderUrl -> createLdapContext( configuration, strProviderUrl, configuration.getBindDn( ), password, configuration.getBindTimeout( ) ) );
+            METRICS.recordTime( LdapMetricsService.TIMER_CONNECT, lStart, true );
+            return context;
+        }
+        catch( NamingException e )
+        {
+            METRICS.recordTime( LdapMetricsService.TIMER_CONNECT, lStart, false );
+            METRICS.recordFailure( "connect", e );
+            throw e;
+        }
+    }
+
+    /**
+     * @return the circuit breaker of the LDAP requests
+     */
+    public static LdapCircuitBreaker getCircuitBreaker( )
+    {
+        return CIRCUIT_BREAKER;
+    }
+
+    /**
+     * Open a context bound with the given credentials. Unlike the contexts of LdapUtil, it does not wait forever for an unresponsive server. The password
+     * array is kept by the environment of the context until it is closed.
+     */
+    private static LdapContext createLdapContext( LdapConfiguration configuration, String strProviderUrl, String strDN, char [ ] password,
+            String strReadTimeout ) throws NamingException
+    {
+        Hashtable<String, Object> env = new Hashtable<>( );
+        env.put( Context.INITIAL_CONTEXT_FACTORY, configuration.getInitialContextProvider( ) );
+        env.put( Context.PROVIDER_URL, strProviderUrl );
+        env.put( Context.SECURITY_AUTHENTICATION, CONSTANT_SIMPLE_AUTHENTICATION );
+        env.put( Context.SECURITY_PRINCIPAL, strDN );
+        env.put( Context.SECURITY_CREDENTIALS, password );
+        env.put( CONSTANT_CONNECT_TIMEOUT, configuration.getConnectTimeout( ) );
+        env.put( CONSTANT_READ_TIMEOUT, strReadTimeout );
+
+        // An LdapContext rather than the InitialDirContext of LdapUtil so that request controls such as paging can be set
+        long lStart = System.nanoTime( );
+        try
+        {
+            return new InitialLdapContext( env, null );
+        }
+        catch( NamingException e )
+        {
+            throw LdapTimeoutException.translate( e, lStart, strReadTimeout );
+        }
+    }
+
+    private static char [ ] getBindPassword( )
+    {
+        return getBindCredential( ).getPassword( );
+    }
+
+    /**
+     * Read the service account password again and reopen the pooled connections with it. To be called once the password has been changed in the Datastore.
+     */
+    public static void refreshBindCredential( )
+    {
+        getBindCredential( ).invalidate( );
+        ADMIN_CONTEXT_POOL.clear( );
+        BIND_CONTEXT_POOL.clear( );
     }
 
     public static DirContext getNewContext( String strDN, String strPassword )
     {
+        return openContext( strDN, ( strPassword != null ) ? strPassword.toCharArray( ) : null );
+    }
+
+    private static DirContext openContext( String strDN, char [ ] password )
+    {
+        LdapConfiguration configuration = getConfiguration( );
         try
         {
-            return LdapUtil.getContext( INITIAL_CONTEXT_PROVIDER, PROVIDER_URL, strDN, strPassword );
+            return getServerSelector( ).execute(
+                    strProviderUrl -> createLdapContext( configuration, strProviderUrl, strDN, password, configuration.getSearchTimeout( ) ) );
         }
         catch( Exception e )
         {
-            AppLogService.error( "Unable to open a new connection to LDAP to " + PROVIDER_URL, e );
+            AppLogService.error( "Unable to open a new connection to LDAP to " + configuration.getProviderUrl( ), e );
             return null;
         }
     }
@@ -174,18 +425,26 @@ public class LdapService
         {
             AppLogService.error( "Unable to free ldap context ", e );
         }
+        finally
+        {
+            if ( context != null )
+            {
+                LdapBindCredential.wipeEnvironment( context );
+            }
+        }
     }
 
     private static String getUserBindDN( String strAccessCode )
     {
+        LdapConfiguration configuration = getConfiguration( );
         StringBuilder sb = new StringBuilder( );
-        sb.append( ATTRIBUTE_ACCESS_CODE ).append( "=" );
+        sb.append( configuration.getAttributeAccessCode( ) ).append( "=" );
         sb.append( strAccessCode );
         sb.append( "," );
-        sb.append( USER_DN_SEARCH_BASE );
-        if ( StringUtils.isNotEmpty( ROOT_DN_SEARCH_BASE ) )
+        sb.append( configuration.getUserBase( ) );
+        if ( StringUtils.isNotEmpty( configuration.getRootBase( ) ) )
         {
-            sb.append( "," ).append( ROOT_DN_SEARCH_BASE );
+            sb.append( "," ).append( configuration.getRootBase( ) );
         }
 
         return sb.toString( );
@@ -193,7 +452,24 @@ public class LdapService
 
     public static SearchResult getUserSearchResult( String strId )
     {
-        List<SearchResult> srList = getUserSearchResult( 1, getCompleteFilter( SEARCH_FILTER_BY_ACCESS_CODE ), strId );
+        try
+        {
+            return findUserSearchResult( strId );
+        }
+        catch( NamingException e )
+        {
+            return null;
+        }
+    }
+
+    /**
+     * @return the entry of a user, null if the directory has no such user
+     * @throws NamingException
+     *             if the directory could not be searched
+     */
+    private static SearchResult findUserSearchResult( String strId ) throws NamingException
+    {
+        List<SearchResult> srList = findUserResults( 1, getConfiguration( ).getFilterTemplateByAccessCode( ).format( strId ) );
         if ( srList.size( ) != 1 )
         {
             return null;
@@ -201,9 +477,162 @@ public class LdapService
         return srList.get( 0 );
     }
 
+    /**
+     * Read the public data of a user, from the cache when possible. A failed search is logged and answered as an unknown user, without being cached.
+     * 
+     * @param strId
+     *            the access code
+     * @return the user, null if the directory has no such user or could not be searched
+     */
     public static AdminUser getAdminUser( String strId )
     {
-        return getUserFromSr( getUserSearchResult( strId ) );
+        try
+        {
+            return findAdminUser( strId );
+        }
+        catch( NamingException e )
+        {
+            AppLogService.error( "Unable to read the LDAP user " + strId + " : " + e.getMessage( ), e );
+            return null;
+        }
+    }
+
+    /**
+     * Read the public data of a user, from the cache when possible. Only the answers of the directory are cached : a user it does not know is cached as
+     * such, a failed search is not.
+     * 
+     * @param strId
+     *            the access code
+     * @return the user, null if the directory has no such user
+     * @throws NamingException
+     *             if the directory could not be searched
+     */
+    public static AdminUser findAdminUser( String strId ) throws NamingException
+    {
+        LdapAdminUserCacheService cache = LdapAdminUserCacheService.getInstance( );
+        LdapAdminUserCacheService.CachedUser cachedUser = cache.get( strId );
+
+        if ( cachedUser != null )
+        {
+            METRICS.increment( LdapMetricsService.COUNTER_CACHE_HIT, 1 );
+            return cachedUser.toAdminUser( );
+        }
+
+        METRICS.increment( LdapMetricsService.COUNTER_CACHE_MISS, 1 );
+        AdminUser user = getUserFromSr( findUserSearchResult( strId ) );
+        cache.put( strId, user );
+
+        return user;
+    }
+
+    /**
+     * Read several users at once : the access codes which are not cached are searched in chunks, with one filter such as
+     * <code>(|(login=a)(login=b)...)</code> per chunk
+     * 
+     * @param accessCodes
+     *            the access codes
+     * @return the users found, by access code as given
+     * @throws NamingException
+     *             if a chunk could not be searched : the users of the chunks searched before are cached, those of the failed chunk are not
+     */
+    public static Map<String, AdminUser> getAdminUsers( Collection<String> accessCodes ) throws NamingException
+    {
+        LdapAdminUserCacheService cache = LdapAdminUserCacheService.getInstance( );
+        Map<String, AdminUser> mapUsers = new LinkedHashMap<>( );
+        // Directory lookups are case insensitive : the entries are matched with the requested codes ignoring case, and a code requested with several cases
+        // is searched once and answered for each of them
+        Map<String, List<String>> mapMissingCodes = new LinkedHashMap<>( );
+
+        for ( String strAccessCode : accessCodes )
+        {
+            if ( StringUtils.isEmpty( strAccessCode ) || mapUsers.containsKey( strAccessCode ) )
+            {
+                continue;
+            }
+            LdapAdminUserCacheService.CachedUser cachedUser = cache.get( strAccessCode );
+            if ( cachedUser == null )
+            {
+                List<String> listRequestedCodes = mapMissingCodes.computeIfAbsent( strAccessCode.toLowerCase( Locale.ROOT ), k -> new ArrayList<>( ) );
+                if ( !listRequestedCodes.contains( strAccessCode ) )
+                {
+                    listRequestedCodes.add( strAccessCode );
+                }
+            }
+            else
+            {
+                AdminUser user = cachedUser.toAdminUser( );
+                if ( user != null )
+                {
+                    mapUsers.put( strAccessCode, user );
+                }
+            }
+        }
+
+        LdapConfiguration configuration = getConfiguration( );
+        int nChunkSize = configuration.getBulkLookupChunkSize( );
+        List<List<String>> listMissingCodes = new ArrayList<>( mapMissingCodes.values( ) );
+        for ( int nStart = 0; nStart < listMissingCodes.size( ); nStart += nChunkSize )
+        {
+            List<List<String>> listChunk = listMissingCodes.subList( nStart, Math.min( nStart + nChunkSize, listMissingCodes.size( ) ) );
+            StringBuilder sbFilter = new StringBuilder( "(|" );
+            for ( List<String> listRequestedCodes : listChunk )
+            {
+                sbFilter.append( configuration.getFilterTemplateAccessCodeClause( ).format( listRequestedCodes.get( 0 ) ) );
+            }
+            sbFilter.append( ")" );
+
+            for ( SearchResult sr : findUserResults( 0, configuration.getCompleteFilter( sbFilter.toString( ) ) ) )
+            {
+                AdminUser user = getUserFromSr( sr );
+                List<String> listRequestedCodes = ( user != null ) ? mapMissingCodes.get( user.getAccessCode( ).toLowerCase( Locale.ROOT ) ) : null;
+                if ( listRequestedCodes != null )
+                {
+                    for ( String strRequestedCode : listRequestedCodes )
+                    {
+                        mapUsers.put( strRequestedCode, user );
+                    }
+                }
+            }
+            for ( List<String> listRequestedCodes : listChunk )
+            {
+                for ( String strAccessCode : listRequestedCodes )
+                {
+                    cache.put( strAccessCode, mapUsers.get( strAccessCode ) );
+                }
+            }
+        }
+
+        return mapUsers;
+    }
+
+    /**
+     * Asynchronous version of {@link #findAdminUser(String)}, completed at once when the user is cached
+     * 
+     * @param strId
+     *            the access code
+     * @return the future user, null if it is not found
+     */
+    public static CompletableFuture<AdminUser> getAdminUserAsync( String strId )
+    {
+        LdapAdminUserCacheService.CachedUser cachedUser = LdapAdminUserCacheService.getInstance( ).get( strId );
+
+        if ( cachedUser != null )
+        {
+            return CompletableFuture.completedFuture( cachedUser.toAdminUser( ) );
+        }
+        return LdapExecutorService.getInstance( ).submit( ( ) -> findAdminUser( strId ) );
+    }
+
+    /**
+     * Forget the cached data and the cached credentials of a user, to be called when it has changed in the directory
+     * 
+     * @param strAccessCode
+     *            the access code
+     */
+    public static void invalidateAdminUser( String strAccessCode )
+    {
+        LdapAdminUserCacheService.getInstance( ).invalidate( strAccessCode );
+        LdapCredentialCacheService.getInstance( ).invalidate( strAccessCode );
     }
 
     public static AdminUser getUserFromSr( SearchResult sr )
@@ -211,33 +640,91 @@ public class LdapService
         AdminUser user = null;
         if ( sr != null )
         {
-            String strLastName = getSrAttribute( sr, ATTRIBUTE_FAMILY_NAME );
-            String strFirstName = getSrAttribute( sr, ATTRIBUTE_GIVEN_NAME );
-            String strEmail = getSrAttribute( sr, ATTRIBUTE_EMAIL );
-            String strAccessCode = getSrAttribute( sr, ATTRIBUTE_ACCESS_CODE );
+            LdapConfiguration configuration = getConfiguration( );
+            String strLastName = getSrAttribute( sr, configuration.getAttributeFamilyName( ) );
+            String strFirstName = getSrAttribute( sr, configuration.getAttributeGivenName( ) );
+            String strEmail = getSrAttribute( sr, configuration.getAttributeEmail( ) );
+            String strAccessCode = getSrAttribute( sr, configuration.getAttributeAccessCode( ) );
 
             if ( strAccessCode != null && !"".equals( strAccessCode ) )
             {
-                user = new AdminUser( );
-                user.setAuthenticationService( AdminLdapAuthentication.AUTH_SERVICE_NAME );
-                user.setAccessCode( strAccessCode );
-                user.setLastName( strLastName );
-                user.setFirstName( strFirstName );
-                user.setEmail( strEmail );
+                AdminLdapUser ldapUser = createAdminUser( strAccessCode, strLastName, strFirstName, strEmail );
+
+                LdapGroupService groupService = LdapGroupService.getInstance( );
+                if ( groupService.hasRoleMapping( ) )
+                {
+                    Map<String, RBACRole> mapRoles = groupService.getRoles( getSrDn( sr ) );
+                    if ( mapRoles != null )
+                    {
+                        ldapUser.setRoles( mapRoles );
+                    }
+                    else
+                    {
+                        ldapUser.setRolesUnknown( true );
+                    }
+                }
+                user = ldapUser;
             }
         }
         return user;
     }
 
+    /**
+     * Create a user of this authentication service
+     * 
+     * @param strAccessCode
+     *            the access code
+     * @param strLastName
+     *            the last name
+     * @param strFirstName
+     *            the first name
+     * @param strEmail
+     *            the email
+     * @return the user
+     */
+    public static AdminLdapUser createAdminUser( String strAccessCode, String strLastName, String strFirstName, String strEmail )
+    {
+        AdminLdapUser user = new AdminLdapUser( );
+        user.setAuthenticationService( AdminLdapAuthentication.AUTH_SERVICE_NAME );
+        user.setAccessCode( strAccessCode );
+        user.setLastName( strLastName );
+        user.setFirstName( strFirstName );
+        user.setEmail( strEmail );
+        return user;
+    }
+
     public static List<SearchResult> getUserSearchResult( String strParameterLastName, String strParameterFirstName, String strParameterEmail )
     {
-        return getUserSearchResult( 0, getCompleteFilter( SEARCH_FILTER_BY_CRITERIA ), checkSyntax( strParameterLastName ),
-                checkSyntax( strParameterFirstName ), checkSyntax( strParameterEmail ) );
+        return searchUserResults( 0,
+                getConfiguration( ).getFilterTemplateByCriteria( ).formatPrefixes( strParameterLastName, strParameterFirstName, strParameterEmail ) );
+    }
+
+    /**
+     * Asynchronous version of {@link #getUserSearchResult(String, String, String)}
+     * 
+     * @param strParameterLastName
+     *            the last name prefix
+     * @param strParameterFirstName
+     *            the first name prefix
+     * @param strParameterEmail
+     *            the email prefix
+     * @return the future entries
+     */
+    public static CompletableFuture<List<SearchResult>> getUserSearchResultAsync( String strParameterLastName, String strParameterFirstName,
+            String strParameterEmail )
+    {
+        return LdapExecutorService.getInstance( ).submit( ( ) -> getUserSearchResult( strParameterLastName, strParameterFirstName, strParameterEmail ) );
     }
 
     public static List<AdminUser> getAdminUserSearchResult( String strParameterLastName, String strParameterFirstName, String strParameterEmail )
     {
-        List<AdminUser> userList = new ArrayList<>( );
+        List<AdminUser> userList = LdapUserSnapshotService.getInstance( ).search( strParameterLastName, strParameterFirstName, strParameterEmail );
+        if ( userList != null )
+        {
+            return userList;
+        }
+
+        userList = new ArrayList<>( );
 
         for ( SearchResult sr : getUserSearchResult( strParameterLastName, strParameterFirstName, strParameterEmail ) )
         {
@@ -250,52 +737,533 @@ public class LdapService
         return userList;
     }
 
+    /**
+     * Search users with a filter template. The parameters are escaped, so they only match literally.
+     * 
+     * @param nLimit
+     *            the maximum number of entries, 0 for no limit
+     * @param strLdapSearchFilterTmpl
+     *            the filter template
+     * @param lstSearchParameter
+     *            the filter parameters
+     * @return the entries found
+     */
     public static List<SearchResult> getUserSearchResult( int nLimit, String strLdapSearchFilterTmpl, String... lstSearchParameter )
     {
-        List<SearchResult> srList = new ArrayList<>( );
+        if ( lstSearchParameter == null || lstSearchParameter.length == 0 )
+        {
+            return new ArrayList<>( );
+        }
+        return searchUserResults( nLimit, LdapFilterTemplate.compile( strLdapSearchFilterTmpl ).format( lstSearchParameter ) );
+    }
 
-        if ( lstSearchParameter != null && lstSearchParameter.length > 0 )
+    private static List<SearchResult> searchUserResults( int nLimit, String strUserSearchFilter )
+    {
+        try
+        {
+            return findUserResults( nLimit, strUserSearchFilter );
+        }
+        catch( NamingException e )
         {
+            return new ArrayList<>( );
+        }
+    }
 
-            String strUserSearchFilter = MessageFormat.format( strLdapSearchFilterTmpl, (Object [ ]) lstSearchParameter );
+    /**
+     * Search users on a pooled context, on each server in turn while they cannot be reached
+     * 
+     * @throws NamingException
+     *             if the search failed : circuit breaker open, no pooled connection available in time, directory unreachable or error answered
+     */
+    private static List<SearchResult> findUserResults( int nLimit, String strUserSearchFilter ) throws NamingException
+    {
+        List<SearchResult> srList = new ArrayList<>( );
 
-            SearchControls scUserSearchControls = new SearchControls( );
-            scUserSearchControls.setSearchScope( getUserDnSearchScope( ) );
-            scUserSearchControls.setReturningObjFlag( true );
-            scUserSearchControls.setCountLimit( nLimit );
+        SearchControls scUserSearchControls = new SearchControls( );
+        LdapConfiguration configuration = getConfiguration( );
+        scUserSearchControls.setSearchScope( configuration.getSearchScope( ) );
+        scUserSearchControls.setReturningObjFlag( false );
+        scUserSearchControls.setReturningAttributes( configuration.getReturningAttributes( ) );
+        scUserSearchControls.setCountLimit( nLimit );
 
-            NamingEnumeration<SearchResult> userResults;
-            DirContext context = getAdminContext( );
+        if ( !CIRCUIT_BREAKER.allowRequest( ) )
+        {
+            AppLogService.debug( "LDAP circuit breaker open, search refused : " + strUserSearchFilter );
+            throw new ServiceUnavailableException( "LDAP circuit breaker open" );
+        }
 
+        for ( int nAttempt = 1;; nAttempt++ )
+        {
             try
             {
-                userResults = LdapUtil.searchUsers( context, strUserSearchFilter, USER_DN_SEARCH_BASE + "," + ROOT_DN_SEARCH_BASE, "", scUserSearchControls );
-                AppLogService.debug( " Search users params  : " + strUserSearchFilter );
+                searchUsers( strUserSearchFilter, scUserSearchControls, srList );
+                CIRCUIT_BREAKER.recordSuccess( );
+                break;
+            }
+            catch( CommunicationException e )
+            {
+                if ( nAttempt >= getMaxAttempts( ) )
+                {
+                    CIRCUIT_BREAKER.recordFailure( );
+                    AppLogService.error( "Error while searching for users  with search filter : " + getDebugInfo( strUserSearchFilter ), e );
+                    throw e;
+                }
+                AppLogService.info( "LDAP connection lost while searching for users, retrying on another server : " + e.getMessage( ) );
+                srList.clear( );
+            }
+            catch( NamingException e )
+            {
+                CIRCUIT_BREAKER.recordError( e );
+                AppLogService.error( "Error while searching for users  with search filter : " + getDebugInfo( strUserSearchFilter ), e );
+                throw e;
+            }
+        }
+        return LdapGroupService.getInstance( ).isEnabled( ) ? filterAuthorizedUsers( srList ) : srList;
+    }
+
+    /**
+     * Keep the entries of the members of the authorized groups, checked in memory
+     */
+    private static List<SearchResult> filterAuthorizedUsers( List<SearchResult> srList )
+    {
+        LdapGroupService groupService = LdapGroupService.getInstance( );
+        List<SearchResult> srAuthorizedList = new ArrayList<>( srList.size( ) );
+        for ( SearchResult sr : srList )
+        {
+            if ( groupService.isAuthorized( getSrDn( sr ) ) )
+            {
+                srAuthorizedList.add( sr );
+            }
+        }
+        return srAuthorizedList;
+    }
+
+    /**
+     * @return the DN of an entry : the mapped DN attribute, or the name of the entry
+     */
+    private static String getSrDn( SearchResult sr )
+    {
+        String strDn = getSrAttribute( sr, getConfiguration( ).getAttributeDn( ) );
+        return StringUtils.isNotEmpty( strDn ) ? strDn : sr.getNameInNamespace( );
+    }
 
-                while ( ( userResults != null ) && userResults.hasMore( ) )
+    /**
+     * Run a search on a pooled context. The entries are added to the list as they are read, so that it keeps the entries read before an error.
+     */
+    private static void searchUsers( String strUserSearchFilter, SearchControls scUserSearchControls, List<SearchResult> srList ) throws NamingException
+    {
+        NamingEnumeration<SearchResult> userResults = null;
+        DirContext context = null;
+        boolean bBroken = false;
+        boolean bSuccess = false;
+        int nEntriesBefore = srList.size( );
+        long lStart = System.nanoTime( );
+
+        try
+        {
+            context = ADMIN_CONTEXT_POOL.borrowContext( );
+            userResults = LdapUtil.searchUsers( context, strUserSearchFilter, getConfiguration( ).getUserSearchBase( ), "", scUserSearchControls );
+            AppLogService.debug( " Search users params  : " + strUserSearchFilter );
+
+            while ( ( userResults != null ) && userResults.hasMore( ) )
+            {
+                SearchResult sr = userResults.next( );
+                srList.add( sr );
+            }
+            bSuccess = true;
+        }
+        catch( NamingException e )
+        {
+            NamingException error = LdapTimeoutException.translate( e, lStart, getConfiguration( ).getSearchTimeout( ) );
+            if ( error instanceof CommunicationException )
+            {
+                bBroken = true;
+                getServerSelector( ).recordFailure( context );
+            }
+            METRICS.recordFailure( "search", error );
+            throw error;
+        }
+        finally
+        {
+            METRICS.recordTime( LdapMetricsService.TIMER_SEARCH, lStart, bSuccess );
+            METRICS.increment( LdapMetricsService.COUNTER_SEARCH_ENTRIES, srList.size( ) - nEntriesBefore );
+            closeEnumeration( userResults );
+            if ( bBroken )
+            {
+                ADMIN_CONTEXT_POOL.invalidateContext( context );
+            }
+            else
+            {
+                ADMIN_CONTEXT_POOL.releaseContext( context );
+            }
+        }
+    }
+
+    /**
+     * A pooled connection may have been opened on a server which is now down : a search failing on a lost connection is retried once per server
+     */
+    private static int getMaxAttempts( )
+    {
+        return Math.max( 1, getServerSelector( ).size( ) );
+    }
+
+    /**
+     * Browse all the users matching the criteria, one page at a time, without loading the whole result in memory
+     * 
+     * @param strParameterLastName
+     *            the last name prefix
+     * @param strParameterFirstName
+     *            the first name prefix
+     * @param strParameterEmail
+     *            the email prefix
+     * @param pageConsumer
+     *            called with the users of each page
+     * @return true if every page has been read, false if the search stopped on an error
+     */
+    public static boolean forEachAdminUserPage( String strParameterLastName, String strParameterFirstName, String strParameterEmail,
+            Consumer<List<AdminUser>> pageConsumer )
+    {
+        LdapConfiguration configuration = getConfiguration( );
+        String strUserSearchFilter = configuration.getFilterTemplateByCriteria( ).formatPrefixes( strParameterLastName, strParameterFirstName,
+                strParameterEmail );
+
+        return forEachUserSearchResultPage( strUserSearchFilter, configuration.getReturningAttributes( ), srPage -> {
+            List<AdminUser> userPage = new ArrayList<>( srPage.size( ) );
+            for ( SearchResult sr : srPage )
+            {
+                AdminUser user = getUserFromSr( sr );
+                if ( user != null )
+                {
+                    userPage.add( user );
+                }
+            }
+            pageConsumer.accept( userPage );
+        } );
+    }
+
+    /**
+     * Search users with the paged results control (RFC 2696) so that the search is not truncated by the server size limit. The parameters are escaped, so
+     * they only match literally.
+     * 
+     * @param strLdapSearchFilterTmpl
+     *            the filter template
+     * @param pageConsumer
+     *            called with the entries of each page
+     * @param lstSearchParameter
+     *            the filter parameters
+     * @return true if every page has been read, false if the search stopped on an error
+     */
+    public static boolean forEachUserSearchResultPage( String strLdapSearchFilterTmpl, Consumer<List<SearchResult>> pageConsumer,
+            String... lstSearchParameter )
+    {
+        return forEachUserSearchResultPage( LdapFilterTemplate.compile( strLdapSearchFilterTmpl ).format( lstSearchParameter ),
+                getConfiguration( ).getReturningAttributes( ),
+                pageConsumer );
+    }
+
+    /**
+     * Browse all the users, or only those changed since a high-water mark, one page at a time. The mark is moved forward to the highest value read.
+     * 
+     * @param mark
+     *            the high-water mark
+     * @param bChangesOnly
+     *            true to only read the entries changed since the mark, false to read all of them
+     * @param pageConsumer
+     *            called with the users of each page
+     * @return true if every page has been read, false if the search stopped on an error
+     */
+    public static boolean forEachAdminUserPage( LdapSyncMark mark, boolean bChangesOnly, Consumer<List<AdminUser>> pageConsumer )
+    {
+        return forEachUserSearchResultPage( mark, bChangesOnly, srPage -> {
+            List<AdminUser> userPage = new ArrayList<>( srPage.size( ) );
+            for ( SearchResult sr : srPage )
+            {
+                AdminUser user = getUserFromSr( sr );
+                if ( user != null )
+                {
+                    userPage.add( user );
+                }
+            }
+            pageConsumer.accept( userPage );
+        } );
+    }
+
+    /**
+     * Browse the entries of all the users, or only of those changed since a high-water mark, one page at a time. The mark is moved forward to the highest
+     * value read. The entries are read from the server of the mark when it is pinned to one, without failing over to another server.
+     * 
+     * @param mark
+     *            the high-water mark
+     * @param bChangesOnly
+     *            true to only read the entries changed since the mark, false to read all of them
+     * @param pageConsumer
+     *            called with the entries of each page
+     * @return true if every page has been read, false if the search stopped on an error
+     */
+    public static boolean forEachUserSearchResultPage( LdapSyncMark mark, boolean bChangesOnly, Consumer<List<SearchResult>> pageConsumer )
+    {
+        LdapConfiguration configuration = getConfiguration( );
+        String strUserSearchFilter = configuration.getFilterTemplateByCriteria( ).formatPrefixes( );
+        if ( bChangesOnly && mark.hasValue( ) )
+        {
+            strUserSearchFilter = "(&" + strUserSearchFilter + mark.getFilter( ) + ")";
+        }
+        String [ ] mappedAttributes = configuration.getReturningAttributes( );
+        String [ ] returningAttributes = Arrays.copyOf( mappedAttributes, mappedAttributes.length + 1 );
+        returningAttributes [mappedAttributes.length] = mark.getAttribute( );
+
+        return forEachUserSearchResultPage( strUserSearchFilter, returningAttributes, mark.getServer( ), srPage -> {
+            for ( SearchResult sr : srPage )
+            {
+                mark.update( getSrAttribute( sr, mark.getAttribute( ) ) );
+            }
+            pageConsumer.accept( srPage );
+        } );
+    }
+
+    /**
+     * @param sr
+     *            a user entry
+     * @return the access code of the entry, or null
+     */
+    public static String getSrAccessCode( SearchResult sr )
+    {
+        return getSrAttribute( sr, getConfiguration( ).getAttributeAccessCode( ) );
+    }
+
+    private static boolean forEachUserSearchResultPage( String strUserSearchFilter, String [ ] returningAttributes,
+            Consumer<List<SearchResult>> pageConsumer )
+    {
+        return forEachUserSearchResultPage( strUserSearchFilter, returningAttributes, null, pageConsumer );
+    }
+
+    private static boolean forEachUserSearchResultPage( String strUserSearchFilter, String [ ] returningAttributes, String strServer,
+            Consumer<List<SearchResult>> pageConsumer )
+    {
+        Consumer<List<SearchResult>> consumer = pageConsumer;
+        LdapGroupService groupService = LdapGroupService.getInstance( );
+        if ( groupService.isEnabled( ) )
+        {
+            consumer = srPage -> pageConsumer.accept( filterAuthorizedUsers( srPage ) );
+        }
+        LdapConfiguration configuration = getConfiguration( );
+        return forEachSearchResultPage( configuration.getUserSearchBase( ), configuration.getSearchScope( ), strUserSearchFilter, returningAttributes,
+                strServer, consumer );
+    }
+
+    /**
+     * Browse the entries matching a filter, one page at a time
+     * 
+     * @param strSearchBase
+     *            the DN of the subtree to search
+     * @param strFilter
+     *            the filter
+     * @param returningAttributes
+     *            the attributes to read
+     * @param pageConsumer
+     *            called with the entries of each page
+     * @return true if every page has been read, false if the search stopped on an error
+     */
+    public static boolean forEachSearchResultPage( String strSearchBase, String strFilter, String [ ] returningAttributes,
+            Consumer<List<SearchResult>> pageConsumer )
+    {
+        return forEachSearchResultPage( strSearchBase, SearchControls.SUBTREE_SCOPE, strFilter, returningAttributes, null, pageConsumer );
+    }
+
+    /**
+     * Browse the entries matching a filter, one page at a time, from a given server or from the pool when strServer is null
+     */
+    private static boolean forEachSearchResultPage( String strSearchBase, int nScope, String strUserSearchFilter, String [ ] returningAttributes,
+            String strServer, Consumer<List<SearchResult>> pageConsumer )
+    {
+        SearchControls scUserSearchControls = new SearchControls( );
+        scUserSearchControls.setSearchScope( nScope );
+        scUserSearchControls.setReturningObjFlag( false );
+        scUserSearchControls.setReturningAttributes( returningAttributes );
+
+        AtomicInteger nPagesRead = new AtomicInteger( );
+        Consumer<List<SearchResult>> countingConsumer = srPage -> {
+            nPagesRead.incrementAndGet( );
+            pageConsumer.accept( srPage );
+        };
+
+        if ( !CIRCUIT_BREAKER.allowRequest( ) )
+        {
+            AppLogService.error( "LDAP circuit breaker open, search refused : " + getDebugInfo( strUserSearchFilter ) );
+            return false;
+        }
+
+        for ( int nAttempt = 1;; nAttempt++ )
+        {
+            try
+            {
+                searchUserPages( strSearchBase, strUserSearchFilter, scUserSearchControls, strServer, countingConsumer );
+                CIRCUIT_BREAKER.recordSuccess( );
+                return true;
+            }
+            catch( CommunicationException e )
+            {
+                // Once pages have been handed out, starting again would hand them out twice
+                if ( nPagesRead.get( ) > 0 || nAttempt >= getMaxAttempts( ) )
                 {
-                    SearchResult sr = userResults.next( );
-                    srList.add( sr );
+                    CIRCUIT_BREAKER.recordFailure( );
+                    AppLogService.error( "Error while searching for users  with search filter : " + getDebugInfo( strUserSearchFilter ), e );
+                    return false;
                 }
+                AppLogService.info( "LDAP connection lost while searching for users, retrying" + ( ( strServer == null ) ? " on another server" : "" ) + " : "
+                        + e.getMessage( ) );
             }
             catch( NamingException e )
             {
+                CIRCUIT_BREAKER.recordError( e );
                 AppLogService.error( "Error while searching for users  with search filter : " + getDebugInfo( strUserSearchFilter ), e );
+                return false;
             }
-            finally
+            catch( IOException e )
+            {
+                // A failure to encode the paging control says nothing about the health of the directory : no outcome is recorded
+                AppLogService.error( "Error while searching for users  with search filter : " + getDebugInfo( strUserSearchFilter ), e );
+                return false;
+            }
+        }
+    }
+
+    private static void searchUserPages( String strSearchBase, String strUserSearchFilter, SearchControls scUserSearchControls, String strServer,
+            Consumer<List<SearchResult>> pageConsumer ) throws NamingException, IOException
+    {
+        NamingEnumeration<SearchResult> userResults = null;
+        LdapContext context = null;
+        boolean bBroken = false;
+        boolean bSuccess = false;
+        long lEntries = 0;
+        long lStart = System.nanoTime( );
+        long lRequestStart = lStart;
+
+        try
+        {
+            int nPageSize = getConfiguration( ).getPageSize( );
+            // A pinned search gets a connection of its own : the pooled ones are spread over all the servers
+            context = ( strServer == null ) ? (LdapContext) ADMIN_CONTEXT_POOL.borrowContext( ) : openServerContext( strServer );
+            AppLogService.debug( " Search users params  : " + strUserSearchFilter );
+            byte [ ] cookie = null;
+
+            do
+            {
+                context.setRequestControls( new Control [ ] {
+                        new PagedResultsControl( nPageSize, cookie, Control.NONCRITICAL )
+                } );
+                lRequestStart = System.nanoTime( );
+                userResults = context.search( strSearchBase, strUserSearchFilter, scUserSearchControls );
+
+                List<SearchResult> srPage = new ArrayList<>( nPageSize );
+                while ( userResults.hasMore( ) )
+                {
+                    srPage.add( userResults.next( ) );
+                }
+                closeEnumeration( userResults );
+                userResults = null;
+                lEntries += srPage.size( );
+
+                pageConsumer.accept( srPage );
+                cookie = getPagedResultsCookie( context.getResponseControls( ) );
+            }
+            while ( cookie != null && cookie.length > 0 );
+            bSuccess = true;
+        }
+        catch( NamingException e )
+        {
+            // Only the time of the current page counts for the timeout, not the processing of the previous pages
+            NamingException error = LdapTimeoutException.translate( e, lRequestStart, getConfiguration( ).getSearchTimeout( ) );
+            if ( error instanceof CommunicationException )
+            {
+                bBroken = true;
+                getServerSelector( ).recordFailure( context );
+            }
+            METRICS.recordFailure( "search", error );
+            throw error;
+        }
+        finally
+        {
+            // The time includes the processing of the pages by the consumer
+            METRICS.recordTime( LdapMetricsService.TIMER_SEARCH_PAGED, lStart, bSuccess );
+            METRICS.increment( LdapMetricsService.COUNTER_SEARCH_ENTRIES, lEntries );
+            closeEnumeration( userResults );
+            if ( strServer == null )
+            {
+                releasePagedContext( context, bBroken );
+            }
+            else
             {
                 freeContext( context );
             }
+        }
+    }
 
+    private static byte [ ] getPagedResultsCookie( Control [ ] responseControls )
+    {
+        if ( responseControls != null )
+        {
+            for ( Control control : responseControls )
+            {
+                if ( control instanceof PagedResultsResponseControl )
+                {
+                    return ( (PagedResultsResponseControl) control ).getCookie( );
+                }
+            }
+        }
+        return null;
+    }
+
+    private static void releasePagedContext( LdapContext context, boolean bBroken )
+    {
+        if ( context != null && !bBroken )
+        {
+            try
+            {
+                // The context goes back to the pool : the next borrower must not inherit the paging control
+                context.setRequestControls( null );
+            }
+            catch( NamingException e )
+            {
+                bBroken = true;
+            }
+        }
+
+        if ( bBroken )
+        {
+            ADMIN_CONTEXT_POOL.invalidateContext( context );
+        }
+        else
+        {
+            ADMIN_CONTEXT_POOL.releaseContext( context );
+        }
+    }
+
+    private static void closeEnumeration( NamingEnumeration<SearchResult> results )
+    {
+        try
+        {
+            if ( results != null )
+            {
+                results.close( );
+            }
+        }
+        catch( NamingException e )
+        {
+            AppLogService.error( "Unable to close ldap search results ", e );
         }
-        return srList;
     }
 
     public static String getSrAttribute( SearchResult sr, String strAttributeName )
     {
         try
         {
-            return sr.getAttributes( ).get( strAttributeName ).get( ).toString( );
+            Attribute attribute = sr.getAttributes( ).get( strAttributeName );
+            if ( attribute == null )
+            {
+                return null;
+            }
+            return attribute.get( ).toString( );
         }
         catch( NamingException e )
         {
@@ -308,69 +1276,307 @@ public class LdapService
     {
         StringBuilder sb = new StringBuilder( );
         sb.append( "userBase : " );
-        sb.append( USER_DN_SEARCH_BASE );
+        sb.append( getConfiguration( ).getUserBase( ) );
         sb.append( "\nuserSearch : " );
         sb.append( strUserSearchFilter );
 
         return sb.toString( );
     }
 
-    private static String checkSyntax( String in )
+    /**
+     * Check the credentials of a user with a bind, on a pooled connection when the bind pool is enabled
+     */
+    private static void bindUser( String strUserDn, String strUserPassword ) throws NamingException
     {
-        return ( ( ( in == null ) || ( in.equals( "" ) ) ) ? CONSTANT_WILDCARD : in + CONSTANT_WILDCARD );
+        long lStart = System.nanoTime( );
+        try
+        {
+            // An empty password would be an unauthenticated bind, which many servers accept
+            if ( StringUtils.isEmpty( strUserPassword ) )
+            {
+                throw new AuthenticationException( "Empty password" );
+            }
+            if ( !rebindPooledContext( strUserDn, strUserPassword ) )
+            {
+                LdapConfiguration configuration = getConfiguration( );
+                char [ ] password = strUserPassword.toCharArray( );
+                freeContext( getServerSelector( ).execute(
+                        strProviderUrl -> createLdapContext( configuration, strProviderUrl, strUserDn, password, configuration.getBindTimeout( ) ) ) );
+            }
+            CIRCUIT_BREAKER.recordSuccess( );
+            METRICS.recordTime( LdapMetricsService.TIMER_BIND, lStart, true );
+        }
+        catch( NamingException e )
+        {
+            CIRCUIT_BREAKER.recordError( e );
+            METRICS.recordTime( LdapMetricsService.TIMER_BIND, lStart, false );
+            METRICS.recordFailure( "bind", e );
+            throw e;
+        }
     }
 
-    private static String getCompleteFilter( String strFilter )
+    /**
+     * Bind with the credentials of a user on a connection of the bind pool, then bind it back with the service account before returning it to the pool.
+     * 
+     * @return true if the credentials are valid, false if no pooled connection could be used and a new connection must be opened
+     * @throws NamingException
+     *             if the credentials are rejected
+     */
+    private static boolean rebindPooledContext( String strUserDn, String strUserPassword ) throws NamingException
     {
-        StringBuilder sb = new StringBuilder( );
-        sb.append( "(&" );
-        sb.append( strFilter );
-        if ( StringUtils.isNotEmpty( ATTRIBUTE_GROUP ) && StringUtils.isNotEmpty( SEARCH_FILTER_GROUP ) )
+        if ( !BIND_CONTEXT_POOL.isEnabled( ) )
         {
-            sb.append( "(" ).append( ATTRIBUTE_GROUP ).append( "=" ).append( SEARCH_FILTER_GROUP );
-            if ( StringUtils.isNotEmpty( ROOT_DN_SEARCH_BASE ) )
+            return false;
+        }
+
+        DirContext context;
+        try
+        {
+            context = BIND_CONTEXT_POOL.borrowContext( );
+        }
+        catch( NamingException e )
+        {
+            AppLogService.debug( "No pooled LDAP connection to check the credentials : " + e.getMessage( ) );
+            return false;
+        }
+
+        boolean bReusable = false;
+        char [ ] password = strUserPassword.toCharArray( );
+        try
+        {
+            long lStart = System.nanoTime( );
+            try
+            {
+                rebind( context, strUserDn, password );
+                // The connection does not keep the password of the user, even when it stays bound with its identity
+                context.removeFromEnvironment( Context.SECURITY_CREDENTIALS );
+            }
+            catch( AuthenticationException e )
+            {
+                // Bound back with the service account, the connection is still usable : wrong passwords do not empty the pool
+                bReusable = resetBindContext( context );
+                throw e;
+            }
+            catch( NamingException e )
             {
-                sb.append( "," ).append( ROOT_DN_SEARCH_BASE );
+                throw LdapTimeoutException.translate( e, lStart, getConfiguration( ).getBindTimeout( ) );
             }
-            sb.append( ")" );
+            finally
+            {
+                LdapBindCredential.wipe( password );
+            }
+            bReusable = !BIND_POOL_RESET_ON_RELEASE || resetBindContext( context );
+            return true;
+        }
+        catch( CommunicationException e )
+        {
+            // The idle connection was lost : the bind is retried on a new connection
+            getServerSelector( ).recordFailure( context );
+            AppLogService.debug( "Pooled LDAP connection lost, the credentials are checked on a new connection : " + e.getMessage( ) );
+            return false;
         }
-        sb.append( ")" );
+        finally
+        {
+            if ( bReusable )
+            {
+                BIND_CONTEXT_POOL.releaseContext( context );
+            }
+            else
+            {
+                // After a failed bind or reset, the identity of the connection is undefined
+                BIND_CONTEXT_POOL.invalidateContext( context );
+            }
+        }
+    }
 
-        return sb.toString( );
+    /**
+     * Bind with the service account again, so that an idle connection never holds the identity of a user
+     * 
+     * @return true if the connection can be given back to the pool
+     */
+    private static boolean resetBindContext( DirContext context )
+    {
+        try
+        {
+            rebind( context, getConfiguration( ).getBindDn( ), getBindPassword( ) );
+            return true;
+        }
+        catch( NamingException e )
+        {
+            AppLogService.debug( "Unable to reset a pooled LDAP connection : " + e.getMessage( ) );
+            return false;
+        }
     }
 
-    private static int getUserDnSearchScope( )
+    /**
+     * Send a new bind request on the connection of the context. The password it replaces in the environment is wiped.
+     */
+    private static void rebind( DirContext context, String strDn, char [ ] password ) throws NamingException
     {
-        if ( SEARCH_SCOPE.equalsIgnoreCase( "true" ) )
+        Object previousPassword = context.getEnvironment( ).get( Context.SECURITY_CREDENTIALS );
+        try
+        {
+            context.addToEnvironment( Context.SECURITY_PRINCIPAL, strDn );
+            context.addToEnvironment( Context.SECURITY_CREDENTIALS, password );
+            ( (LdapContext) context ).reconnect( null );
+        }
+        finally
         {
-            return SearchControls.SUBTREE_SCOPE;
+            if ( previousPassword != password )
+            {
+                LdapBindCredential.wipe( previousPassword );
+            }
         }
-        return SearchControls.ONELEVEL_SCOPE;
     }
 
+    /**
+     * Check the credentials of a user. Any failure, including an unavailable directory, is reported as a failed login.
+     * 
+     * @param strAccessCode
+     *            the access code
+     * @param strUserPassword
+     *            the password
+     * @throws FailedLoginException
+     *             if the credentials are rejected or could not be checked
+     */
     public static void login( String strAccessCode, String strUserPassword ) throws FailedLoginException
     {
-        DirContext context = null;
         try
         {
-            SearchResult sr = getUserSearchResult( strAccessCode );
+            checkCredentials( strAccessCode, strUserPassword );
+        }
+        catch( FailedLoginException e )
+        {
+            throw e;
+        }
+        catch( LoginException e )
+        {
+            throw new FailedLoginException( e.getMessage( ) );
+        }
+    }
+
+    /**
+     * Check the credentials of a user : one search to find its entry, then one bind with its DN. Credentials checked recently are not sent to the directory
+     * again when the credential cache is enabled.
+     * 
+     * @param strAccessCode
+     *            the access code
+     * @param strUserPassword
+     *            the password
+     * @return the DN and the user mapped from the entry found during the lookup
+     * @throws FailedLoginException
+     *             if the user is unknown or the bind fails
+     * @throws LoginException
+     *             if the credentials could not be checked : directory unavailable or no pooled connection free in time
+     */
+    public static LdapLoginResult checkCredentials( String strAccessCode, String strUserPassword ) throws LoginException
+    {
+        LdapCredentialCacheService credentialCache = LdapCredentialCacheService.getInstance( );
+        if ( credentialCache.isEnabled( ) )
+        {
+            LdapLoginResult cachedResult = credentialCache.get( strAccessCode, strUserPassword );
+            METRICS.increment( ( cachedResult != null ) ? LdapMetricsService.COUNTER_CREDENTIAL_CACHE_HIT : LdapMetricsService.COUNTER_CREDENTIAL_CACHE_MISS, 1 );
+            if ( cachedResult != null )
+            {
+                return cachedResult;
+            }
+        }
+
+        boolean bSuccess = false;
+        long lStart = System.nanoTime( );
+        try
+        {
+            SearchResult sr = findUserSearchResult( strAccessCode );
             if ( sr != null )
             {
-                context = LdapUtil.bindUser( INITIAL_CONTEXT_PROVIDER, PROVIDER_URL, getSrAttribute( sr, ATTRIBUTE_DN ), strUserPassword );
+                String strUserDn = getSrAttribute( sr, getConfiguration( ).getAttributeDn( ) );
+                bindUser( strUserDn, strUserPassword );
+
+                AdminUser user = getUserFromSr( sr );
+                // The entry has just been read : it refreshes the cached public data of the user
+                LdapAdminUserCacheService.getInstance( ).put( strAccessCode, user );
+
+                LdapLoginResult result = new LdapLoginResult( strUserDn, user );
+                credentialCache.put( strAccessCode, strUserPassword, result );
+                bSuccess = true;
+                return result;
             }
             else
             {
+                credentialCache.invalidate( strAccessCode );
                 throw new FailedLoginException( );
             }
         }
         catch( NamingException e )
         {
+            // The credentials have not been checked : the user is not blamed for it and the cached credentials are kept
+            if ( LdapCircuitBreaker.isUnavailability( e ) || e instanceof LdapPoolExhaustedException )
+            {
+                throw new LoginException( "LDAP directory unavailable : " + e.getMessage( ) );
+            }
+            credentialCache.invalidate( strAccessCode );
             throw new FailedLoginException( );
         }
         finally
         {
-            freeContext( context );
+            METRICS.recordTime( LdapMetricsService.TIMER_LOGIN, lStart, bSuccess );
+        }
+    }
+
+    /**
+     * Asynchronous version of {@link #checkCredentials(String, String)}. The future fails with a {@link FailedLoginException} when the credentials are rejected, with
+     * another {@link LoginException} when they could not be checked.
+     * 
+     * @param strAccessCode
+     *            the access code
+     * @param strUserPassword
+     *            the password
+     * @return the future result
+     */
+    public static CompletableFuture<LdapLoginResult> loginAsync( String strAccessCode, String strUserPassword )
+    {
+        return LdapExecutorService.getInstance( ).submit( ( ) -> checkCredentials( strAccessCode, strUserPassword ) );
+    }
+
+    /**
+     * Opens the contexts of a pool with the configuration in use, whose state is their version : the contexts opened before a reload are not reused
+     */
+    private static final class ConfiguredContextFactory implements LdapContextFactory
+    {
+        private final LdapContextFactory _factory;
+
+        ConfiguredContextFactory( LdapContextFactory factory )
+        {
+            _factory = factory;
+        }
+
+        @Override
+        public DirContext createContext( ) throws NamingException
+        {
+            return _factory.createContext( );
+        }
+
+        @Override
+        public Object getVersion( )
+        {
+            return _state;
         }
     }
 
+    /**
+     * Configuration with the selector of its servers and the credential of its service account, replaced together
+     */
+    private static final class ConfigurationState
+    {
+        private final LdapConfiguration _configuration;
+        private final LdapServerSelector _serverSelector;
+        private final LdapBindCredential _bindCredential;
+
+        ConfigurationState( LdapConfiguration configuration )
+        {
+            _configuration = configuration;
+            _serverSelector = configuration.createServerSelector( );
+            _bindCredential = configuration.createBindCredential( );
+        }
+    }
 }
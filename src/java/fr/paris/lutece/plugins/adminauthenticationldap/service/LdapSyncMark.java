@@ -0,0 +1,170 @@
+/*
+ * Copyright (c) 2002-2021, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.adminauthenticationldap.service;
+
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * High-water mark of a directory synchronization : the highest value of a change tracking attribute seen so far, such as <code>modifyTimestamp</code> or,
+ * on Active Directory, <code>uSNChanged</code>
+ */
+public class LdapSyncMark
+{
+    private static final String SEPARATOR = "=";
+
+    private final String _strAttribute;
+    private String _strValue;
+    private String _strServer;
+
+    /**
+     * Constructor
+     * 
+     * @param strAttribute
+     *            the change tracking attribute
+     * @param strValue
+     *            the initial value, may be null
+     */
+    public LdapSyncMark( String strAttribute, String strValue )
+    {
+        _strAttribute = strAttribute;
+        _strValue = strValue;
+    }
+
+    /**
+     * Restore a mark saved with {@link #toString()}
+     * 
+     * @param strAttribute
+     *            the change tracking attribute currently configured
+     * @param strSavedMark
+     *            the saved mark
+     * @return the mark, without value if none was saved or if it was saved for another attribute
+     */
+    public static LdapSyncMark parse( String strAttribute, String strSavedMark )
+    {
+        String strPrefix = strAttribute + SEPARATOR;
+
+        if ( StringUtils.startsWith( strSavedMark, strPrefix ) )
+        {
+            return new LdapSyncMark( strAttribute, StringUtils.trimToNull( strSavedMark.substring( strPrefix.length( ) ) ) );
+        }
+        return new LdapSyncMark( strAttribute, null );
+    }
+
+    /**
+     * @return the change tracking attribute
+     */
+    public String getAttribute( )
+    {
+        return _strAttribute;
+    }
+
+    /**
+     * @return the highest value seen, or null
+     */
+    public String getValue( )
+    {
+        return _strValue;
+    }
+
+    /**
+     * @return the URL of the server the entries are read from, or null to read them from any server
+     */
+    public String getServer( )
+    {
+        return _strServer;
+    }
+
+    /**
+     * Pin the search to a server : the change tracking values are specific to each server, a mark is only meaningful on the server it was read from
+     * 
+     * @param strServer
+     *            the URL of the server, or null to read the entries from any server
+     */
+    public void setServer( String strServer )
+    {
+        _strServer = strServer;
+    }
+
+    /**
+     * @return true if a value has been seen
+     */
+    public boolean hasValue( )
+    {
+        return _strValue != null;
+    }
+
+    /**
+     * @return the filter matching the entries changed since this mark, or an empty string if there is no mark yet
+     */
+    public String getFilter( )
+    {
+        if ( !hasValue( ) )
+        {
+            return "";
+        }
+        return "(" + _strAttribute + ">=" + LdapFilterTemplate.escape( _strValue ) + ")";
+    }
+
+    /**
+     * Move the mark forward if the value is higher than the current one
+     * 
+     * @param strValue
+     *            the value read on an entry
+     */
+    public synchronized void update( String strValue )
+    {
+        if ( StringUtils.isNotBlank( strValue ) && ( _strValue == null || compare( strValue, _strValue ) > 0 ) )
+        {
+            _strValue = strValue;
+        }
+    }
+
+    /**
+     * Compare two values : numerically for update sequence numbers, lexicographically for generalized times
+     */
+    private static int compare( String strValue1, String strValue2 )
+    {
+        if ( StringUtils.isNumeric( strValue1 ) && StringUtils.isNumeric( strValue2 ) && strValue1.length( ) != strValue2.length( ) )
+        {
+            return strValue1.length( ) - strValue2.length( );
+        }
+        return strValue1.compareTo( strValue2 );
+    }
+
+    @Override
+    public String toString( )
+    {
+        return _strAttribute + SEPARATOR + StringUtils.defaultString( _strValue );
+    }
+}
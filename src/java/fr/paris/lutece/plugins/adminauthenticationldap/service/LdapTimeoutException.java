@@ -0,0 +1,90 @@
+/*
+ * Copyright (c) 2002-2021, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.adminauthenticationldap.service;
+
+import org.apache.commons.lang3.math.NumberUtils;
+
+import javax.naming.CommunicationException;
+import javax.naming.NamingException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reply of the directory not received within the read timeout.
+ * <p>
+ * The JNDI LDAP provider reports a read timeout with a plain NamingException, without cause. It is recognized by its exact type and by the time elapsed since
+ * the request was sent, then replaced by this exception : as a communication error, it is retried on another server, counts for the ejection of the server
+ * and for the circuit breaker.
+ * </p>
+ */
+public class LdapTimeoutException extends CommunicationException
+{
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Constructor
+     * 
+     * @param strMessage
+     *            the message
+     */
+    public LdapTimeoutException( String strMessage )
+    {
+        super( strMessage );
+    }
+
+    /**
+     * Replace the error of a request by a LdapTimeoutException if it is a read timeout
+     * 
+     * @param e
+     *            the error
+     * @param lStart
+     *            the time the request was sent, from {@link System#nanoTime()}
+     * @param strReadTimeout
+     *            the read timeout of the request in milliseconds
+     * @return a LdapTimeoutException caused by the error if it is a read timeout, the error itself otherwise
+     */
+    public static NamingException translate( NamingException e, long lStart, String strReadTimeout )
+    {
+        long lReadTimeout = NumberUtils.toLong( strReadTimeout, 0L );
+
+        // The errors answered by the directory are subclasses or carry a cause, and come back before the timeout
+        if ( e.getClass( ) == NamingException.class && e.getRootCause( ) == null && lReadTimeout > 0
+                && System.nanoTime( ) - lStart >= TimeUnit.MILLISECONDS.toNanos( lReadTimeout ) )
+        {
+            LdapTimeoutException timeout = new LdapTimeoutException( e.getMessage( ) );
+            timeout.setRootCause( e );
+            return timeout;
+        }
+        return e;
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) 2002-2021, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.adminauthenticationldap.service;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * Statistics of a timed operation at a given time, durations in milliseconds
+ */
+public class LdapTimerSnapshot
+{
+    private final long _lCount;
+    private final long _lFailures;
+    private final double _dMean;
+    private final double _dMax;
+    private final double _dPercentile50;
+    private final double _dPercentile95;
+    private final double _dPercentile99;
+
+    /**
+     * Constructor
+     * 
+     * @param count
+     *            the number of operations
+     * @param failures
+     *            the number of failed operations
+     * @param mean
+     *            the mean duration
+     * @param max
+     *            the longest duration
+     * @param percentile50
+     *            the median duration
+     * @param percentile95
+     *            the 95th percentile of the durations
+     * @param percentile99
+     *            the 99th percentile of the durations
+     */
+    @ConstructorProperties( {
+            "count", "failures", "mean", "max", "percentile50", "percentile95", "percentile99"
+    } )
+    public LdapTimerSnapshot( long count, long failures, double mean, double max, double percentile50, double percentile95, double percentile99 )
+    {
+        _lCount = count;
+        _lFailures = failures;
+        _dMean = mean;
+        _dMax = max;
+        _dPercentile50 = percentile50;
+        _dPercentile95 = percentile95;
+        _dPercentile99 = percentile99;
+    }
+
+    /**
+     * @return the number of operations
+     */
+    public long getCount( )
+    {
+        return _lCount;
+    }
+
+    /**
+     * @return the number of failed operations
+     */
+    public long getFailures( )
+    {
+        return _lFailures;
+    }
+
+    /**
+     * @return the mean duration
+     */
+    public double getMean( )
+    {
+        return _dMean;
+    }
+
+    /**
+     * @return the longest duration
+     */
+    public double getMax( )
+    {
+        return _dMax;
+    }
+
+    /**
+     * @return the median duration, estimated from the histogram
+     */
+    public double getPercentile50( )
+    {
+        return _dPercentile50;
+    }
+
+    /**
+     * @return the 95th percentile of the durations, estimated from the histogram
+     */
+    public double getPercentile95( )
+    {
+        return _dPercentile95;
+    }
+
+    /**
+     * @return the 99th percentile of the durations, estimated from the histogram
+     */
+    public double getPercentile99( )
+    {
+        return _dPercentile99;
+    }
+
+    @Override
+    public String toString( )
+    {
+        return String.format( java.util.Locale.ROOT, "count=%d failures=%d mean=%.2fms p50=%.2fms p95=%.2fms p99=%.2fms max=%.2fms", _lCount, _lFailures,
+                _dMean, _dPercentile50, _dPercentile95, _dPercentile99, _dMax );
+    }
+}
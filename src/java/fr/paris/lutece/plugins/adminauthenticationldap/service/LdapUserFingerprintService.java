@@ -0,0 +1,187 @@
+/*
+ * Copyright (c) 2002-2021, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.adminauthenticationldap.service;
+
+import fr.paris.lutece.portal.business.rbac.RBACRole;
+import fr.paris.lutece.portal.business.user.AdminUser;
+import fr.paris.lutece.portal.service.util.AppPropertiesService;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Fingerprints of the user profiles last saved in the database.
+ * <p>
+ * A fingerprint is a hash of the last name, first name and email, ignoring case like {@link fr.paris.lutece.plugins.adminauthenticationldap.AdminLdapAuthentication#COMPARATOR_USER}.
+ * When the fingerprint of a profile read from the directory matches the one recorded at the last synchronization, and the database row still exists with
+ * the same profile, the roles of the user are known to be up to date and are not synchronized again. Fingerprints expire so that changes made to the roles
+ * outside of the synchronization are eventually overwritten again.
+ * </p>
+ * <p>
+ * The fingerprints are kept in the memory of each node : they are neither shared nor invalidated across a cluster, a role changed in the database by
+ * another node or in the back office is only restored once the fingerprint has expired.
+ * </p>
+ */
+public final class LdapUserFingerprintService
+{
+    private static final String PROPERTY_TTL = "adminauthenticationldap.fingerprint.ttl";
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+    private static final char SEPARATOR = '\u0000';
+
+    private static LdapUserFingerprintService _singleton = new LdapUserFingerprintService( );
+
+    private final Map<String, Fingerprint> _mapFingerprints = new ConcurrentHashMap<>( );
+    private final long _lTtl = AppPropertiesService.getPropertyInt( PROPERTY_TTL, 86400 ) * 1000L;
+
+    /**
+     * Private constructor
+     */
+    private LdapUserFingerprintService( )
+    {
+    }
+
+    /**
+     * @return the unique instance
+     */
+    public static LdapUserFingerprintService getInstance( )
+    {
+        return _singleton;
+    }
+
+    /**
+     * Compute the fingerprint of a profile, without copying its values. The roles given by the LDAP groups are part of the profile, whatever their order.
+     * 
+     * @param user
+     *            the user
+     * @return the fingerprint
+     */
+    public static long fingerprint( AdminUser user )
+    {
+        long lHash = FNV_OFFSET_BASIS;
+        lHash = hash( lHash, user.getLastName( ) );
+        lHash = hash( lHash, user.getFirstName( ) );
+        lHash = hash( lHash, user.getEmail( ) );
+
+        Map<String, RBACRole> mapRoles = user.getRoles( );
+        if ( mapRoles != null && !mapRoles.isEmpty( ) )
+        {
+            long lRoles = 0;
+            for ( String strRole : mapRoles.keySet( ) )
+            {
+                lRoles += hash( FNV_OFFSET_BASIS, strRole );
+            }
+            lHash = ( lHash ^ lRoles ) * FNV_PRIME;
+        }
+        return lHash;
+    }
+
+    /**
+     * Tell whether the database row of a user is known to match its profile read from the directory
+     * 
+     * @param user
+     *            the user read from the directory
+     * @return true if the profile has not changed since it was last saved
+     */
+    public boolean isUnchanged( AdminUser user )
+    {
+        Fingerprint fingerprint = _mapFingerprints.get( user.getAccessCode( ) );
+
+        return fingerprint != null && System.currentTimeMillis( ) - fingerprint._lRecordTime < _lTtl && fingerprint._lValue == fingerprint( user );
+    }
+
+    /**
+     * Record the profile of a user which has just been saved in, or compared with, the database
+     * 
+     * @param user
+     *            the user
+     */
+    public void record( AdminUser user )
+    {
+        if ( user.getAccessCode( ) != null )
+        {
+            _mapFingerprints.put( user.getAccessCode( ), new Fingerprint( fingerprint( user ), System.currentTimeMillis( ) ) );
+        }
+    }
+
+    /**
+     * Forget the fingerprint of a user
+     * 
+     * @param strAccessCode
+     *            the access code
+     */
+    public void invalidate( String strAccessCode )
+    {
+        if ( strAccessCode != null )
+        {
+            _mapFingerprints.remove( strAccessCode );
+        }
+    }
+
+    /**
+     * Forget all the fingerprints
+     */
+    public void clear( )
+    {
+        _mapFingerprints.clear( );
+    }
+
+    private static long hash( long lHash, String strValue )
+    {
+        long lResult = lHash;
+        if ( strValue != null )
+        {
+            for ( int i = 0; i < strValue.length( ); i++ )
+            {
+                lResult = ( lResult ^ Character.toUpperCase( strValue.charAt( i ) ) ) * FNV_PRIME;
+            }
+        }
+        return ( lResult ^ SEPARATOR ) * FNV_PRIME;
+    }
+
+    /**
+     * Fingerprint and the time it was recorded
+     */
+    private static final class Fingerprint
+    {
+        private final long _lValue;
+        private final long _lRecordTime;
+
+        Fingerprint( long lValue, long lRecordTime )
+        {
+            _lValue = lValue;
+            _lRecordTime = lRecordTime;
+        }
+    }
+}
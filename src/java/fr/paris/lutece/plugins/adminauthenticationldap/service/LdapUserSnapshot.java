@@ -0,0 +1,274 @@
+/*
+ * Copyright (c) 2002-2021, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.adminauthenticationldap.service;
+
+import fr.paris.lutece.portal.business.user.AdminUser;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Immutable copy of the directory users with a sorted index on the last name, the first name and the email, answering prefix searches without the directory.
+ * Prefixes are matched ignoring case, as the directory does for these attributes.
+ */
+public final class LdapUserSnapshot
+{
+    private final Map<String, Entry> _mapEntries;
+    private final long _lCreationTime;
+    private final PrefixIndex _lastNameIndex;
+    private final PrefixIndex _firstNameIndex;
+    private final PrefixIndex _emailIndex;
+
+    private LdapUserSnapshot( Map<String, Entry> mapEntries )
+    {
+        _mapEntries = Collections.unmodifiableMap( mapEntries );
+        _lCreationTime = System.currentTimeMillis( );
+
+        Entry [ ] entries = mapEntries.values( ).toArray( new Entry [ mapEntries.size( )] );
+        _lastNameIndex = new PrefixIndex( entries, Entry::getLastNameKey );
+        _firstNameIndex = new PrefixIndex( entries, Entry::getFirstNameKey );
+        _emailIndex = new PrefixIndex( entries, Entry::getEmailKey );
+    }
+
+    /**
+     * Create a snapshot of the given users
+     * 
+     * @param users
+     *            the users read from the directory
+     * @return the snapshot
+     */
+    public static LdapUserSnapshot of( Collection<AdminUser> users )
+    {
+        Map<String, Entry> mapEntries = new HashMap<>( );
+        for ( AdminUser user : users )
+        {
+            mapEntries.put( user.getAccessCode( ), new Entry( user ) );
+        }
+        return new LdapUserSnapshot( mapEntries );
+    }
+
+    /**
+     * Create a new snapshot with the users of this one, replaced or completed by the given users
+     * 
+     * @param changedUsers
+     *            the users changed in the directory
+     * @return the new snapshot
+     */
+    public LdapUserSnapshot merge( Collection<AdminUser> changedUsers )
+    {
+        Map<String, Entry> mapEntries = new HashMap<>( _mapEntries );
+        for ( AdminUser user : changedUsers )
+        {
+            mapEntries.put( user.getAccessCode( ), new Entry( user ) );
+        }
+        return new LdapUserSnapshot( mapEntries );
+    }
+
+    /**
+     * @return the time the snapshot was created
+     */
+    public long getCreationTime( )
+    {
+        return _lCreationTime;
+    }
+
+    /**
+     * @return the number of users
+     */
+    public int size( )
+    {
+        return _mapEntries.size( );
+    }
+
+    /**
+     * Find the users whose last name, first name and email start with the given prefixes
+     * 
+     * @param strLastName
+     *            the last name prefix, empty for any
+     * @param strFirstName
+     *            the first name prefix, empty for any
+     * @param strEmail
+     *            the email prefix, empty for any
+     * @return the users found
+     */
+    public List<AdminUser> search( String strLastName, String strFirstName, String strEmail )
+    {
+        String strLastNameKey = toKey( strLastName );
+        String strFirstNameKey = toKey( strFirstName );
+        String strEmailKey = toKey( strEmail );
+
+        // Browse the longest prefix, which is usually the most selective, then check the other ones
+        PrefixIndex index = _lastNameIndex;
+        String strPrefix = strLastNameKey;
+        if ( strFirstNameKey.length( ) > strPrefix.length( ) )
+        {
+            index = _firstNameIndex;
+            strPrefix = strFirstNameKey;
+        }
+        if ( strEmailKey.length( ) > strPrefix.length( ) )
+        {
+            index = _emailIndex;
+            strPrefix = strEmailKey;
+        }
+
+        List<AdminUser> listUsers = new ArrayList<>( );
+        for ( Entry entry : index.find( strPrefix ) )
+        {
+            if ( entry.matches( strLastNameKey, strFirstNameKey, strEmailKey ) )
+            {
+                listUsers.add( entry.toAdminUser( ) );
+            }
+        }
+        return listUsers;
+    }
+
+    private static String toKey( String strValue )
+    {
+        return ( strValue == null ) ? "" : strValue.toLowerCase( Locale.ROOT );
+    }
+
+    /**
+     * Functional accessor to the indexed key of an entry
+     */
+    @FunctionalInterface
+    private interface KeyExtractor
+    {
+        String getKey( Entry entry );
+    }
+
+    /**
+     * Entries sorted by key : the entries starting with a prefix are a contiguous range found by binary search
+     */
+    private static final class PrefixIndex
+    {
+        private final String [ ] _keys;
+        private final Entry [ ] _entries;
+
+        PrefixIndex( Entry [ ] entries, KeyExtractor keyExtractor )
+        {
+            Entry [ ] sortedEntries = Arrays.stream( entries ).filter( e -> keyExtractor.getKey( e ) != null ).toArray( Entry [ ]::new );
+            Arrays.sort( sortedEntries, Comparator.comparing( keyExtractor::getKey ) );
+
+            _entries = sortedEntries;
+            _keys = new String [ sortedEntries.length];
+            for ( int i = 0; i < sortedEntries.length; i++ )
+            {
+                _keys [i] = keyExtractor.getKey( sortedEntries [i] );
+            }
+        }
+
+        List<Entry> find( String strPrefix )
+        {
+            int nStart = Arrays.binarySearch( _keys, strPrefix );
+            if ( nStart < 0 )
+            {
+                nStart = -nStart - 1;
+            }
+            else
+            {
+                // Equal keys may precede the one found
+                while ( nStart > 0 && _keys [nStart - 1].equals( strPrefix ) )
+                {
+                    nStart--;
+                }
+            }
+
+            int nEnd = nStart;
+            while ( nEnd < _keys.length && _keys [nEnd].startsWith( strPrefix ) )
+            {
+                nEnd++;
+            }
+            return Arrays.asList( _entries ).subList( nStart, nEnd );
+        }
+    }
+
+    /**
+     * Indexed copy of a user
+     */
+    private static final class Entry
+    {
+        private final String _strAccessCode;
+        private final String _strLastName;
+        private final String _strFirstName;
+        private final String _strEmail;
+        private final String _strLastNameKey;
+        private final String _strFirstNameKey;
+        private final String _strEmailKey;
+
+        Entry( AdminUser user )
+        {
+            _strAccessCode = user.getAccessCode( );
+            _strLastName = user.getLastName( );
+            _strFirstName = user.getFirstName( );
+            _strEmail = user.getEmail( );
+            _strLastNameKey = ( _strLastName == null ) ? null : toKey( _strLastName );
+            _strFirstNameKey = ( _strFirstName == null ) ? null : toKey( _strFirstName );
+            _strEmailKey = ( _strEmail == null ) ? null : toKey( _strEmail );
+        }
+
+        String getLastNameKey( )
+        {
+            return _strLastNameKey;
+        }
+
+        String getFirstNameKey( )
+        {
+            return _strFirstNameKey;
+        }
+
+        String getEmailKey( )
+        {
+            return _strEmailKey;
+        }
+
+        boolean matches( String strLastNamePrefix, String strFirstNamePrefix, String strEmailPrefix )
+        {
+            // Like the (attribute=prefix*) filters, a missing attribute never matches
+            return _strLastNameKey != null && _strLastNameKey.startsWith( strLastNamePrefix ) && _strFirstNameKey != null
+                    && _strFirstNameKey.startsWith( strFirstNamePrefix ) && _strEmailKey != null && _strEmailKey.startsWith( strEmailPrefix );
+        }
+
+        AdminUser toAdminUser( )
+        {
+            return LdapService.createAdminUser( _strAccessCode, _strLastName, _strFirstName, _strEmail );
+        }
+    }
+}
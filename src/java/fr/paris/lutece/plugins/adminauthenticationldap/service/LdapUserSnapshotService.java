@@ -0,0 +1,146 @@
+/*
+ * Copyright (c) 2002-2021, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.adminauthenticationldap.service;
+
+import fr.paris.lutece.portal.business.user.AdminUser;
+import fr.paris.lutece.portal.service.util.AppLogService;
+import fr.paris.lutece.portal.service.util.AppPropertiesService;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Holds the in-memory snapshot of the directory users used to answer the back office user searches.
+ * <p>
+ * The snapshot is replaced after each full synchronization of the import daemon and completed after each incremental one. When it is disabled, missing or
+ * older than the maximum age, the searches go to the directory.
+ * </p>
+ */
+public final class LdapUserSnapshotService
+{
+    private static final String PROPERTY_ENABLED = "adminauthenticationldap.snapshot.enabled";
+    private static final String PROPERTY_MAX_AGE = "adminauthenticationldap.snapshot.maxAge";
+
+    private static LdapUserSnapshotService _singleton = new LdapUserSnapshotService( );
+
+    private final boolean _bEnabled = AppPropertiesService.getPropertyBoolean( PROPERTY_ENABLED, false );
+    private final long _lMaxAge = AppPropertiesService.getPropertyInt( PROPERTY_MAX_AGE, 90000 ) * 1000L;
+    private volatile LdapUserSnapshot _snapshot;
+
+    /**
+     * Private constructor
+     */
+    private LdapUserSnapshotService( )
+    {
+    }
+
+    /**
+     * @return the unique instance
+     */
+    public static LdapUserSnapshotService getInstance( )
+    {
+        return _singleton;
+    }
+
+    /**
+     * @return true if the import daemon must feed the snapshot
+     */
+    public boolean isEnabled( )
+    {
+        return _bEnabled;
+    }
+
+    /**
+     * Search the snapshot
+     * 
+     * @param strLastName
+     *            the last name prefix
+     * @param strFirstName
+     *            the first name prefix
+     * @param strEmail
+     *            the email prefix
+     * @return the users found, or null if the search must be done in the directory
+     */
+    public List<AdminUser> search( String strLastName, String strFirstName, String strEmail )
+    {
+        LdapUserSnapshot snapshot = _snapshot;
+
+        if ( !_bEnabled || snapshot == null || System.currentTimeMillis( ) - snapshot.getCreationTime( ) > _lMaxAge )
+        {
+            return null;
+        }
+
+        // A * typed by the user is escaped in the directory filters, so it is matched literally there as it is here
+        return snapshot.search( strLastName, strFirstName, strEmail );
+    }
+
+    /**
+     * Replace the snapshot with the result of a full synchronization
+     * 
+     * @param users
+     *            all the users of the directory
+     */
+    public synchronized void replace( Collection<AdminUser> users )
+    {
+        if ( _bEnabled )
+        {
+            _snapshot = LdapUserSnapshot.of( users );
+            AppLogService.info( "LDAP user snapshot created with " + _snapshot.size( ) + " users" );
+        }
+    }
+
+    /**
+     * Complete the snapshot with the result of an incremental synchronization. Without snapshot, nothing is done : a partial snapshot would hide users.
+     * 
+     * @param changedUsers
+     *            the users changed in the directory
+     */
+    public synchronized void merge( Collection<AdminUser> changedUsers )
+    {
+        LdapUserSnapshot snapshot = _snapshot;
+
+        if ( _bEnabled && snapshot != null )
+        {
+            _snapshot = snapshot.merge( changedUsers );
+        }
+    }
+
+    /**
+     * Drop the snapshot, the searches go to the directory until the next full synchronization
+     */
+    public void clear( )
+    {
+        _snapshot = null;
+    }
+}
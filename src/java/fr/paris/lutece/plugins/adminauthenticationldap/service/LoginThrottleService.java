@@ -0,0 +1,263 @@
+/*
+ * Copyright (c) 2002-2021, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.adminauthenticationldap.service;
+
+import fr.paris.lutece.portal.service.admin.AdminUserService;
+import fr.paris.lutece.portal.service.util.AppLogService;
+import fr.paris.lutece.portal.service.util.AppPropertiesService;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * In-memory throttle of the failed logins, per access code and per IP address.
+ * <p>
+ * Failures are counted in sliding windows of <code>access_failures_interval</code> minutes : once more than <code>access_failures_max</code> failures are
+ * counted for the access code or the address, the next attempts are refused without reaching the directory or the database. The security parameters are read
+ * again every refresh interval. The counters are local to the node.
+ * </p>
+ */
+public final class LoginThrottleService
+{
+    private static final String PROPERTY_MAX_ACCESS_FAILED = "access_failures_max";
+    private static final String PROPERTY_INTERVAL_MINUTES = "access_failures_interval";
+    private static final String PROPERTY_REFRESH_INTERVAL = "adminauthenticationldap.throttle.parametersRefreshInterval";
+    private static final String PROPERTY_MAX_ENTRIES = "adminauthenticationldap.throttle.maxEntries";
+    private static final String PREFIX_ACCESS_CODE = "code:";
+    private static final String PREFIX_IP = "ip:";
+    private static final int BUCKETS = 12;
+
+    private static LoginThrottleService _singleton = new LoginThrottleService( );
+
+    private final Map<String, SlidingWindowCounter> _mapCounters = new ConcurrentHashMap<>( );
+    private final long _lRefreshInterval = AppPropertiesService.getPropertyInt( PROPERTY_REFRESH_INTERVAL, 60 ) * 1000L;
+    private final int _nMaxEntries = AppPropertiesService.getPropertyInt( PROPERTY_MAX_ENTRIES, 100000 );
+    private volatile Parameters _parameters;
+
+    /**
+     * Private constructor
+     */
+    private LoginThrottleService( )
+    {
+    }
+
+    /**
+     * @return the unique instance
+     */
+    public static LoginThrottleService getInstance( )
+    {
+        return _singleton;
+    }
+
+    /**
+     * @return the maximum number of failures in the interval, 0 if the throttle is disabled
+     */
+    public int getMaxFailures( )
+    {
+        return getParameters( )._nMaxFailed;
+    }
+
+    /**
+     * @return the interval in minutes, 0 if the throttle is disabled
+     */
+    public int getIntervalMinutes( )
+    {
+        return getParameters( )._nIntervalMinutes;
+    }
+
+    /**
+     * Tell whether a login attempt must be refused
+     * 
+     * @param strAccessCode
+     *            the access code
+     * @param strIpAddress
+     *            the address of the client
+     * @return true if too many failures have been counted for the access code or the address
+     */
+    public boolean isBlocked( String strAccessCode, String strIpAddress )
+    {
+        Parameters parameters = getParameters( );
+        if ( !parameters.isEnabled( ) )
+        {
+            return false;
+        }
+
+        long lNow = System.currentTimeMillis( );
+        return count( PREFIX_ACCESS_CODE + strAccessCode, lNow ) > parameters._nMaxFailed || count( PREFIX_IP + strIpAddress, lNow ) > parameters._nMaxFailed;
+    }
+
+    /**
+     * Count a failed login
+     * 
+     * @param strAccessCode
+     *            the access code
+     * @param strIpAddress
+     *            the address of the client
+     */
+    public void recordFailure( String strAccessCode, String strIpAddress )
+    {
+        Parameters parameters = getParameters( );
+        if ( !parameters.isEnabled( ) )
+        {
+            return;
+        }
+
+        long lNow = System.currentTimeMillis( );
+        if ( _mapCounters.size( ) >= _nMaxEntries )
+        {
+            purge( lNow );
+        }
+
+        increment( PREFIX_IP + strIpAddress, parameters, lNow );
+        // Under a burst of distinct access codes, the addresses are still counted but the table stops growing
+        if ( _mapCounters.size( ) < _nMaxEntries || _mapCounters.containsKey( PREFIX_ACCESS_CODE + strAccessCode ) )
+        {
+            increment( PREFIX_ACCESS_CODE + strAccessCode, parameters, lNow );
+        }
+    }
+
+    private long count( String strKey, long lNow )
+    {
+        SlidingWindowCounter counter = _mapCounters.get( strKey );
+        return ( counter == null ) ? 0 : counter.count( lNow );
+    }
+
+    private void increment( String strKey, Parameters parameters, long lNow )
+    {
+        _mapCounters.computeIfAbsent( strKey, k -> new SlidingWindowCounter( parameters.getWindow( ) / BUCKETS ) ).increment( lNow );
+    }
+
+    private void purge( long lNow )
+    {
+        _mapCounters.values( ).removeIf( counter -> counter.count( lNow ) == 0 );
+    }
+
+    private Parameters getParameters( )
+    {
+        Parameters parameters = _parameters;
+        long lNow = System.currentTimeMillis( );
+
+        if ( parameters == null || lNow - parameters._lReadTime >= _lRefreshInterval )
+        {
+            Parameters newParameters = new Parameters( AdminUserService.getIntegerSecurityParameter( PROPERTY_MAX_ACCESS_FAILED ),
+                    AdminUserService.getIntegerSecurityParameter( PROPERTY_INTERVAL_MINUTES ), lNow );
+
+            if ( parameters != null && parameters._nIntervalMinutes != newParameters._nIntervalMinutes )
+            {
+                // The counters are sized for the previous interval
+                AppLogService.info( "Login failures interval changed, the login failure counters are reset" );
+                _mapCounters.clear( );
+            }
+            _parameters = newParameters;
+            parameters = newParameters;
+        }
+        return parameters;
+    }
+
+    /**
+     * Security parameters read at a given time
+     */
+    private static final class Parameters
+    {
+        private final int _nMaxFailed;
+        private final int _nIntervalMinutes;
+        private final long _lReadTime;
+
+        Parameters( int nMaxFailed, int nIntervalMinutes, long lReadTime )
+        {
+            _nMaxFailed = nMaxFailed;
+            _nIntervalMinutes = nIntervalMinutes;
+            _lReadTime = lReadTime;
+        }
+
+        boolean isEnabled( )
+        {
+            return _nMaxFailed > 0 && _nIntervalMinutes > 0;
+        }
+
+        long getWindow( )
+        {
+            return _nIntervalMinutes * 60000L;
+        }
+    }
+
+    /**
+     * Lock-free counter of the events of a sliding window, split into buckets. Buckets older than the window are reused, so the window slides one bucket
+     * at a time.
+     */
+    static final class SlidingWindowCounter
+    {
+        private final long _lBucketWidth;
+        private final AtomicLongArray _epochs = new AtomicLongArray( BUCKETS );
+        private final AtomicLongArray _counts = new AtomicLongArray( BUCKETS );
+
+        SlidingWindowCounter( long lBucketWidth )
+        {
+            _lBucketWidth = Math.max( 1, lBucketWidth );
+            for ( int i = 0; i < BUCKETS; i++ )
+            {
+                _epochs.set( i, -1 );
+            }
+        }
+
+        void increment( long lNow )
+        {
+            long lEpoch = lNow / _lBucketWidth;
+            int nBucket = (int) ( lEpoch % BUCKETS );
+            long lBucketEpoch = _epochs.get( nBucket );
+
+            // An increment racing with the reuse of the bucket may be lost, which is harmless for a throttle
+            if ( lBucketEpoch != lEpoch && _epochs.compareAndSet( nBucket, lBucketEpoch, lEpoch ) )
+            {
+                _counts.set( nBucket, 0 );
+            }
+            _counts.incrementAndGet( nBucket );
+        }
+
+        long count( long lNow )
+        {
+            long lEpoch = lNow / _lBucketWidth;
+            long lCount = 0;
+            for ( int i = 0; i < BUCKETS; i++ )
+            {
+                if ( _epochs.get( i ) > lEpoch - BUCKETS )
+                {
+                    lCount += _counts.get( i );
+                }
+            }
+            return lCount;
+        }
+    }
+}
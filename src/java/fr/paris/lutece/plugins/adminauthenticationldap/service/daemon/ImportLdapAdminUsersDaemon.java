@@ -33,25 +33,64 @@
  */
 package fr.paris.lutece.plugins.adminauthenticationldap.service.daemon;
 
-import fr.paris.lutece.plugins.adminauthenticationldap.AdminLdapAuthentication;
+import fr.paris.lutece.plugins.adminauthenticationldap.business.LdapLease;
+import fr.paris.lutece.plugins.adminauthenticationldap.service.LdapGroupService;
+import fr.paris.lutece.plugins.adminauthenticationldap.service.LdapLeaseService;
+import fr.paris.lutece.plugins.adminauthenticationldap.service.LdapMetricsService;
 import fr.paris.lutece.plugins.adminauthenticationldap.service.LdapService;
-import fr.paris.lutece.portal.business.user.AdminUser;
-import fr.paris.lutece.portal.business.user.AdminUserHome;
+import fr.paris.lutece.plugins.adminauthenticationldap.service.LdapSyncMark;
+import fr.paris.lutece.plugins.adminauthenticationldap.service.LdapUserSnapshotService;
 import fr.paris.lutece.portal.service.daemon.Daemon;
+import fr.paris.lutece.portal.service.datastore.DatastoreService;
 import fr.paris.lutece.portal.service.i18n.I18nService;
 import fr.paris.lutece.portal.service.util.AppLogService;
+import fr.paris.lutece.portal.service.util.AppPropertiesService;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
 
+import java.sql.Timestamp;
 import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class ImportLdapAdminUsersDaemon extends Daemon
 {
 
-    private static final String MESSAGE_USER_CREATED = "adminauthenticationldap.user.created";
-    private static final String MESSAGE_USER_UPDATED = "adminauthenticationldap.user.updated";
+    private static final String MESSAGE_SYNC_INCOMPLETE = "adminauthenticationldap.sync.incomplete";
+    private static final String MESSAGE_SYNC_FULL = "adminauthenticationldap.sync.full";
+    private static final String MESSAGE_SYNC_INCREMENTAL = "adminauthenticationldap.sync.incremental";
+    private static final String MESSAGE_SYNC_SUMMARY = "adminauthenticationldap.sync.summary";
+    private static final String MESSAGE_SYNC_OTHER_NODE = "adminauthenticationldap.sync.otherNode";
+
+    private static final String PROPERTY_INCREMENTAL_ENABLED = "adminauthenticationldap.daemon.incremental.enabled";
+    private static final String PROPERTY_FULL_SYNC_INTERVAL = "adminauthenticationldap.daemon.incremental.fullSyncInterval";
+    private static final String PROPERTY_WORKERS = "adminauthenticationldap.daemon.workers";
+    private static final String PROPERTY_QUEUE_CAPACITY = "adminauthenticationldap.daemon.queueCapacity";
+    private static final String PROPERTY_VIRTUAL_THREADS = "adminauthenticationldap.daemon.virtualThreads";
+    private static final String PROPERTY_ATTRIBUTE_CHANGE_MARK = "adminauthenticationldap.ldap.dn.attributeName.changeMark";
+
+    private static final String DATASTORE_KEY_SYNC_MARK = "adminauthenticationldap.sync.mark";
+    private static final String DATASTORE_KEY_SYNC_SERVER = "adminauthenticationldap.sync.server";
+    private static final String DATASTORE_KEY_LAST_FULL_SYNC = "adminauthenticationldap.sync.lastFullSync";
+
+    private static final String LEASE_IMPORT = LdapLeaseService.LEASE_IMPORT_DAEMON;
 
     @Override
     public void run( )
     {
+        LdapLeaseService leases = LdapLeaseService.getInstance( );
+        // In a cluster, only the node holding the lease synchronizes; its heartbeat keeps the lease from one run to the next while it is alive
+        if ( leases.isEnabled( ) && !leases.tryAcquire( LEASE_IMPORT ) )
+        {
+            StringBuilder sb = new StringBuilder( );
+            LdapLease lease = leases.getLease( LEASE_IMPORT );
+            addDaemonLog( sb, MESSAGE_SYNC_OTHER_NODE, ( lease != null ) ? lease.getOwner( ) : "?",
+                    ( lease != null ) ? new Timestamp( lease.getExpirationTime( ) ).toString( ) : "?" );
+            setLastRunLogs( sb.toString( ) );
+            return;
+        }
+        // Only the nodes running the daemon compete for the lease
+        leases.startHeartbeat( LEASE_IMPORT );
+
         setLastRunLogs( UpdateAdminUsers( ) );
     }
 
@@ -59,30 +98,137 @@ public class ImportLdapAdminUsersDaemon extends Daemon
     {
         StringBuilder sb = new StringBuilder( );
 
-        for ( AdminUser userLdap : LdapService.getAdminUserSearchResult( "", "", "" ) )
+        long lStart = System.nanoTime( );
+        long lNow = System.currentTimeMillis( );
+        LdapSyncMark mark = LdapSyncMark.parse( AppPropertiesService.getProperty( PROPERTY_ATTRIBUTE_CHANGE_MARK, "modifyTimestamp" ),
+                DatastoreService.getDataValue( DATASTORE_KEY_SYNC_MARK, "" ) );
+        // Every page is read from the same server, the one the mark will be saved for
+        mark.setServer( LdapService.getServerSelector( ).getPreferredServer( ) );
+        boolean bIncremental = isIncrementalSync( mark, lNow );
+        addDaemonLog( sb, bIncremental ? MESSAGE_SYNC_INCREMENTAL : MESSAGE_SYNC_FULL, mark.toString( ) );
+
+        // The groups are read first, so that the users of this run are checked against their current membership
+        if ( LdapGroupService.getInstance( ).isEnabled( ) )
         {
-            AdminUser userDb = AdminUserHome.findUserByLogin( userLdap.getAccessCode( ) );
-            if ( userDb == null )
-            {
-                AdminUserHome.create( userLdap );
-                addDaemonLog( sb, MESSAGE_USER_CREATED, userLdap.getAccessCode( ) );
-            }
-            else
+            LdapGroupService.getInstance( ).refresh( );
+        }
+
+        LdapUserSnapshotService snapshotService = LdapUserSnapshotService.getInstance( );
+        ImportLdapAdminUsersPipeline pipeline = new ImportLdapAdminUsersPipeline( AppPropertiesService.getPropertyInt( PROPERTY_WORKERS, 4 ),
+                AppPropertiesService.getPropertyInt( PROPERTY_QUEUE_CAPACITY, 2 ), AppPropertiesService.getPropertyBoolean( PROPERTY_VIRTUAL_THREADS, false ),
+                snapshotService.isEnabled( ) );
+        boolean bRead = false;
+        boolean bSaved;
+        AtomicLong lLastRenewal = new AtomicLong( System.currentTimeMillis( ) );
+        try
+        {
+            bRead = LdapService.forEachUserSearchResultPage( mark, bIncremental, srPage -> {
+                renewLease( lLastRenewal );
+                pipeline.submit( srPage );
+            } );
+        }
+        catch( RuntimeException e )
+        {
+            // The run is reported incomplete : the mark is not saved
+            AppLogService.error( "LDAP synchronization aborted : " + e.getMessage( ), e );
+        }
+        finally
+        {
+            bSaved = pipeline.finish( );
+        }
+        boolean bComplete = bRead && bSaved;
+        sb.append( pipeline.getLogs( ) );
+        sb.append( pipeline.getStatistics( ) );
+        addSummary( sb, pipeline, lStart, bComplete );
+
+        if ( bIncremental )
+        {
+            snapshotService.merge( pipeline.getImportedUsers( ) );
+        }
+        else if ( bComplete )
+        {
+            snapshotService.replace( pipeline.getImportedUsers( ) );
+        }
+
+        if ( bComplete )
+        {
+            // The mark is only saved once every page has been read, otherwise the next run would skip the unread changes
+            DatastoreService.setDataValue( DATASTORE_KEY_SYNC_MARK, mark.toString( ) );
+            DatastoreService.setDataValue( DATASTORE_KEY_SYNC_SERVER, StringUtils.defaultString( mark.getServer( ) ) );
+            if ( !bIncremental )
             {
-                if ( userDb.isStatusActive() && AdminLdapAuthentication.COMPARATOR_USER.compare( userDb, userLdap ) != 0 )
-                {
-                    userDb.setEmail( userLdap.getEmail( ) );
-                    userDb.setFirstName( userLdap.getFirstName( ) );
-                    userDb.setLastName( userLdap.getLastName( ) );
-                    AdminUserHome.update( userDb );
-                    addDaemonLog( sb, MESSAGE_USER_UPDATED, userLdap.getAccessCode( ) );
-                }
+                DatastoreService.setDataValue( DATASTORE_KEY_LAST_FULL_SYNC, String.valueOf( lNow ) );
             }
         }
+        else
+        {
+            addDaemonLog( sb, MESSAGE_SYNC_INCOMPLETE );
+        }
 
         return sb.toString( );
     }
 
+    /**
+     * Log the duration and the counts of the run, and record them in the metrics
+     */
+    private void addSummary( StringBuilder sb, ImportLdapAdminUsersPipeline pipeline, long lStart, boolean bComplete )
+    {
+        long lMillis = ( System.nanoTime( ) - lStart ) / 1_000_000L;
+        long lEntries = pipeline.getEntriesCount( );
+        long lThroughput = ( lMillis > 0 ) ? ( lEntries * 1000L / lMillis ) : lEntries;
+        addDaemonLog( sb, MESSAGE_SYNC_SUMMARY, String.valueOf( lMillis ), String.valueOf( lEntries ), String.valueOf( lThroughput ),
+                String.valueOf( pipeline.getCreatedCount( ) ), String.valueOf( pipeline.getUpdatedCount( ) ), String.valueOf( pipeline.getSkippedCount( ) ) );
+
+        LdapMetricsService metrics = LdapMetricsService.getInstance( );
+        metrics.recordTime( LdapMetricsService.TIMER_DAEMON_RUN, lStart, bComplete );
+        metrics.increment( LdapMetricsService.COUNTER_DAEMON_ENTRIES, lEntries );
+        metrics.increment( LdapMetricsService.COUNTER_DAEMON_CREATED, pipeline.getCreatedCount( ) );
+        metrics.increment( LdapMetricsService.COUNTER_DAEMON_UPDATED, pipeline.getUpdatedCount( ) );
+        metrics.increment( LdapMetricsService.COUNTER_DAEMON_SKIPPED, pipeline.getSkippedCount( ) );
+    }
+
+    private boolean isIncrementalSync( LdapSyncMark mark, long lNow )
+    {
+        if ( !AppPropertiesService.getPropertyBoolean( PROPERTY_INCREMENTAL_ENABLED, false ) || !mark.hasValue( ) )
+        {
+            return false;
+        }
+        // A mark read on one server may skip the changes not yet replicated to another, or be compared with the update sequence numbers of another
+        // server : it is only used on the server it was read from
+        String strSavedServer = DatastoreService.getDataValue( DATASTORE_KEY_SYNC_SERVER, "" );
+        if ( !StringUtils.equals( strSavedServer, mark.getServer( ) ) )
+        {
+            AppLogService.info( "Full LDAP synchronization : the synchronization moved from the server '" + strSavedServer + "' to '" + mark.getServer( )
+                    + "'" );
+            return false;
+        }
+
+        long lLastFullSync = NumberUtils.toLong( DatastoreService.getDataValue( DATASTORE_KEY_LAST_FULL_SYNC, "" ), 0L );
+        long lFullSyncInterval = AppPropertiesService.getPropertyInt( PROPERTY_FULL_SYNC_INTERVAL, 86400 ) * 1000L;
+
+        return lNow - lLastFullSync < lFullSyncInterval;
+    }
+
+    /**
+     * Renew the lease during a long run, so that it does not expire while this node is still synchronizing
+     * 
+     * @throws IllegalStateException
+     *             if the lease has been lost : the run stops reading the directory so that it does not compete with the new holder
+     */
+    private void renewLease( AtomicLong lLastRenewal )
+    {
+        LdapLeaseService leases = LdapLeaseService.getInstance( );
+        long lNow = System.currentTimeMillis( );
+        if ( leases.isEnabled( ) && lNow - lLastRenewal.get( ) > leases.getLeaseDuration( ) / 3 )
+        {
+            lLastRenewal.set( lNow );
+            if ( !leases.tryAcquire( LEASE_IMPORT ) )
+            {
+                throw new IllegalStateException( "The lease of the LDAP synchronization has been lost to another node" );
+            }
+        }
+    }
+
     private void addDaemonLog( StringBuilder sb, String strMessageKey, String... args )
     {
         String strMessage = I18nService.getLocalizedString( strMessageKey, args, I18nService.getDefaultLocale( ) );
@@ -0,0 +1,533 @@
+/*
+ * Copyright (c) 2002-2021, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.adminauthenticationldap.service.daemon;
+
+import fr.paris.lutece.plugins.adminauthenticationldap.AdminLdapAuthentication;
+import fr.paris.lutece.plugins.adminauthenticationldap.business.AdminLdapUserHome;
+import fr.paris.lutece.plugins.adminauthenticationldap.service.LdapExecutorService;
+import fr.paris.lutece.plugins.adminauthenticationldap.service.LdapGroupService;
+import fr.paris.lutece.plugins.adminauthenticationldap.service.LdapService;
+import fr.paris.lutece.plugins.adminauthenticationldap.service.LdapUserFingerprintService;
+import fr.paris.lutece.portal.business.user.AdminUser;
+import fr.paris.lutece.portal.business.user.AdminUserHome;
+import fr.paris.lutece.portal.service.i18n.I18nService;
+import fr.paris.lutece.portal.service.util.AppLogService;
+import fr.paris.lutece.util.sql.TransactionManager;
+
+import javax.naming.directory.SearchResult;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+/**
+ * Import pipeline : the daemon thread reads the directory pages and a pool of workers maps, compares and saves the users.
+ * <p>
+ * Each worker owns a partition of the access codes, chosen by hash, so that no two workers ever handle the same user. The queues of the workers are bounded :
+ * the directory is not read faster than the database can absorb it.
+ * </p>
+ */
+class ImportLdapAdminUsersPipeline
+{
+    private static final String MESSAGE_USER_CREATED = "adminauthenticationldap.user.created";
+    private static final String MESSAGE_USER_UPDATED = "adminauthenticationldap.user.updated";
+    private static final String MESSAGE_STAGE = "adminauthenticationldap.sync.stage";
+    private static final String MESSAGE_SKIPPED = "adminauthenticationldap.sync.skipped";
+
+    private static final String STAGE_FETCH = "fetch";
+    private static final String STAGE_MAPPING = "mapping";
+    private static final String STAGE_PERSISTENCE = "persistence";
+
+    // Marks the end of the stream in the queues, compared by identity
+    private static final List<SearchResult> END_OF_STREAM = Collections.unmodifiableList( new ArrayList<>( ) );
+    // Time in milliseconds between two checks that a worker whose queue is full is still running
+    private static final long QUEUE_CHECK_INTERVAL = 1000L;
+
+    private final List<BlockingQueue<List<SearchResult>>> _queues = new ArrayList<>( );
+    private final List<Future<?>> _workers = new ArrayList<>( );
+    private final ExecutorService _executor;
+    private final StringBuilder _sbLogs = new StringBuilder( );
+    private final PipelineStage _fetchStage = new PipelineStage( STAGE_FETCH );
+    private final PipelineStage _mappingStage = new PipelineStage( STAGE_MAPPING );
+    private final PipelineStage _persistenceStage = new PipelineStage( STAGE_PERSISTENCE );
+    private final AtomicInteger _nErrors = new AtomicInteger( );
+    private final AtomicInteger _nSkipped = new AtomicInteger( );
+    private final AtomicInteger _nCreated = new AtomicInteger( );
+    private final AtomicInteger _nUpdated = new AtomicInteger( );
+    private final Queue<AdminUser> _importedUsers;
+    private long _lLastPageTime = System.nanoTime( );
+
+    /**
+     * Constructor. The workers are started at once.
+     * 
+     * @param nWorkers
+     *            the number of workers
+     * @param nQueueCapacity
+     *            the number of pages waiting for each worker before the reading of the directory is paused
+     * @param bVirtualThreads
+     *            true to run the workers on virtual threads when the JVM provides them
+     * @param bKeepUsers
+     *            true to keep a copy of every user read, see {@link #getImportedUsers()}
+     */
+    ImportLdapAdminUsersPipeline( int nWorkers, int nQueueCapacity, boolean bVirtualThreads, boolean bKeepUsers )
+    {
+        _importedUsers = bKeepUsers ? new ConcurrentLinkedQueue<>( ) : null;
+        int nPartitions = Math.max( 1, nWorkers );
+        _executor = Executors.newFixedThreadPool( nPartitions, LdapExecutorService.getThreadFactory( bVirtualThreads, "adminauthenticationldap-import-" ) );
+
+        for ( int i = 0; i < nPartitions; i++ )
+        {
+            BlockingQueue<List<SearchResult>> queue = new ArrayBlockingQueue<>( Math.max( 1, nQueueCapacity ) );
+            _queues.add( queue );
+            _workers.add( _executor.submit( ( ) -> work( queue ) ) );
+        }
+    }
+
+    /**
+     * Dispatch a page read from the directory to the workers. Blocks while the queue of a worker is full.
+     * 
+     * @param srPage
+     *            the entries of the page
+     * @throws IllegalStateException
+     *             if a worker has stopped : its queue would never be drained
+     */
+    void submit( List<SearchResult> srPage )
+    {
+        _fetchStage.record( srPage.size( ), System.nanoTime( ) - _lLastPageTime );
+
+        List<List<SearchResult>> partitions = new ArrayList<>( _queues.size( ) );
+        for ( int i = 0; i < _queues.size( ); i++ )
+        {
+            partitions.add( new ArrayList<>( ) );
+        }
+
+        for ( SearchResult sr : srPage )
+        {
+            String strAccessCode = LdapService.getSrAccessCode( sr );
+            if ( strAccessCode != null )
+            {
+                // The codes differing only by case are the same user for the directory and the database : they go to the same worker
+                partitions.get( Math.floorMod( strAccessCode.toLowerCase( Locale.ROOT ).hashCode( ), _queues.size( ) ) ).add( sr );
+            }
+        }
+
+        try
+        {
+            for ( int i = 0; i < _queues.size( ); i++ )
+            {
+                if ( !partitions.get( i ).isEmpty( ) && !offer( i, partitions.get( i ) ) )
+                {
+                    throw new IllegalStateException( "LDAP import worker " + i + " has stopped, the synchronization is aborted" );
+                }
+            }
+        }
+        catch( InterruptedException e )
+        {
+            Thread.currentThread( ).interrupt( );
+            throw new IllegalStateException( "Interrupted while dispatching LDAP users to the import workers", e );
+        }
+
+        _lLastPageTime = System.nanoTime( );
+    }
+
+    /**
+     * Wait for the workers to process the pages already submitted, then stop them
+     * 
+     * @return true if every page has been saved
+     */
+    boolean finish( )
+    {
+        try
+        {
+            for ( int i = 0; i < _queues.size( ); i++ )
+            {
+                // A stopped worker needs no end of stream : its failure is reported by its future
+                offer( i, END_OF_STREAM );
+            }
+            for ( Future<?> worker : _workers )
+            {
+                worker.get( );
+            }
+        }
+        catch( InterruptedException e )
+        {
+            Thread.currentThread( ).interrupt( );
+            _nErrors.incrementAndGet( );
+        }
+        catch( Exception e )
+        {
+            AppLogService.error( "LDAP import worker failed", e );
+            _nErrors.incrementAndGet( );
+        }
+        finally
+        {
+            _executor.shutdownNow( );
+        }
+
+        return _nErrors.get( ) == 0;
+    }
+
+    /**
+     * @return the users created and updated
+     */
+    String getLogs( )
+    {
+        synchronized( _sbLogs )
+        {
+            return _sbLogs.toString( );
+        }
+    }
+
+    /**
+     * @return the users read, if the pipeline was asked to keep them
+     */
+    Collection<AdminUser> getImportedUsers( )
+    {
+        return ( _importedUsers != null ) ? _importedUsers : Collections.emptyList( );
+    }
+
+    /**
+     * @return the number of entries read from the directory
+     */
+    long getEntriesCount( )
+    {
+        return _fetchStage.getCount( );
+    }
+
+    /**
+     * @return the number of users created
+     */
+    int getCreatedCount( )
+    {
+        return _nCreated.get( );
+    }
+
+    /**
+     * @return the number of users updated
+     */
+    int getUpdatedCount( )
+    {
+        return _nUpdated.get( );
+    }
+
+    /**
+     * @return the number of unchanged users skipped
+     */
+    int getSkippedCount( )
+    {
+        return _nSkipped.get( );
+    }
+
+    /**
+     * @return the throughput of each stage
+     */
+    String getStatistics( )
+    {
+        StringBuilder sb = new StringBuilder( );
+        for ( PipelineStage stage : new PipelineStage [ ] {
+                _fetchStage, _mappingStage, _persistenceStage
+        } )
+        {
+            sb.append( "\n" ).append( stage.format( ) );
+        }
+        sb.append( "\n" ).append( I18nService.getLocalizedString( MESSAGE_SKIPPED, new Object [ ] {
+                String.valueOf( _nSkipped.get( ) )
+        }, I18nService.getDefaultLocale( ) ) );
+        return sb.toString( );
+    }
+
+    /**
+     * Queue a page for a worker, waiting while its queue is full as long as the worker is running
+     * 
+     * @return false if the worker has stopped
+     */
+    private boolean offer( int nWorker, List<SearchResult> srPage ) throws InterruptedException
+    {
+        BlockingQueue<List<SearchResult>> queue = _queues.get( nWorker );
+        while ( !queue.offer( srPage, QUEUE_CHECK_INTERVAL, TimeUnit.MILLISECONDS ) )
+        {
+            if ( _workers.get( nWorker ).isDone( ) )
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void work( BlockingQueue<List<SearchResult>> queue )
+    {
+        try
+        {
+            List<SearchResult> srChunk;
+            while ( ( srChunk = queue.take( ) ) != END_OF_STREAM )
+            {
+                try
+                {
+                    long lStart = System.nanoTime( );
+                    List<AdminUser> users = new ArrayList<>( srChunk.size( ) );
+                    for ( SearchResult sr : srChunk )
+                    {
+                        AdminUser user = LdapService.getUserFromSr( sr );
+                        if ( user != null )
+                        {
+                            users.add( user );
+                        }
+                    }
+                    long lMapped = System.nanoTime( );
+                    _mappingStage.record( srChunk.size( ), lMapped - lStart );
+                    if ( _importedUsers != null )
+                    {
+                        _importedUsers.addAll( users );
+                    }
+
+                    updateAdminUsers( users );
+                    _persistenceStage.record( users.size( ), System.nanoTime( ) - lMapped );
+                }
+                catch( Throwable e )
+                {
+                    // Keep draining the queue, otherwise the reading of the directory would block forever, even on an Error of the mapping or the database
+                    _nErrors.incrementAndGet( );
+                    AppLogService.error( "Unable to import a chunk of " + srChunk.size( ) + " users from LDAP", e );
+                }
+            }
+        }
+        catch( InterruptedException e )
+        {
+            Thread.currentThread( ).interrupt( );
+        }
+    }
+
+    /**
+     * Reconcile a chunk of directory users with the database : one query to load the existing users, then the creations and a batch of updates in a single
+     * transaction. The rows are always loaded, so that a row deleted or changed outside of the synchronization is restored by the next run; the fingerprints
+     * only spare the synchronization of the roles of the unchanged users.
+     */
+    private void updateAdminUsers( List<AdminUser> users )
+    {
+        LdapUserFingerprintService fingerprints = LdapUserFingerprintService.getInstance( );
+
+        Set<String> accessCodes = users.stream( ).map( AdminUser::getAccessCode ).collect( Collectors.toSet( ) );
+        Map<String, AdminUser> mapUsersDb = AdminLdapUserHome.findUsersByAccessCodes( accessCodes );
+        LdapGroupService groups = LdapGroupService.getInstance( );
+        boolean bRoleMapping = groups.hasRoleMapping( );
+        List<AdminUser> listCreated = new ArrayList<>( );
+        List<AdminUser> listUpdated = new ArrayList<>( );
+        // Users whose profile is the same but whose groups may have changed
+        List<AdminUser> listRolesOnly = new ArrayList<>( );
+        // Users whose groups could not be read : their roles are left as they are and their profile is not recorded
+        Set<AdminUser> setRolesUnknown = Collections.newSetFromMap( new IdentityHashMap<>( ) );
+
+        for ( AdminUser userLdap : users )
+        {
+            String strKey = userLdap.getAccessCode( ).toLowerCase( Locale.ROOT );
+            AdminUser userDb = mapUsersDb.get( strKey );
+            boolean bKnownRoles = groups.hasKnownRoles( userLdap );
+            if ( userDb == null )
+            {
+                listCreated.add( userLdap );
+                if ( !bKnownRoles )
+                {
+                    setRolesUnknown.add( userLdap );
+                }
+                // Guard against an access code returned twice by the directory
+                mapUsersDb.put( strKey, userLdap );
+            }
+            else
+            {
+                if ( userDb.isStatusActive() && userDb != userLdap && AdminLdapAuthentication.COMPARATOR_USER.compare( userDb, userLdap ) != 0 )
+                {
+                    userDb.setEmail( userLdap.getEmail( ) );
+                    userDb.setFirstName( userLdap.getFirstName( ) );
+                    userDb.setLastName( userLdap.getLastName( ) );
+                    userDb.setRoles( userLdap.getRoles( ) );
+                    listUpdated.add( userDb );
+                    if ( !bKnownRoles )
+                    {
+                        setRolesUnknown.add( userDb );
+                    }
+                }
+                else if ( fingerprints.isUnchanged( userLdap ) )
+                {
+                    // Same profile and same groups as when the row was last saved
+                    _nSkipped.incrementAndGet( );
+                }
+                else if ( userDb.isStatusActive( ) && bRoleMapping && userDb != userLdap )
+                {
+                    if ( bKnownRoles )
+                    {
+                        userDb.setRoles( userLdap.getRoles( ) );
+                        listRolesOnly.add( userDb );
+                    }
+                }
+                else if ( userDb.isStatusActive( ) && bKnownRoles )
+                {
+                    fingerprints.record( userLdap );
+                }
+            }
+        }
+
+        if ( listCreated.isEmpty( ) && listUpdated.isEmpty( ) && listRolesOnly.isEmpty( ) )
+        {
+            return;
+        }
+
+        // The default pool is the one used by AdminUserHome, so the creations join the transaction
+        TransactionManager.beginTransaction( null );
+        try
+        {
+            for ( AdminUser user : listCreated )
+            {
+                AdminUserHome.create( user );
+            }
+            AdminLdapUserHome.updateIdentities( listUpdated );
+            if ( bRoleMapping )
+            {
+                for ( AdminUser user : listCreated )
+                {
+                    if ( !setRolesUnknown.contains( user ) )
+                    {
+                        groups.synchronizeRoles( user.getUserId( ), user.getRoles( ).keySet( ) );
+                    }
+                }
+                for ( AdminUser user : listUpdated )
+                {
+                    if ( !setRolesUnknown.contains( user ) )
+                    {
+                        groups.synchronizeRoles( user.getUserId( ), user.getRoles( ).keySet( ) );
+                    }
+                }
+                for ( AdminUser user : listRolesOnly )
+                {
+                    groups.synchronizeRoles( user.getUserId( ), user.getRoles( ).keySet( ) );
+                }
+            }
+            TransactionManager.commitTransaction( null );
+        }
+        catch( Exception e )
+        {
+            TransactionManager.rollBack( null, e );
+            _nErrors.incrementAndGet( );
+            AppLogService.error( "Unable to save a chunk of " + users.size( ) + " users imported from LDAP", e );
+            return;
+        }
+        _nCreated.addAndGet( listCreated.size( ) );
+        _nUpdated.addAndGet( listUpdated.size( ) );
+
+        for ( AdminUser user : listCreated )
+        {
+            LdapService.invalidateAdminUser( user.getAccessCode( ) );
+            if ( !setRolesUnknown.contains( user ) )
+            {
+                fingerprints.record( user );
+            }
+            addLog( MESSAGE_USER_CREATED, user.getAccessCode( ) );
+        }
+        for ( AdminUser user : listUpdated )
+        {
+            LdapService.invalidateAdminUser( user.getAccessCode( ) );
+            if ( !setRolesUnknown.contains( user ) )
+            {
+                fingerprints.record( user );
+            }
+            addLog( MESSAGE_USER_UPDATED, user.getAccessCode( ) );
+        }
+        for ( AdminUser user : listRolesOnly )
+        {
+            LdapService.invalidateAdminUser( user.getAccessCode( ) );
+            fingerprints.record( user );
+        }
+    }
+
+    private void addLog( String strMessageKey, String... args )
+    {
+        String strMessage = I18nService.getLocalizedString( strMessageKey, args, I18nService.getDefaultLocale( ) );
+        synchronized( _sbLogs )
+        {
+            _sbLogs.append( "\n" ).append( strMessage );
+        }
+        AppLogService.info( strMessage );
+    }
+
+    /**
+     * Number of entries processed by a stage and the time spent, summed over the workers
+     */
+    private static final class PipelineStage
+    {
+        private final String _strName;
+        private final AtomicLong _lCount = new AtomicLong( );
+        private final AtomicLong _lNanos = new AtomicLong( );
+
+        PipelineStage( String strName )
+        {
+            _strName = strName;
+        }
+
+        void record( long lCount, long lNanos )
+        {
+            _lCount.addAndGet( lCount );
+            _lNanos.addAndGet( lNanos );
+        }
+
+        long getCount( )
+        {
+            return _lCount.get( );
+        }
+
+        String format( )
+        {
+            long lCount = _lCount.get( );
+            long lMillis = _lNanos.get( ) / 1_000_000L;
+            long lThroughput = ( lMillis > 0 ) ? ( lCount * 1000L / lMillis ) : lCount;
+
+            return I18nService.getLocalizedString( MESSAGE_STAGE, new Object [ ] {
+                    _strName, String.valueOf( lCount ), String.valueOf( lMillis ), String.valueOf( lThroughput )
+            }, I18nService.getDefaultLocale( ) );
+        }
+    }
+}
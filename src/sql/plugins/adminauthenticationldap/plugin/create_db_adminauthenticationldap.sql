@@ -0,0 +1,10 @@
+--
+-- Structure for table adminauthenticationldap_lease
+--
+DROP TABLE IF EXISTS adminauthenticationldap_lease;
+CREATE TABLE adminauthenticationldap_lease (
+	lease_name VARCHAR(50) NOT NULL,
+	owner VARCHAR(255) DEFAULT '' NOT NULL,
+	expiration_time BIGINT DEFAULT 0 NOT NULL,
+	PRIMARY KEY (lease_name)
+);
@@ -0,0 +1,4 @@
+--
+-- Lease of the users import daemon, free until a node takes it
+--
+INSERT INTO adminauthenticationldap_lease (lease_name, owner, expiration_time) VALUES ('import_daemon', '', 0);
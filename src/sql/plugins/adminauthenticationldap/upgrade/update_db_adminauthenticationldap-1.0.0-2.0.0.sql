@@ -0,0 +1,14 @@
+--
+-- Structure for table adminauthenticationldap_lease
+--
+CREATE TABLE adminauthenticationldap_lease (
+	lease_name VARCHAR(50) NOT NULL,
+	owner VARCHAR(255) DEFAULT '' NOT NULL,
+	expiration_time BIGINT DEFAULT 0 NOT NULL,
+	PRIMARY KEY (lease_name)
+);
+
+--
+-- Lease of the users import daemon, free until a node takes it
+--
+INSERT INTO adminauthenticationldap_lease (lease_name, owner, expiration_time) VALUES ('import_daemon', '', 0);
@@ -1,13 +1,91 @@
 package fr.paris.lutece.plugins.adminauthenticationldap;
 
+import fr.paris.lutece.portal.business.user.AdminUser;
+import fr.paris.lutece.portal.business.user.AdminUserHome;
 import fr.paris.lutece.test.LuteceTestCase;
 
+import javax.security.auth.login.FailedLoginException;
+import javax.security.auth.login.LoginException;
+
+/**
+ * Logins against an embedded directory
+ */
 public class AdminLdapAuthenticationTest extends LuteceTestCase
 {
-    // TODO : Complete tests
-    public void testLogin()
+    private static final int USERS = 10;
+    private static final int USER = 3;
+
+    private EmbeddedLdapDirectory _directory;
+
+    @Override
+    protected void setUp( ) throws Exception
     {
-        assertTrue( false );
+        _directory = new EmbeddedLdapDirectory( USERS );
+        _directory.start( );
+        super.setUp( );
+        LdapTestEnvironment.configure( _directory );
     }
 
+    @Override
+    protected void tearDown( ) throws Exception
+    {
+        LdapTestEnvironment.unconfigure( );
+        super.tearDown( );
+        _directory.stop( );
+    }
+
+    public void testLogin( ) throws LoginException
+    {
+        String strAccessCode = EmbeddedLdapDirectory.getAccessCode( USER );
+        AdminLdapAuthentication authentication = new AdminLdapAuthentication( );
+
+        // The first login creates the user from its directory entry
+        authentication.login( strAccessCode, EmbeddedLdapDirectory.USER_PASSWORD, LdapTestEnvironment.newRequest( "10.1.0.1" ) );
+        AdminUser storedUser = AdminUserHome.findUserByLogin( strAccessCode );
+        assertNotNull( storedUser );
+
+        try
+        {
+            assertEquals( "Lastname" + USER, storedUser.getLastName( ) );
+            assertEquals( "Firstname" + USER, storedUser.getFirstName( ) );
+            assertEquals( strAccessCode + "@lutece.org", storedUser.getEmail( ) );
+
+            AdminUser user = authentication.login( strAccessCode, EmbeddedLdapDirectory.USER_PASSWORD, LdapTestEnvironment.newRequest( "10.1.0.1" ) );
+            assertNotNull( user );
+            assertEquals( storedUser.getUserId( ), user.getUserId( ) );
+            assertEquals( strAccessCode, user.getAccessCode( ) );
+        }
+        finally
+        {
+            AdminUserHome.remove( storedUser.getUserId( ) );
+        }
+    }
+
+    public void testLoginWithWrongPassword( ) throws LoginException
+    {
+        String strAccessCode = EmbeddedLdapDirectory.getAccessCode( USER );
+        try
+        {
+            new AdminLdapAuthentication( ).login( strAccessCode, "wrong-password", LdapTestEnvironment.newRequest( "10.1.0.2" ) );
+            fail( "A wrong password must be rejected" );
+        }
+        catch( FailedLoginException e )
+        {
+            assertNull( AdminUserHome.findUserByLogin( strAccessCode ) );
+        }
+    }
+
+    public void testLoginOfUnknownUser( ) throws LoginException
+    {
+        try
+        {
+            new AdminLdapAuthentication( ).login( EmbeddedLdapDirectory.getAccessCode( USERS ), EmbeddedLdapDirectory.USER_PASSWORD,
+                    LdapTestEnvironment.newRequest( "10.1.0.3" ) );
+            fail( "A user missing from the directory must be rejected" );
+        }
+        catch( FailedLoginException e )
+        {
+            // Expected
+        }
+    }
 }
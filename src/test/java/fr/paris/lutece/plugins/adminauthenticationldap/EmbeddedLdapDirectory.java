@@ -0,0 +1,219 @@
+package fr.paris.lutece.plugins.adminauthenticationldap;
+
+import com.unboundid.ldap.listener.InMemoryDirectoryServer;
+import com.unboundid.ldap.listener.InMemoryDirectoryServerConfig;
+import com.unboundid.ldap.listener.InMemoryListenerConfig;
+import com.unboundid.ldap.listener.interceptor.InMemoryInterceptedSearchRequest;
+import com.unboundid.ldap.listener.interceptor.InMemoryInterceptedSearchResult;
+import com.unboundid.ldap.listener.interceptor.InMemoryInterceptedSimpleBindRequest;
+import com.unboundid.ldap.listener.interceptor.InMemoryInterceptedSimpleBindResult;
+import com.unboundid.ldap.listener.interceptor.InMemoryOperationInterceptor;
+import com.unboundid.ldap.sdk.Attribute;
+import com.unboundid.ldap.sdk.Entry;
+import com.unboundid.ldap.sdk.LDAPException;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * In-memory directory seeded with generated users, for the benchmarks and the load tests.
+ * <p>
+ * User <code>i</code> has the access code <code>user000042</code>, the last name <code>Lastname42</code>, the first name <code>Firstname42</code> and the
+ * password {@link #USER_PASSWORD}. An artificial latency can be added to the searches and the binds, to simulate a remote directory.
+ * </p>
+ */
+public class EmbeddedLdapDirectory
+{
+    public static final String ROOT_DN = "dc=lutece,dc=org";
+    public static final String USER_BASE = "ou=users";
+    public static final String BIND_DN = "cn=admin," + ROOT_DN;
+    public static final String BIND_PASSWORD = "admin-password";
+    public static final String USER_PASSWORD = "user-password";
+
+    private final InMemoryDirectoryServer _server;
+    private final int _nUsers;
+    private final AtomicInteger _nPendingOperations = new AtomicInteger( );
+
+    /**
+     * Create the directory, which is empty until {@link #start()} is called
+     * 
+     * @param nUsers
+     *            the number of users to generate
+     * @throws LDAPException
+     *             if the server cannot be created
+     */
+    public EmbeddedLdapDirectory( int nUsers ) throws LDAPException
+    {
+        this( nUsers, 0 );
+    }
+
+    /**
+     * Create the directory, which is empty until {@link #start()} is called
+     * 
+     * @param nUsers
+     *            the number of users to generate
+     * @param lLatency
+     *            the time in milliseconds added to every search and bind
+     * @throws LDAPException
+     *             if the server cannot be created
+     */
+    public EmbeddedLdapDirectory( int nUsers, long lLatency ) throws LDAPException
+    {
+        InMemoryDirectoryServerConfig config = new InMemoryDirectoryServerConfig( ROOT_DN );
+        config.addInMemoryOperationInterceptor( new LatencyInterceptor( lLatency ) );
+        config.addAdditionalBindCredentials( BIND_DN, BIND_PASSWORD );
+        config.setListenerConfigs( InMemoryListenerConfig.createLDAPConfig( "default", 0 ) );
+        // The mapping uses attributes such as login which are not in the standard schema
+        config.setSchema( null );
+
+        _server = new InMemoryDirectoryServer( config );
+        _nUsers = nUsers;
+    }
+
+    /**
+     * @return the server, to add operation interceptors before it is started
+     */
+    public InMemoryDirectoryServer getServer( )
+    {
+        return _server;
+    }
+
+    /**
+     * Start listening on a free port and generate the users
+     * 
+     * @throws LDAPException
+     *             if the server cannot be started
+     */
+    public void start( ) throws LDAPException
+    {
+        _server.startListening( );
+        _server.add( new Entry( ROOT_DN, new Attribute( "objectClass", "top", "domain" ), new Attribute( "dc", "lutece" ) ) );
+        _server.add( new Entry( USER_BASE + "," + ROOT_DN, new Attribute( "objectClass", "top", "organizationalUnit" ), new Attribute( "ou", "users" ) ) );
+
+        for ( int i = 0; i < _nUsers; i++ )
+        {
+            String strAccessCode = getAccessCode( i );
+            String strDn = "login=" + strAccessCode + "," + USER_BASE + "," + ROOT_DN;
+            _server.add( new Entry( strDn, new Attribute( "objectClass", "top", "person", "inetOrgPerson" ), new Attribute( "login", strAccessCode ),
+                    new Attribute( "distinguishedName", strDn ), new Attribute( "sn", "Lastname" + i ), new Attribute( "givenName", "Firstname" + i ),
+                    new Attribute( "cn", "Firstname" + i + " Lastname" + i ), new Attribute( "mail", strAccessCode + "@lutece.org" ),
+                    new Attribute( "userPassword", USER_PASSWORD ) ) );
+        }
+    }
+
+    /**
+     * Stop the server
+     */
+    public void stop( )
+    {
+        _server.shutDown( true );
+    }
+
+    /**
+     * @return the number of searches and binds being processed
+     */
+    public int getPendingOperationCount( )
+    {
+        return _nPendingOperations.get( );
+    }
+
+    /**
+     * @return the number of users
+     */
+    public int getUserCount( )
+    {
+        return _nUsers;
+    }
+
+    /**
+     * @param nUser
+     *            the user number
+     * @return the access code of the user
+     */
+    public static String getAccessCode( int nUser )
+    {
+        return String.format( "user%06d", nUser );
+    }
+
+    /**
+     * Write the plugin properties pointing to this directory, to be loaded over the default ones
+     * 
+     * @param file
+     *            the properties file
+     * @throws IOException
+     *             if the file cannot be written
+     */
+    public void writeProperties( File file ) throws IOException
+    {
+        file.getParentFile( ).mkdirs( );
+        try ( PrintWriter writer = new PrintWriter( file, StandardCharsets.ISO_8859_1.name( ) ) )
+        {
+            writer.println( "adminauthenticationldap.ldap.connectionUrl=ldap://localhost:" + _server.getListenPort( ) + "/" );
+            writer.println( "adminauthenticationldap.ldap.connectionName=" + BIND_DN );
+            writer.println( "adminauthenticationldap.ldap.connectionPassword=" + BIND_PASSWORD );
+            writer.println( "adminauthenticationldap.ldap.isEncrypted=false" );
+            writer.println( "adminauthenticationldap.ldap.rootBase=" + ROOT_DN );
+            writer.println( "adminauthenticationldap.ldap.userBase=" + USER_BASE );
+            writer.println( "adminauthenticationldap.ldap.userSubtree=false" );
+            writer.println( "adminauthenticationldap.ldap.dn.attributeName.groupMemberOf=" );
+            writer.println( "adminauthenticationldap.ldap.userSearch.groupFilter=" );
+        }
+    }
+
+    /**
+     * Delays the searches and the binds, and counts those in progress
+     */
+    private final class LatencyInterceptor extends InMemoryOperationInterceptor
+    {
+        private final long _lLatency;
+
+        LatencyInterceptor( long lLatency )
+        {
+            _lLatency = lLatency;
+        }
+
+        @Override
+        public void processSearchRequest( InMemoryInterceptedSearchRequest request ) throws LDAPException
+        {
+            _nPendingOperations.incrementAndGet( );
+            pause( );
+        }
+
+        @Override
+        public void processSearchResult( InMemoryInterceptedSearchResult result )
+        {
+            _nPendingOperations.decrementAndGet( );
+        }
+
+        @Override
+        public void processSimpleBindRequest( InMemoryInterceptedSimpleBindRequest request ) throws LDAPException
+        {
+            _nPendingOperations.incrementAndGet( );
+            pause( );
+        }
+
+        @Override
+        public void processSimpleBindResult( InMemoryInterceptedSimpleBindResult result )
+        {
+            _nPendingOperations.decrementAndGet( );
+        }
+
+        private void pause( )
+        {
+            if ( _lLatency > 0 )
+            {
+                try
+                {
+                    Thread.sleep( _lLatency );
+                }
+                catch( InterruptedException e )
+                {
+                    Thread.currentThread( ).interrupt( );
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package fr.paris.lutece.plugins.adminauthenticationldap;
+
+import fr.paris.lutece.plugins.adminauthenticationldap.service.LdapService;
+import fr.paris.lutece.portal.service.util.AppPathService;
+import fr.paris.lutece.test.LuteceTestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Lutece context of the benchmarks and the load tests, configured to use an embedded directory.
+ * <p>
+ * It must be started before the first use of the plugin services, which read their configuration once.
+ * </p>
+ */
+public class LdapTestEnvironment extends LuteceTestCase
+{
+    private static final String PATH_OVERRIDE_PROPERTIES = "/WEB-INF/conf/override/plugins/adminauthenticationldap.properties";
+
+    private final EmbeddedLdapDirectory _directory;
+
+    /**
+     * Constructor
+     * 
+     * @param directory
+     *            the started directory
+     */
+    public LdapTestEnvironment( EmbeddedLdapDirectory directory )
+    {
+        _directory = directory;
+    }
+
+    /**
+     * Initialize Lutece with the plugin properties overridden to point to the directory
+     * 
+     * @throws Exception
+     *             if the context cannot be initialized
+     */
+    public void start( ) throws Exception
+    {
+        setUp( );
+        configure( _directory );
+    }
+
+    /**
+     * Release the context and remove the overridden properties
+     * 
+     * @throws Exception
+     *             if the context cannot be released
+     */
+    public void stop( ) throws Exception
+    {
+        unconfigure( );
+        tearDown( );
+    }
+
+    /**
+     * Override the plugin properties of an initialized Lutece context to point to a directory
+     * 
+     * @param directory
+     *            the started directory
+     * @throws IOException
+     *             if the properties cannot be written
+     */
+    public static void configure( EmbeddedLdapDirectory directory ) throws IOException
+    {
+        directory.writeProperties( new File( AppPathService.getWebAppPath( ) + PATH_OVERRIDE_PROPERTIES ) );
+        LdapService.reloadConfiguration( );
+    }
+
+    /**
+     * Remove the overridden plugin properties and apply the original ones again
+     */
+    public static void unconfigure( )
+    {
+        new File( AppPathService.getWebAppPath( ) + PATH_OVERRIDE_PROPERTIES ).delete( );
+        LdapService.reloadConfiguration( );
+    }
+
+    /**
+     * Request of a client address : the tests give each login a distinct one when the throttle of the failed logins must not interfere
+     * 
+     * @param strRemoteAddress
+     *            the client address
+     * @return a request answering only its remote address, with default values for the other methods
+     */
+    public static HttpServletRequest newRequest( String strRemoteAddress )
+    {
+        return (HttpServletRequest) Proxy.newProxyInstance( LdapTestEnvironment.class.getClassLoader( ), new Class<?> [ ] {
+                HttpServletRequest.class
+        }, ( proxy, method, args ) -> {
+            if ( "getRemoteAddr".equals( method.getName( ) ) )
+            {
+                return strRemoteAddress;
+            }
+            if ( method.getReturnType( ) == boolean.class )
+            {
+                return false;
+            }
+            if ( method.getReturnType( ) == int.class )
+            {
+                return 0;
+            }
+            if ( method.getReturnType( ) == long.class )
+            {
+                return 0L;
+            }
+            return null;
+        } );
+    }
+}
@@ -0,0 +1,145 @@
+package fr.paris.lutece.plugins.adminauthenticationldap;
+
+import fr.paris.lutece.plugins.adminauthenticationldap.service.LdapContextPool;
+import fr.paris.lutece.plugins.adminauthenticationldap.service.LdapService;
+import fr.paris.lutece.portal.service.util.AppLogService;
+import fr.paris.lutece.test.LuteceTestCase;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Login storm : many administrators logging in at the same time against a directory with latency.
+ * <p>
+ * The load is set with the system properties <code>loadtest.threads</code>, <code>loadtest.logins</code>, <code>loadtest.users</code> and
+ * <code>loadtest.latency</code> (milliseconds). The test fails when the throughput is below <code>loadtest.minThroughput</code> logins per second, the 99th
+ * percentile above <code>loadtest.maxP99</code> milliseconds or the error rate above <code>loadtest.maxErrorRate</code>.
+ * </p>
+ */
+public class LoginStormTest extends LuteceTestCase
+{
+    private static final int THREADS = Integer.getInteger( "loadtest.threads", 200 );
+    private static final int LOGINS = Integer.getInteger( "loadtest.logins", 2000 );
+    private static final int USERS = Integer.getInteger( "loadtest.users", 5000 );
+    private static final int LATENCY = Integer.getInteger( "loadtest.latency", 20 );
+    private static final double MIN_THROUGHPUT = Double.parseDouble( System.getProperty( "loadtest.minThroughput", "50" ) );
+    private static final double MAX_P99 = Double.parseDouble( System.getProperty( "loadtest.maxP99", "5000" ) );
+    private static final double MAX_ERROR_RATE = Double.parseDouble( System.getProperty( "loadtest.maxErrorRate", "0.01" ) );
+
+    private EmbeddedLdapDirectory _directory;
+
+    @Override
+    protected void setUp( ) throws Exception
+    {
+        _directory = new EmbeddedLdapDirectory( USERS, LATENCY );
+        _directory.start( );
+        super.setUp( );
+        LdapTestEnvironment.configure( _directory );
+    }
+
+    @Override
+    protected void tearDown( ) throws Exception
+    {
+        LdapTestEnvironment.unconfigure( );
+        super.tearDown( );
+        _directory.stop( );
+    }
+
+    /**
+     * Every thread waits for the others, then they all log in at once
+     * 
+     * @throws Exception
+     *             if the test cannot run
+     */
+    public void testLoginStorm( ) throws Exception
+    {
+        AdminLdapAuthentication authentication = new AdminLdapAuthentication( );
+        long [ ] latencies = new long [ LOGINS];
+        AtomicInteger nNextLogin = new AtomicInteger( );
+        AtomicInteger nErrors = new AtomicInteger( );
+        AtomicInteger nPeakPooledConnections = new AtomicInteger( );
+        AtomicInteger nPeakDirectoryOperations = new AtomicInteger( );
+        CountDownLatch start = new CountDownLatch( 1 );
+        CountDownLatch done = new CountDownLatch( THREADS );
+
+        LdapContextPool pool = LdapService.getAdminContextPool( );
+        ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor( );
+        sampler.scheduleAtFixedRate( ( ) -> {
+            nPeakPooledConnections.accumulateAndGet( pool.getActiveCount( ) + pool.getIdleCount( ), Math::max );
+            nPeakDirectoryOperations.accumulateAndGet( _directory.getPendingOperationCount( ), Math::max );
+        }, 0, 10, TimeUnit.MILLISECONDS );
+
+        ExecutorService executor = Executors.newFixedThreadPool( THREADS );
+        for ( int t = 0; t < THREADS; t++ )
+        {
+            executor.execute( ( ) -> {
+                try
+                {
+                    start.await( );
+                    int nLogin;
+                    while ( ( nLogin = nNextLogin.getAndIncrement( ) ) < LOGINS )
+                    {
+                        String strAccessCode = EmbeddedLdapDirectory.getAccessCode( nLogin % USERS );
+                        // A distinct client address per login, so that the throttle of the failed logins does not interfere
+                        String strRemoteAddress = "10.0." + ( ( nLogin >> 8 ) & 0xFF ) + "." + ( nLogin & 0xFF );
+                        long lStart = System.nanoTime( );
+                        try
+                        {
+                            authentication.login( strAccessCode, EmbeddedLdapDirectory.USER_PASSWORD, LdapTestEnvironment.newRequest( strRemoteAddress ) );
+                        }
+                        catch( Exception e )
+                        {
+                            nErrors.incrementAndGet( );
+                        }
+                        latencies [nLogin] = System.nanoTime( ) - lStart;
+                    }
+                }
+                catch( InterruptedException e )
+                {
+                    Thread.currentThread( ).interrupt( );
+                }
+                finally
+                {
+                    done.countDown( );
+                }
+            } );
+        }
+
+        long lStart = System.nanoTime( );
+        start.countDown( );
+        done.await( );
+        long lElapsed = System.nanoTime( ) - lStart;
+        executor.shutdown( );
+        sampler.shutdown( );
+
+        Arrays.sort( latencies );
+        double dThroughput = LOGINS * 1e9 / lElapsed;
+        double dErrorRate = (double) nErrors.get( ) / LOGINS;
+        double dP99 = percentile( latencies, 0.99 );
+
+        AppLogService.info( String.format( Locale.ROOT,
+                "Login storm : %d logins by %d threads, latency %d ms%n  throughput %.1f logins/s, errors %.2f %%%n"
+                        + "  p50 %.1f ms, p95 %.1f ms, p99 %.1f ms, max %.1f ms%n  peak pooled connections %d, peak directory operations %d",
+                LOGINS, THREADS, LATENCY, dThroughput, dErrorRate * 100, percentile( latencies, 0.50 ), percentile( latencies, 0.95 ), dP99,
+                latencies [LOGINS - 1] / 1e6, nPeakPooledConnections.get( ), nPeakDirectoryOperations.get( ) ) );
+
+        assertTrue( "Error rate " + dErrorRate + " above " + MAX_ERROR_RATE, dErrorRate <= MAX_ERROR_RATE );
+        assertTrue( "Throughput " + dThroughput + " logins/s below " + MIN_THROUGHPUT, dThroughput >= MIN_THROUGHPUT );
+        assertTrue( "99th percentile " + dP99 + " ms above " + MAX_P99, dP99 <= MAX_P99 );
+    }
+
+    /**
+     * @return the percentile in milliseconds of sorted durations in nanoseconds
+     */
+    private static double percentile( long [ ] sortedLatencies, double dRank )
+    {
+        int nIndex = (int) Math.ceil( sortedLatencies.length * dRank ) - 1;
+        return sortedLatencies [Math.max( 0, nIndex )] / 1e6;
+    }
+}
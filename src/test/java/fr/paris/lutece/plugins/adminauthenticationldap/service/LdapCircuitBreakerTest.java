@@ -0,0 +1,121 @@
+package fr.paris.lutece.plugins.adminauthenticationldap.service;
+
+import junit.framework.TestCase;
+
+import java.net.SocketTimeoutException;
+
+import javax.naming.AuthenticationException;
+import javax.naming.CommunicationException;
+import javax.naming.NamingException;
+import javax.naming.ServiceUnavailableException;
+
+/**
+ * States of the circuit breaker and classification of the LDAP errors
+ */
+public class LdapCircuitBreakerTest extends TestCase
+{
+    private static final long OPEN_DURATION = 50;
+
+    public void testOpensAfterConsecutiveFailures( )
+    {
+        LdapCircuitBreaker breaker = new LdapCircuitBreaker( true, 3, 60000 );
+
+        breaker.recordFailure( );
+        breaker.recordFailure( );
+        assertEquals( LdapCircuitBreaker.State.CLOSED, breaker.getState( ) );
+        assertTrue( breaker.allowRequest( ) );
+
+        breaker.recordFailure( );
+        assertEquals( LdapCircuitBreaker.State.OPEN, breaker.getState( ) );
+        assertFalse( breaker.allowRequest( ) );
+    }
+
+    public void testSuccessResetsTheFailures( )
+    {
+        LdapCircuitBreaker breaker = new LdapCircuitBreaker( true, 3, 60000 );
+
+        breaker.recordFailure( );
+        breaker.recordFailure( );
+        breaker.recordSuccess( );
+        breaker.recordFailure( );
+        breaker.recordFailure( );
+        assertEquals( LdapCircuitBreaker.State.CLOSED, breaker.getState( ) );
+    }
+
+    public void testProbeAfterOpenDuration( ) throws InterruptedException
+    {
+        LdapCircuitBreaker breaker = new LdapCircuitBreaker( true, 1, OPEN_DURATION );
+
+        breaker.recordFailure( );
+        assertFalse( breaker.allowRequest( ) );
+
+        Thread.sleep( OPEN_DURATION * 2 );
+        assertTrue( breaker.allowRequest( ) );
+        assertEquals( LdapCircuitBreaker.State.HALF_OPEN, breaker.getState( ) );
+
+        // A failed probe opens the circuit again at once
+        breaker.recordFailure( );
+        assertEquals( LdapCircuitBreaker.State.OPEN, breaker.getState( ) );
+
+        Thread.sleep( OPEN_DURATION * 2 );
+        assertTrue( breaker.allowRequest( ) );
+        breaker.recordSuccess( );
+        assertEquals( LdapCircuitBreaker.State.CLOSED, breaker.getState( ) );
+    }
+
+    public void testDisabled( )
+    {
+        LdapCircuitBreaker breaker = new LdapCircuitBreaker( false, 1, 60000 );
+
+        breaker.recordFailure( );
+        breaker.recordFailure( );
+        assertTrue( breaker.allowRequest( ) );
+    }
+
+    public void testRecordError( )
+    {
+        LdapCircuitBreaker breaker = new LdapCircuitBreaker( true, 1, 60000 );
+
+        // Answered by the directory
+        breaker.recordError( new AuthenticationException( ) );
+        assertEquals( LdapCircuitBreaker.State.CLOSED, breaker.getState( ) );
+        // Not sent to the directory
+        breaker.recordError( new LdapPoolExhaustedException( "exhausted" ) );
+        assertEquals( LdapCircuitBreaker.State.CLOSED, breaker.getState( ) );
+
+        breaker.recordError( new CommunicationException( ) );
+        assertEquals( LdapCircuitBreaker.State.OPEN, breaker.getState( ) );
+    }
+
+    public void testIsUnavailability( )
+    {
+        assertTrue( LdapCircuitBreaker.isUnavailability( new CommunicationException( ) ) );
+        assertTrue( LdapCircuitBreaker.isUnavailability( new ServiceUnavailableException( ) ) );
+        assertTrue( LdapCircuitBreaker.isUnavailability( new LdapTimeoutException( "timeout" ) ) );
+
+        NamingException socketTimeout = new NamingException( );
+        socketTimeout.setRootCause( new SocketTimeoutException( ) );
+        assertTrue( LdapCircuitBreaker.isUnavailability( socketTimeout ) );
+
+        assertFalse( LdapCircuitBreaker.isUnavailability( new LdapPoolExhaustedException( "exhausted" ) ) );
+        assertFalse( LdapCircuitBreaker.isUnavailability( new AuthenticationException( ) ) );
+        // The message of an error does not make it a timeout
+        assertFalse( LdapCircuitBreaker.isUnavailability( new NamingException( "timed out" ) ) );
+    }
+
+    public void testReadTimeoutTranslation( )
+    {
+        long lLongAgo = System.nanoTime( ) - 2_000_000_000L;
+        NamingException readTimeout = new NamingException( "LDAP response read timed out" );
+
+        NamingException translated = LdapTimeoutException.translate( readTimeout, lLongAgo, "1000" );
+        assertTrue( translated instanceof LdapTimeoutException );
+        assertSame( readTimeout, translated.getRootCause( ) );
+
+        // Before the timeout, without timeout, or for an error answered by the directory, the error is kept
+        assertSame( readTimeout, LdapTimeoutException.translate( readTimeout, System.nanoTime( ), "1000" ) );
+        assertSame( readTimeout, LdapTimeoutException.translate( readTimeout, lLongAgo, "0" ) );
+        NamingException authentication = new AuthenticationException( );
+        assertSame( authentication, LdapTimeoutException.translate( authentication, lLongAgo, "1000" ) );
+    }
+}
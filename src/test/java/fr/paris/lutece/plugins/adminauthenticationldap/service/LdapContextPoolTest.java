@@ -0,0 +1,233 @@
+package fr.paris.lutece.plugins.adminauthenticationldap.service;
+
+import fr.paris.lutece.test.LuteceTestCase;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Hashtable;
+import java.util.List;
+
+import javax.naming.NamingException;
+import javax.naming.directory.DirContext;
+
+/**
+ * Borrowing, reuse and eviction of the pooled contexts, on contexts which only record whether they are closed
+ */
+public class LdapContextPoolTest extends LuteceTestCase
+{
+    private static final long BORROW_TIMEOUT = 100;
+
+    private final FakeContextFactory _factory = new FakeContextFactory( );
+
+    public void testReleasedContextIsReused( ) throws NamingException
+    {
+        LdapContextPool pool = newPool( true, 2, 60000, false );
+
+        DirContext context = pool.borrowContext( );
+        assertEquals( 1, pool.getActiveCount( ) );
+        pool.releaseContext( context );
+        assertEquals( 0, pool.getActiveCount( ) );
+        assertEquals( 1, pool.getIdleCount( ) );
+
+        assertSame( context, pool.borrowContext( ) );
+        assertEquals( 1, _factory.getCreatedCount( ) );
+    }
+
+    public void testBorrowTimesOutWhenExhausted( ) throws NamingException
+    {
+        LdapContextPool pool = newPool( true, 1, 60000, false );
+        DirContext context = pool.borrowContext( );
+
+        long lStart = System.currentTimeMillis( );
+        try
+        {
+            pool.borrowContext( );
+            fail( "The pool should be exhausted" );
+        }
+        catch( LdapPoolExhaustedException e )
+        {
+            assertTrue( System.currentTimeMillis( ) - lStart >= BORROW_TIMEOUT );
+        }
+
+        pool.releaseContext( context );
+        assertSame( context, pool.borrowContext( ) );
+    }
+
+    public void testInvalidatedContextIsClosed( ) throws NamingException
+    {
+        LdapContextPool pool = newPool( true, 1, 60000, false );
+
+        DirContext context = pool.borrowContext( );
+        pool.invalidateContext( context );
+        assertTrue( _factory.isClosed( context ) );
+        assertEquals( 0, pool.getIdleCount( ) );
+
+        // The permit has been given back
+        assertNotSame( context, pool.borrowContext( ) );
+        assertEquals( 2, _factory.getCreatedCount( ) );
+    }
+
+    public void testBrokenContextIsDiscardedOnBorrow( ) throws NamingException
+    {
+        LdapContextPool pool = newPool( true, 2, 60000, true );
+
+        DirContext context = pool.borrowContext( );
+        pool.releaseContext( context );
+        _factory.breakContext( context );
+
+        DirContext newContext = pool.borrowContext( );
+        assertNotSame( context, newContext );
+        assertTrue( _factory.isClosed( context ) );
+    }
+
+    public void testIdleContextExpires( ) throws Exception
+    {
+        LdapContextPool pool = newPool( true, 2, 50, false );
+
+        DirContext context = pool.borrowContext( );
+        pool.releaseContext( context );
+        Thread.sleep( 100 );
+
+        assertNotSame( context, pool.borrowContext( ) );
+        assertTrue( _factory.isClosed( context ) );
+    }
+
+    public void testClearClosesIdleContexts( ) throws NamingException
+    {
+        LdapContextPool pool = newPool( true, 2, 60000, false );
+
+        DirContext context1 = pool.borrowContext( );
+        DirContext context2 = pool.borrowContext( );
+        pool.releaseContext( context1 );
+        pool.releaseContext( context2 );
+        pool.clear( );
+
+        assertEquals( 0, pool.getIdleCount( ) );
+        assertTrue( _factory.isClosed( context1 ) );
+        assertTrue( _factory.isClosed( context2 ) );
+    }
+
+    public void testClosedPoolClosesReleasedContexts( ) throws NamingException
+    {
+        LdapContextPool pool = newPool( true, 2, 60000, false );
+
+        DirContext idle = pool.borrowContext( );
+        DirContext borrowed = pool.borrowContext( );
+        pool.releaseContext( idle );
+        pool.close( );
+        assertTrue( _factory.isClosed( idle ) );
+
+        pool.releaseContext( borrowed );
+        assertTrue( _factory.isClosed( borrowed ) );
+        assertEquals( 0, pool.getIdleCount( ) );
+    }
+
+    public void testContextOfPreviousVersionIsClosed( ) throws NamingException
+    {
+        LdapContextPool pool = newPool( true, 2, 60000, false );
+
+        DirContext idle = pool.borrowContext( );
+        DirContext borrowed = pool.borrowContext( );
+        pool.releaseContext( idle );
+        _factory.setVersion( new Object( ) );
+
+        // Opened with the previous settings, neither is reused
+        assertNotSame( idle, pool.borrowContext( ) );
+        assertTrue( _factory.isClosed( idle ) );
+        pool.releaseContext( borrowed );
+        assertTrue( _factory.isClosed( borrowed ) );
+    }
+
+    public void testDisabledPoolOpensAContextPerBorrow( ) throws NamingException
+    {
+        LdapContextPool pool = newPool( false, 1, 60000, false );
+
+        DirContext context = pool.borrowContext( );
+        pool.borrowContext( );
+        assertEquals( 2, _factory.getCreatedCount( ) );
+
+        pool.releaseContext( context );
+        assertTrue( _factory.isClosed( context ) );
+        assertEquals( 0, pool.getIdleCount( ) );
+    }
+
+    private LdapContextPool newPool( boolean bEnabled, int nMaxSize, long lMaxIdleTime, boolean bValidateOnBorrow )
+    {
+        return new LdapContextPool( "test", _factory, bEnabled, 0, nMaxSize, lMaxIdleTime, BORROW_TIMEOUT, bValidateOnBorrow );
+    }
+
+    /**
+     * Opens contexts recording their closing, whose validation fails once they are broken, with settings whose version can be changed
+     */
+    private static final class FakeContextFactory implements LdapContextFactory
+    {
+        private final List<DirContext> _listContexts = new ArrayList<>( );
+        private final List<DirContext> _listClosed = new ArrayList<>( );
+        private final List<DirContext> _listBroken = new ArrayList<>( );
+        private volatile Object _version;
+
+        @Override
+        public synchronized DirContext createContext( )
+        {
+            DirContext [ ] context = new DirContext [ 1];
+            context [0] = (DirContext) Proxy.newProxyInstance( getClass( ).getClassLoader( ), new Class<?> [ ] {
+                    DirContext.class
+            }, ( proxy, method, args ) -> {
+                switch( method.getName( ) )
+                {
+                    case "close":
+                        close( context [0] );
+                        return null;
+                    case "getEnvironment":
+                        return new Hashtable<>( );
+                    case "getAttributes":
+                        if ( isBroken( context [0] ) )
+                        {
+                            throw new NamingException( "Broken connection" );
+                        }
+                        return null;
+                    default:
+                        return null;
+                }
+            } );
+            _listContexts.add( context [0] );
+            return context [0];
+        }
+
+        @Override
+        public Object getVersion( )
+        {
+            return _version;
+        }
+
+        void setVersion( Object version )
+        {
+            _version = version;
+        }
+
+        synchronized int getCreatedCount( )
+        {
+            return _listContexts.size( );
+        }
+
+        synchronized boolean isClosed( DirContext context )
+        {
+            return _listClosed.contains( context );
+        }
+
+        synchronized void breakContext( DirContext context )
+        {
+            _listBroken.add( context );
+        }
+
+        private synchronized boolean isBroken( DirContext context )
+        {
+            return _listBroken.contains( context );
+        }
+
+        private synchronized void close( DirContext context )
+        {
+            _listClosed.add( context );
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package fr.paris.lutece.plugins.adminauthenticationldap.service;
+
+import junit.framework.TestCase;
+
+/**
+ * Escaping of the user values and parsing of the placeholders of the search filter templates
+ */
+public class LdapFilterTemplateTest extends TestCase
+{
+    public void testEscapeSpecialCharacters( )
+    {
+        assertEquals( "\\2a", LdapFilterTemplate.escape( "*" ) );
+        assertEquals( "\\28", LdapFilterTemplate.escape( "(" ) );
+        assertEquals( "\\29", LdapFilterTemplate.escape( ")" ) );
+        assertEquals( "\\5c", LdapFilterTemplate.escape( "\\" ) );
+        assertEquals( "\\00", LdapFilterTemplate.escape( "\u0000" ) );
+        assertEquals( "a\\2ab\\28c\\29d\\5ce\\00f", LdapFilterTemplate.escape( "a*b(c)d\\e\u0000f" ) );
+    }
+
+    public void testEscapeKeepsOtherCharacters( )
+    {
+        assertEquals( "jean-dupont@lutece.org", LdapFilterTemplate.escape( "jean-dupont@lutece.org" ) );
+        assertEquals( "H\u00e9l\u00e8ne O'Brien", LdapFilterTemplate.escape( "H\u00e9l\u00e8ne O'Brien" ) );
+        assertEquals( "", LdapFilterTemplate.escape( "" ) );
+        assertEquals( "", LdapFilterTemplate.escape( null ) );
+    }
+
+    public void testFormatEscapesValues( )
+    {
+        LdapFilterTemplate template = LdapFilterTemplate.compile( "(login={0})" );
+
+        assertEquals( "(login=jdupont)", template.format( "jdupont" ) );
+        assertEquals( "(login=\\2a)", template.format( "*" ) );
+        // An injection attempt stays inside the assertion value
+        assertEquals( "(login=x\\29(objectClass=\\2a)", template.format( "x)(objectClass=*" ) );
+    }
+
+    public void testFormatPlaceholdersInAnyOrder( )
+    {
+        assertEquals( "(&(sn=b)(givenName=a))", LdapFilterTemplate.compile( "(&(sn={1})(givenName={0}))" ).format( "a", "b" ) );
+        assertEquals( "(|(sn=a)(cn=a))", LdapFilterTemplate.compile( "(|(sn={0})(cn={0}))" ).format( "a" ) );
+        assertEquals( "(objectClass=person)", LdapFilterTemplate.compile( "(objectClass=person)" ).format( "a" ) );
+    }
+
+    public void testNonDigitBracesAreLiterals( )
+    {
+        assertEquals( "(cn={x})(sn=a)", LdapFilterTemplate.compile( "(cn={x})(sn={0})" ).format( "a" ) );
+        assertEquals( "(cn={})(sn=a)", LdapFilterTemplate.compile( "(cn={})(sn={0})" ).format( "a" ) );
+        assertEquals( "(cn={1a})", LdapFilterTemplate.compile( "(cn={1a})" ).format( "a" ) );
+        assertEquals( "(sn=a)(cn={0", LdapFilterTemplate.compile( "(sn={0})(cn={0" ).format( "a" ) );
+        // Unlike MessageFormat, quotes are not interpreted
+        assertEquals( "(cn='a')", LdapFilterTemplate.compile( "(cn='{0}')" ).format( "a" ) );
+    }
+
+    public void testMissingOrNullArguments( )
+    {
+        LdapFilterTemplate template = LdapFilterTemplate.compile( "(&(sn={0})(givenName={1}))" );
+
+        assertEquals( "(&(sn=a)(givenName=))", template.format( "a" ) );
+        assertEquals( "(&(sn=a)(givenName=))", template.format( "a", null ) );
+        assertEquals( "(&(sn=)(givenName=))", template.format( ) );
+        assertEquals( "(&(sn=)(givenName=))", template.format( (String [ ]) null ) );
+    }
+
+    public void testFormatPrefixesAppendsTrailingWildcard( )
+    {
+        LdapFilterTemplate template = LdapFilterTemplate.compile( "(&(sn={0})(givenName={1})(mail={2}))" );
+
+        assertEquals( "(&(sn=du*)(givenName=j*)(mail=*))", template.formatPrefixes( "du", "j", "" ) );
+        // Every value matches anything when no prefix is given
+        assertEquals( "(&(sn=*)(givenName=*)(mail=*))", template.formatPrefixes( ) );
+        assertEquals( "(&(sn=*)(givenName=*)(mail=*))", template.formatPrefixes( null, null, null ) );
+        // The only wildcard is the trailing one : the ones typed are searched literally
+        assertEquals( "(&(sn=d\\2au*)(givenName=*)(mail=*))", template.formatPrefixes( "d*u" ) );
+    }
+}
@@ -0,0 +1,68 @@
+package fr.paris.lutece.plugins.adminauthenticationldap.service;
+
+import junit.framework.TestCase;
+
+/**
+ * High-water mark of the incremental synchronization
+ */
+public class LdapSyncMarkTest extends TestCase
+{
+    public void testParse( )
+    {
+        assertEquals( "12345", LdapSyncMark.parse( "uSNChanged", "uSNChanged=12345" ).getValue( ) );
+        // A mark saved for another attribute is not comparable
+        assertFalse( LdapSyncMark.parse( "uSNChanged", "modifyTimestamp=20240101000000Z" ).hasValue( ) );
+        assertFalse( LdapSyncMark.parse( "uSNChanged", "uSNChanged=" ).hasValue( ) );
+        assertFalse( LdapSyncMark.parse( "uSNChanged", "" ).hasValue( ) );
+        assertFalse( LdapSyncMark.parse( "uSNChanged", null ).hasValue( ) );
+    }
+
+    public void testToStringIsParsedBack( )
+    {
+        LdapSyncMark mark = new LdapSyncMark( "modifyTimestamp", "20240101000000Z" );
+
+        assertEquals( "modifyTimestamp=20240101000000Z", mark.toString( ) );
+        assertEquals( "20240101000000Z", LdapSyncMark.parse( "modifyTimestamp", mark.toString( ) ).getValue( ) );
+        assertFalse( LdapSyncMark.parse( "modifyTimestamp", new LdapSyncMark( "modifyTimestamp", null ).toString( ) ).hasValue( ) );
+    }
+
+    public void testUpdateComparesSequenceNumbersNumerically( )
+    {
+        LdapSyncMark mark = new LdapSyncMark( "uSNChanged", "9" );
+
+        mark.update( "10" );
+        assertEquals( "10", mark.getValue( ) );
+        mark.update( "9" );
+        assertEquals( "10", mark.getValue( ) );
+        mark.update( "11" );
+        assertEquals( "11", mark.getValue( ) );
+    }
+
+    public void testUpdateComparesTimestamps( )
+    {
+        LdapSyncMark mark = new LdapSyncMark( "modifyTimestamp", null );
+
+        mark.update( "20231231235959Z" );
+        assertEquals( "20231231235959Z", mark.getValue( ) );
+        mark.update( "20240101000000Z" );
+        mark.update( "20230601120000Z" );
+        assertEquals( "20240101000000Z", mark.getValue( ) );
+    }
+
+    public void testUpdateIgnoresBlankValues( )
+    {
+        LdapSyncMark mark = new LdapSyncMark( "uSNChanged", "42" );
+
+        mark.update( null );
+        mark.update( "" );
+        mark.update( " " );
+        assertEquals( "42", mark.getValue( ) );
+    }
+
+    public void testFilter( )
+    {
+        assertEquals( "", new LdapSyncMark( "uSNChanged", null ).getFilter( ) );
+        assertEquals( "(uSNChanged>=42)", new LdapSyncMark( "uSNChanged", "42" ).getFilter( ) );
+        assertEquals( "(modifyTimestamp>=2024\\2a)", new LdapSyncMark( "modifyTimestamp", "2024*" ).getFilter( ) );
+    }
+}
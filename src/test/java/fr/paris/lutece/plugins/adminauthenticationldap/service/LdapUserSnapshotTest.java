@@ -0,0 +1,74 @@
+package fr.paris.lutece.plugins.adminauthenticationldap.service;
+
+import fr.paris.lutece.portal.business.user.AdminUser;
+import fr.paris.lutece.test.LuteceTestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Prefix searches answered from the snapshot of the directory users
+ */
+public class LdapUserSnapshotTest extends LuteceTestCase
+{
+    private final LdapUserSnapshot _snapshot = LdapUserSnapshot.of( Arrays.asList( newUser( "jdupont", "Dupont", "Jean", "jean.dupont@lutece.org" ),
+            newUser( "mdurand", "Durand", "Marie", "marie.durand@lutece.org" ), newUser( "pmartin", "Martin", "Paul", "paul.martin@lutece.org" ),
+            newUser( "sobrien", "O*Brien", "Sean", "sean.obrien@lutece.org" ), newUser( "nomail", "Dupuis", "Anne", null ) ) );
+
+    public void testPrefixesIgnoreCase( )
+    {
+        assertEquals( Arrays.asList( "jdupont", "mdurand" ), getAccessCodes( _snapshot.search( "du", "", "" ) ) );
+        assertEquals( Collections.singletonList( "jdupont" ), getAccessCodes( _snapshot.search( "DUP", null, null ) ) );
+        assertEquals( Collections.singletonList( "pmartin" ), getAccessCodes( _snapshot.search( "", "", "Paul.M" ) ) );
+    }
+
+    public void testEveryPrefixMustMatch( )
+    {
+        assertEquals( Collections.singletonList( "mdurand" ), getAccessCodes( _snapshot.search( "du", "ma", "" ) ) );
+        assertTrue( _snapshot.search( "dupont", "marie", "" ).isEmpty( ) );
+    }
+
+    public void testMissingAttributeNeverMatches( )
+    {
+        // As with the (mail=*) clause of the directory filter
+        assertTrue( _snapshot.search( "dupuis", "", "" ).isEmpty( ) );
+        assertEquals( 4, _snapshot.search( "", "", "" ).size( ) );
+    }
+
+    public void testWildcardIsLiteral( )
+    {
+        assertEquals( Collections.singletonList( "sobrien" ), getAccessCodes( _snapshot.search( "o*b", "", "" ) ) );
+        assertTrue( _snapshot.search( "*", "", "" ).isEmpty( ) );
+        assertTrue( _snapshot.search( "d*", "", "" ).isEmpty( ) );
+    }
+
+    public void testMergeReplacesAndAddsUsers( )
+    {
+        LdapUserSnapshot merged = _snapshot.merge( Arrays.asList( newUser( "jdupont", "Dupont-Moreau", "Jean", "jean.dupont@lutece.org" ),
+                newUser( "lbernard", "Bernard", "Lucie", "lucie.bernard@lutece.org" ) ) );
+
+        assertEquals( _snapshot.size( ) + 1, merged.size( ) );
+        assertEquals( "Dupont-Moreau", merged.search( "dupont", "", "" ).get( 0 ).getLastName( ) );
+        assertEquals( Collections.singletonList( "lbernard" ), getAccessCodes( merged.search( "bern", "", "" ) ) );
+        // The merged snapshot is a new one
+        assertEquals( "Dupont", _snapshot.search( "dupont", "", "" ).get( 0 ).getLastName( ) );
+    }
+
+    private static AdminUser newUser( String strAccessCode, String strLastName, String strFirstName, String strEmail )
+    {
+        return LdapService.createAdminUser( strAccessCode, strLastName, strFirstName, strEmail );
+    }
+
+    private static List<String> getAccessCodes( List<AdminUser> users )
+    {
+        List<String> listAccessCodes = new ArrayList<>( );
+        for ( AdminUser user : users )
+        {
+            listAccessCodes.add( user.getAccessCode( ) );
+        }
+        Collections.sort( listAccessCodes );
+        return listAccessCodes;
+    }
+}
@@ -0,0 +1,45 @@
+package fr.paris.lutece.plugins.adminauthenticationldap.service;
+
+import junit.framework.TestCase;
+
+/**
+ * Sliding window counting the failed logins
+ */
+public class LoginThrottleServiceTest extends TestCase
+{
+    // 12 buckets of one second : a window of 12 seconds
+    private static final long BUCKET_WIDTH = 1000L;
+
+    public void testCountsTheEventsOfTheWindow( )
+    {
+        LoginThrottleService.SlidingWindowCounter counter = new LoginThrottleService.SlidingWindowCounter( BUCKET_WIDTH );
+
+        assertEquals( 0, counter.count( 0 ) );
+        counter.increment( 0 );
+        counter.increment( 500 );
+        counter.increment( 1500 );
+        assertEquals( 3, counter.count( 1500 ) );
+        assertEquals( 3, counter.count( 11999 ) );
+    }
+
+    public void testWindowSlidesOneBucketAtATime( )
+    {
+        LoginThrottleService.SlidingWindowCounter counter = new LoginThrottleService.SlidingWindowCounter( BUCKET_WIDTH );
+
+        counter.increment( 0 );
+        counter.increment( 1500 );
+        assertEquals( 1, counter.count( 12000 ) );
+        assertEquals( 0, counter.count( 13000 ) );
+    }
+
+    public void testExpiredBucketIsReused( )
+    {
+        LoginThrottleService.SlidingWindowCounter counter = new LoginThrottleService.SlidingWindowCounter( BUCKET_WIDTH );
+
+        counter.increment( 0 );
+        counter.increment( 0 );
+        // Same bucket, one window later : the old events are dropped
+        counter.increment( 12000 );
+        assertEquals( 1, counter.count( 12000 ) );
+    }
+}